@@ -0,0 +1,135 @@
+package com.fileshare.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Allocation in the copy loop. Each operation copies a cached file with a
+ * checksum into a channel that discards it, once through a buffer from the
+ * BufferPool and once through a fresh heap array as the loops used to.
+ * Run with -prof gc: gc.alloc.rate.norm of copyPooled should stay at
+ * about 0 bytes per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BufferPoolBenchmark {
+    @Param({"16384", "131072"})
+    public int bufferSize;
+
+    @Param({"1048576"})
+    public long fileSize;
+
+    private File file;
+    private FileChannel fileChannel;
+    private final BufferPool pool = new BufferPool(32 * 1024 * 1024);
+    private final WritableByteChannel sink = new Sink();
+
+    @State(Scope.Thread)
+    public static class Checksum {
+        public final CRC32 crc32 = new CRC32();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("buffer-pool-benchmark", ".bin").toFile();
+        TransferBenchmark.writeRandomFile(file, fileSize);
+        fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fileChannel.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long copyPooled(Checksum checksum) throws IOException {
+        ByteBuffer buffer = pool.acquire(bufferSize);
+        try {
+            checksum.crc32.reset();
+            long position = 0;
+            int read;
+            while ((read = fileChannel.read(buffer.clear(), position)) > 0) {
+                buffer.flip();
+                checksum.crc32.update(buffer);
+                buffer.rewind();
+                while (buffer.hasRemaining()) {
+                    sink.write(buffer);
+                }
+                position += read;
+            }
+            return checksum.crc32.getValue();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    @Benchmark
+    public long copyHeap(Checksum checksum) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        checksum.crc32.reset();
+        long position = 0;
+        int read;
+        while ((read = fileChannel.read(ByteBuffer.wrap(buffer), position)) > 0) {
+            checksum.crc32.update(buffer, 0, read);
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+            while (data.hasRemaining()) {
+                sink.write(data);
+            }
+            position += read;
+        }
+        return checksum.crc32.getValue();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer acquireRelease() {
+        ByteBuffer buffer = pool.acquire(bufferSize);
+        pool.release(buffer);
+        return buffer;
+    }
+
+    private static final class Sink implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
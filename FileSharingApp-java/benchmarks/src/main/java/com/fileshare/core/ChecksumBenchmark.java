@@ -0,0 +1,105 @@
+package com.fileshare.core;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Whole-file checksums as the transfer paths take them: the file read
+ * through a direct buffer of the given size and fed to the checksum. The
+ * file is in the page cache after the first pass, so this measures the
+ * checksum and the copy out of the cache, not the disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChecksumBenchmark {
+    @Param({"CRC32", "CRC32C", "ADLER32"})
+    public String algorithm;
+
+    @Param({"4096", "65536", "1048576"})
+    public int bufferSize;
+
+    @Param({"1048576", "67108864"})
+    public long fileSize;
+
+    private File file;
+    private ByteBuffer buffer;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("checksum-benchmark", ".bin").toFile();
+        TransferBenchmark.writeRandomFile(file, fileSize);
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long checksumFile(Bytes counter) throws IOException {
+        Checksum checksum = newChecksum();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            int read;
+            while ((read = channel.read(buffer.clear(), position)) > 0) {
+                checksum.update(buffer.flip());
+                position += read;
+            }
+        }
+        counter.bytes += fileSize;
+        return checksum.getValue();
+    }
+
+    // Private helper methods
+
+    private Checksum newChecksum() {
+        switch (algorithm) {
+            case "CRC32C":
+                return new CRC32C();
+            case "ADLER32":
+                return new Adler32();
+            default:
+                return new CRC32();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.fileshare.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.DatagramPacket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of discovery datagrams by WiFiDirectService. In steady state
+ * nearly every datagram announces a peer that is already known.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DiscoveryBenchmark {
+    private TransferExecutor executor;
+    private WiFiDirectService service;
+    private DatagramPacket knownPeer;
+    private DatagramPacket groupCreated;
+    private DatagramPacket otherService;
+    private DatagramPacket malformed;
+
+    @Setup
+    public void setUp() {
+        executor = new TransferExecutor(TransferExecutor.Mode.PLATFORM, 1, 1, Long.MAX_VALUE);
+        service = new WiFiDirectService(executor);
+        service.addDiscoveryListener(peer -> { });
+        knownPeer = packet("DISCOVER:WiFiDirectFileShare:alice:192.0.2.10");
+        groupCreated = packet("GROUP_CREATED:bob:192.0.2.11");
+        otherService = packet("DISCOVER:SomethingElse:carol:192.0.2.12");
+        malformed = packet("garbage without separators");
+        service.handleDiscoveryMessage(knownPeer);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void knownPeer() {
+        service.handleDiscoveryMessage(knownPeer);
+    }
+
+    @Benchmark
+    public void groupCreated() {
+        service.handleDiscoveryMessage(groupCreated);
+    }
+
+    @Benchmark
+    public void otherService() {
+        service.handleDiscoveryMessage(otherService);
+    }
+
+    @Benchmark
+    public void malformed() {
+        service.handleDiscoveryMessage(malformed);
+    }
+
+    // Private helper methods
+
+    private static DatagramPacket packet(String message) {
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        return new DatagramPacket(data, data.length);
+    }
+}
@@ -0,0 +1,125 @@
+package com.fileshare.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * What each durability mode costs the receiver: concurrent files sent
+ * over loopback into one directory per operation, so the FILE mode's
+ * grouped directory syncs show next to forcing nothing (NONE) and forcing
+ * as the data arrives (PERIODIC). The bytes counter gives the throughput
+ * in bytes per second next to the operations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DurabilityBenchmark {
+    private static final int BASE_PORT = 30000;
+    private static final int PORTS = 1000;
+
+    @Param({"NONE", "FILE", "PERIODIC"})
+    public String durability;
+
+    @Param({"16384", "67108864"})
+    public long fileSize;
+
+    /**
+     * Files in flight at once in one operation.
+     */
+    @Param({"1", "16"})
+    public int concurrency;
+
+    private Path workDir;
+    private final List<File> sources = new ArrayList<>();
+    private FileTransferService sender;
+    private FileTransferService receiver;
+    private ExecutorService senders;
+    private int nextPort;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("durability-benchmark");
+        for (int i = 0; i < concurrency; i++) {
+            File source = workDir.resolve("source-" + i + ".bin").toFile();
+            TransferBenchmark.writeRandomFile(source, fileSize);
+            sources.add(source);
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("durability.mode", durability);
+        properties.setProperty("parallel.file.transfer", "false");
+        properties.setProperty("delta.transfer.enabled", "false");
+        properties.setProperty("compression.enabled", "false");
+        properties.setProperty("metrics.jmx.enabled", "false");
+        properties.setProperty("executor.max.transfers", Integer.toString(Math.max(concurrency, 64)));
+        TransferConfig config = new TransferConfig(properties);
+
+        sender = new FileTransferService(config);
+        receiver = new FileTransferService(config);
+        senders = Executors.newFixedThreadPool(concurrency);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        senders.shutdownNow();
+        sender.shutdown();
+        receiver.shutdown();
+        try (Stream<Path> files = Files.walk(workDir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Object receiveConcurrently(TransferBenchmark.Bytes counter) throws Exception {
+        List<Future<FileTransferService.TransferResult>> received = new ArrayList<>(concurrency);
+        List<CompletableFuture<Void>> sent = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            int port = BASE_PORT + nextPort++ % PORTS;
+            File source = sources.get(i);
+            received.add(receiver.receiveFileAsync(port, workDir.resolve("received").toString()));
+            sent.add(CompletableFuture.runAsync(() -> {
+                try {
+                    TransferBenchmark.sendWhenListening(sender, source, port);
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, senders));
+        }
+        CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).join();
+        List<FileTransferService.TransferResult> results = new ArrayList<>(concurrency);
+        for (Future<FileTransferService.TransferResult> result : received) {
+            results.add(result.get());
+        }
+        counter.bytes += fileSize * concurrency;
+        return results;
+    }
+}
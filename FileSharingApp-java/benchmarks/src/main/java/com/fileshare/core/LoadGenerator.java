@@ -0,0 +1,500 @@
+package com.fileshare.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.OperatingSystemMXBean;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Headless end-to-end load on loopback: one receiving and one sending
+ * FileTransferService, with N sender threads each running transfers back
+ * to back, for every concurrency level given.
+ *
+ * Files come from a weighted size mix and are sparse by default, so no
+ * real data or disk space for sources is needed. Each level reports
+ * aggregate throughput, completion-time percentiles overall and per size,
+ * process CPU per GB and heap allocation per GB, as JSON on stdout or in
+ * the --output file.
+ *
+ * Usage: LoadGenerator [--concurrency 1,8,64] [--transfers N]
+ *        [--mix 64K:60,1M:30,32M:10] [--random] [--warmup N]
+ *        [--set key=value]... [--output results.json]
+ */
+public class LoadGenerator {
+    private static final int BASE_PORT = 31000;
+    private static final int PORTS = 2000;
+    private static final double GB = 1024.0 * 1024.0 * 1024.0;
+
+    private final List<Integer> concurrencyLevels = new ArrayList<>(List.of(1, 8, 64));
+    private final Map<Long, Integer> mix = new TreeMap<>();
+    private final Properties overrides = new Properties();
+    private int transfersPerLevel;
+    private int warmupTransfers = 16;
+    private boolean randomContent;
+    private File output;
+
+    private Path workDir;
+    private final Map<Long, File> sources = new TreeMap<>();
+    private final AtomicInteger nextPort = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGenerator [--concurrency 1,8,64] [--transfers N] "
+                + "[--mix 64K:60,1M:30,32M:10] [--random] [--warmup N] [--set key=value]... [--output file]");
+            System.exit(2);
+        }
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--concurrency":
+                    concurrencyLevels.clear();
+                    for (String level : required(args[i], value).split(",")) {
+                        concurrencyLevels.add(Integer.parseInt(level.trim()));
+                    }
+                    i++;
+                    break;
+                case "--transfers":
+                    transfersPerLevel = Integer.parseInt(required(args[i], value));
+                    i++;
+                    break;
+                case "--mix":
+                    for (String entry : required(args[i], value).split(",")) {
+                        String[] parts = entry.split(":");
+                        mix.put(parseSize(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1);
+                    }
+                    i++;
+                    break;
+                case "--warmup":
+                    warmupTransfers = Integer.parseInt(required(args[i], value));
+                    i++;
+                    break;
+                case "--random":
+                    randomContent = true;
+                    break;
+                case "--set":
+                    String[] setting = required(args[i], value).split("=", 2);
+                    if (setting.length != 2) {
+                        throw new IllegalArgumentException("--set needs key=value: " + value);
+                    }
+                    overrides.setProperty(setting[0].trim(), setting[1].trim());
+                    i++;
+                    break;
+                case "--output":
+                    output = new File(required(args[i], value));
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (mix.isEmpty()) {
+            mix.put(64L * 1024, 60);
+            mix.put(1024L * 1024, 30);
+            mix.put(32L * 1024 * 1024, 10);
+        }
+    }
+
+    private void run() throws Exception {
+        workDir = Files.createTempDirectory("load-generator");
+        try {
+            for (long size : mix.keySet()) {
+                File source = workDir.resolve("source-" + size + ".bin").toFile();
+                writeSource(source, size);
+                sources.put(size, source);
+            }
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("java", Runtime.version().toString());
+            report.put("processors", Runtime.getRuntime().availableProcessors());
+            report.put("mix", mixDescription());
+            report.put("randomContent", randomContent);
+            report.put("settings", new TreeMap<>(overrides));
+            List<Map<String, Object>> levels = new ArrayList<>();
+            for (int concurrency : concurrencyLevels) {
+                int transfers = transfersPerLevel > 0 ? transfersPerLevel : Math.max(16, concurrency * 4);
+                levels.add(runLevel(concurrency, transfers));
+            }
+            report.put("levels", levels);
+
+            ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+            if (output != null) {
+                mapper.writeValue(output, report);
+            } else {
+                System.out.println(mapper.writeValueAsString(report));
+            }
+        } finally {
+            deleteRecursively(workDir);
+        }
+    }
+
+    /**
+     * Run one concurrency level on fresh services, after a warmup on the
+     * same services.
+     */
+    private Map<String, Object> runLevel(int concurrency, int transfers) throws Exception {
+        Properties properties = new Properties();
+        try (InputStream bundled = TransferConfig.class.getResourceAsStream("/application.properties")) {
+            if (bundled != null) {
+                properties.load(bundled);
+            }
+        }
+        properties.setProperty("metrics.jmx.enabled", "false");
+        // Receives wait for their sender while holding a permit, so leave room for every lane
+        properties.setProperty("executor.max.transfers", Integer.toString(Math.max(64, concurrency)));
+        properties.putAll(overrides);
+        TransferConfig config = new TransferConfig(properties);
+        FileTransferService sender = new FileTransferService(config);
+        FileTransferService receiver = new FileTransferService(config);
+        try {
+            runTransfers(sender, receiver, Math.min(concurrency, Math.max(warmupTransfers, 1)), warmupTransfers);
+
+            HeapChurn churn = new HeapChurn();
+            OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            long gcCount = gcCount();
+            long gcMillis = gcMillis();
+            long cpuStart = os.getProcessCpuTime();
+            long start = System.nanoTime();
+            List<Completed> completed = runTransfers(sender, receiver, concurrency, transfers);
+            long elapsed = System.nanoTime() - start;
+            long cpu = os.getProcessCpuTime() - cpuStart;
+            long allocated = churn.stop();
+
+            long bytes = 0;
+            int failures = 0;
+            for (Completed transfer : completed) {
+                if (transfer.success) {
+                    bytes += transfer.size;
+                } else {
+                    failures++;
+                }
+            }
+            double gigabytes = bytes / GB;
+
+            Map<String, Object> level = new LinkedHashMap<>();
+            level.put("concurrency", concurrency);
+            level.put("transfers", completed.size());
+            level.put("failures", failures);
+            level.put("bytes", bytes);
+            level.put("elapsedMillis", elapsed / 1_000_000);
+            level.put("throughputMBps", round(bytes / (1024.0 * 1024.0) / (elapsed / 1e9)));
+            level.put("completionMillis", percentiles(completed, null));
+            Map<String, Object> bySize = new LinkedHashMap<>();
+            for (long size : mix.keySet()) {
+                bySize.put(Long.toString(size), percentiles(completed, size));
+            }
+            level.put("completionMillisBySize", bySize);
+            level.put("cpuSecondsPerGB", gigabytes > 0 ? round(cpu / 1e9 / gigabytes) : null);
+            level.put("heapAllocatedMB", round(allocated / (1024.0 * 1024.0)));
+            level.put("heapAllocatedMBPerGB", gigabytes > 0 ? round(allocated / (1024.0 * 1024.0) / gigabytes) : null);
+            level.put("gcCount", gcCount() - gcCount);
+            level.put("gcMillis", gcMillis() - gcMillis);
+            System.err.printf("concurrency %d: %d transfers, %d failed, %.1f MB/s%n",
+                concurrency, completed.size(), failures, (Double) level.get("throughputMBps"));
+            return level;
+        } finally {
+            sender.shutdown();
+            receiver.shutdown();
+        }
+    }
+
+    /**
+     * Run transfers from the given number of threads, each taking the next
+     * transfer until all are done.
+     */
+    private List<Completed> runTransfers(FileTransferService sender, FileTransferService receiver,
+                                         int concurrency, int transfers) throws InterruptedException {
+        List<Long> sizes = drawSizes(transfers);
+        List<Completed> completed = Collections.synchronizedList(new ArrayList<>(transfers));
+        AtomicInteger next = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>(concurrency);
+        for (int lane = 0; lane < concurrency; lane++) {
+            Path laneDir = workDir.resolve("lane-" + lane);
+            Thread thread = new Thread(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < transfers) {
+                    completed.add(transfer(sender, receiver, sizes.get(index), laneDir));
+                }
+            }, "load-lane-" + lane);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return completed;
+    }
+
+    private Completed transfer(FileTransferService sender, FileTransferService receiver, long size, Path laneDir) {
+        int port = BASE_PORT + nextPort.getAndIncrement() % PORTS;
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Future<FileTransferService.TransferResult> received = receiver.receiveFileAsync(port, laneDir.toString());
+            sendWhenListening(sender, sources.get(size), port);
+            success = received.get().isSuccess();
+        } catch (Exception e) {
+            System.err.println("Transfer of " + size + " bytes failed: " + e.getMessage());
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        // Received files only take disk space while they are in flight
+        laneDir.resolve(sources.get(size).getName()).toFile().delete();
+        return new Completed(size, millis, success);
+    }
+
+    // Private helper methods
+
+    private static void sendWhenListening(FileTransferService sender, File file, int port)
+            throws IOException, InterruptedException {
+        // The receiver binds on another thread, so the first attempts may be refused
+        for (int attempt = 0; ; attempt++) {
+            try {
+                sender.sendFile(file, "127.0.0.1", port);
+                return;
+            } catch (IOException e) {
+                if (!refused(e) || attempt == 1000) {
+                    throw e;
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static boolean refused(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Long> drawSizes(int transfers) {
+        // Same seed every run, so runs across releases move the same files
+        Random random = new Random(transfers);
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        List<Long> sizes = new ArrayList<>(transfers);
+        for (int i = 0; i < transfers; i++) {
+            int pick = random.nextInt(totalWeight);
+            for (Map.Entry<Long, Integer> entry : mix.entrySet()) {
+                pick -= entry.getValue();
+                if (pick < 0) {
+                    sizes.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return sizes;
+    }
+
+    private Map<String, Object> percentiles(List<Completed> completed, Long size) {
+        List<Long> millis = new ArrayList<>();
+        for (Completed transfer : completed) {
+            if (transfer.success && (size == null || transfer.size == size)) {
+                millis.add(transfer.millis);
+            }
+        }
+        Collections.sort(millis);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", millis.size());
+        if (!millis.isEmpty()) {
+            result.put("p50", percentile(millis, 0.50));
+            result.put("p90", percentile(millis, 0.90));
+            result.put("p99", percentile(millis, 0.99));
+            result.put("max", millis.get(millis.size() - 1));
+        }
+        return result;
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private void writeSource(File file, long size) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            if (!randomContent) {
+                // Sparse: no blocks on disk, reads return zeros
+                out.setLength(size);
+                return;
+            }
+            byte[] block = new byte[1024 * 1024];
+            new Random(size).nextBytes(block);
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private String mixDescription() {
+        StringBuilder description = new StringBuilder();
+        for (Map.Entry<Long, Integer> entry : mix.entrySet()) {
+            if (description.length() > 0) {
+                description.append(',');
+            }
+            description.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return description.toString();
+    }
+
+    private static long parseSize(String text) {
+        String value = text.trim().toUpperCase();
+        long unit = 1;
+        if (value.endsWith("K")) {
+            unit = 1024;
+        } else if (value.endsWith("M")) {
+            unit = 1024 * 1024;
+        } else if (value.endsWith("G")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+
+    private static String required(String option, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return value;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static final class Completed {
+        private final long size;
+        private final long millis;
+        private final boolean success;
+
+        Completed(long size, long millis, boolean success) {
+            this.size = size;
+            this.millis = millis;
+            this.success = success;
+        }
+    }
+
+    /**
+     * Heap allocated while it runs, estimated from the heap in use: what
+     * each collection found in use, minus what the previous one left, plus
+     * the growth since the last collection.
+     */
+    private static final class HeapChurn implements NotificationListener {
+        private long lastUsed = heapUsed();
+        private long allocated;
+
+        HeapChurn() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter) {
+                    ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            long before = heapTotal(info.getGcInfo().getMemoryUsageBeforeGc());
+            allocated += Math.max(0, before - lastUsed);
+            lastUsed = heapTotal(info.getGcInfo().getMemoryUsageAfterGc());
+        }
+
+        synchronized long stop() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter) {
+                    try {
+                        ((NotificationEmitter) gc).removeNotificationListener(this);
+                    } catch (javax.management.ListenerNotFoundException e) {
+                        // Never added
+                    }
+                }
+            }
+            return allocated + Math.max(0, heapUsed() - lastUsed);
+        }
+
+        private static long heapUsed() {
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    used += pool.getUsage().getUsed();
+                }
+            }
+            return used;
+        }
+
+        private static long heapTotal(Map<String, MemoryUsage> usage) {
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                MemoryUsage poolUsage = usage.get(pool.getName());
+                if (pool.getType() == MemoryType.HEAP && poolUsage != null) {
+                    used += poolUsage.getUsed();
+                }
+            }
+            return used;
+        }
+    }
+}
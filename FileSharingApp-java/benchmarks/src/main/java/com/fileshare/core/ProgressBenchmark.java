@@ -0,0 +1,97 @@
+package com.fileshare.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What progress reporting costs the copy loops per step: the counter
+ * update, one metrics step, and on the ticker side the snapshot handed to
+ * listeners. The contended group has the stream threads of a chunked
+ * transfer updating one transfer while the ticker reads it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProgressBenchmark {
+    private static final long TOTAL_BYTES = 1L << 40;
+
+    private FileTransferService.TransferProgress progress;
+    private long bytes;
+
+    /**
+     * One transfer shared by the threads of the contended group.
+     */
+    @State(Scope.Group)
+    public static class Shared {
+        private FileTransferService.TransferProgress progress;
+        private volatile long bytes;
+
+        @Setup
+        public void setUp() {
+            progress = newProgress();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        progress = newProgress();
+    }
+
+    @Benchmark
+    public void update() {
+        progress.update(bytes += 131072, TOTAL_BYTES);
+    }
+
+    @Benchmark
+    public long metricsStep() {
+        return progress.getMetrics().socket(System.nanoTime());
+    }
+
+    @Benchmark
+    public FileTransferService.ProgressSnapshot snapshot() {
+        return progress.snapshot(1.0);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public void streamUpdates(Shared shared) {
+        // Racy on purpose: stream threads publish their own running totals
+        long moved = shared.bytes + 131072;
+        shared.bytes = moved;
+        shared.progress.update(moved, TOTAL_BYTES);
+        shared.progress.getMetrics().socket(System.nanoTime());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public FileTransferService.ProgressSnapshot tickerReads(Shared shared) {
+        return shared.progress.snapshot(1.0);
+    }
+
+    // Private helper methods
+
+    private static FileTransferService.TransferProgress newProgress() {
+        FileTransferService.TransferProgress progress = new FileTransferService.TransferProgress("benchmark",
+            Paths.get("file.bin"), FileTransferService.TransferType.SEND);
+        new TransferMetrics().open(progress);
+        return progress;
+    }
+}
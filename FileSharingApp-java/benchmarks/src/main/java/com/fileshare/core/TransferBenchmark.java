@@ -0,0 +1,157 @@
+package com.fileshare.core;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * One file sent over loopback per operation, through each copy loop of
+ * FileTransferService. The bytes counter gives the throughput in bytes
+ * per second next to the operations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+    private static final int BASE_PORT = 29000;
+    private static final int PORTS = 1000;
+
+    /**
+     * STREAM, ZERO_COPY and MAPPED force the single-stream send paths;
+     * CHUNKED goes through the parallel engine.
+     */
+    @Param({"STREAM", "ZERO_COPY", "MAPPED", "CHUNKED"})
+    public String path;
+
+    @Param({"1048576", "67108864"})
+    public long fileSize;
+
+    @Param({"16384", "131072", "1048576"})
+    public int bufferSize;
+
+    private Path workDir;
+    private File source;
+    private FileTransferService sender;
+    private FileTransferService receiver;
+    private int nextPort;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("transfer-benchmark");
+        source = workDir.resolve("source.bin").toFile();
+        writeRandomFile(source, fileSize);
+
+        boolean chunked = "CHUNKED".equals(path);
+        Properties properties = new Properties();
+        properties.setProperty("buffer.size", Integer.toString(bufferSize));
+        properties.setProperty("adaptive.chunk.size", "false");
+        properties.setProperty("parallel.file.transfer", Boolean.toString(chunked));
+        properties.setProperty("transfer.resume.enabled", Boolean.toString(chunked));
+        properties.setProperty("delta.transfer.enabled", "false");
+        properties.setProperty("compression.enabled", "false");
+        properties.setProperty("memory.mapped.io.enabled", Boolean.toString("MAPPED".equals(path)));
+        properties.setProperty("metrics.jmx.enabled", "false");
+        TransferConfig config = new TransferConfig(properties);
+
+        sender = new FileTransferService(config);
+        receiver = new FileTransferService(config);
+        if (!chunked) {
+            sender.setSendMode(FileTransferService.SendMode.valueOf(path));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.shutdown();
+        receiver.shutdown();
+        try (Stream<Path> files = Files.walk(workDir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Object sendOverLoopback(Bytes counter) throws Exception {
+        int port = BASE_PORT + nextPort++ % PORTS;
+        Future<FileTransferService.TransferResult> received =
+            receiver.receiveFileAsync(port, workDir.resolve("received").toString());
+        sendWhenListening(sender, source, port);
+        FileTransferService.TransferResult result = received.get();
+        counter.bytes += fileSize;
+        return result;
+    }
+
+    // Private helper methods
+
+    static void sendWhenListening(FileTransferService sender, File source, int port)
+            throws IOException, InterruptedException {
+        // The receiver binds on another thread, so the first attempts may be refused
+        for (int attempt = 0; ; attempt++) {
+            try {
+                sender.sendFile(source, "127.0.0.1", port);
+                return;
+            } catch (IOException e) {
+                if (!refused(e) || attempt == 1000) {
+                    throw e;
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static boolean refused(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static void writeRandomFile(File file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(size).nextBytes(block);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
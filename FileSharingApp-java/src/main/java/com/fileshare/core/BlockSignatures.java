@@ -0,0 +1,184 @@
+package com.fileshare.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Rolling and strong checksums of the fixed-size blocks of a file the
+ * receiver already has, used as the basis of a delta transfer.
+ *
+ * The rolling checksum is the rsync one: two 16-bit sums that can be moved
+ * along by one byte in constant time, so the sender can test every offset
+ * of its file. A rolling match is confirmed with the MD5 of the block.
+ * Only whole blocks are signed; a shorter tail of the basis is never
+ * matched.
+ */
+public class BlockSignatures {
+    public static final BlockSignatures NONE = new BlockSignatures(0, new int[0], new byte[0][]);
+
+    public static final int MIN_BLOCK_SIZE = 2048;
+    public static final int MAX_BLOCK_SIZE = 128 * 1024;
+    public static final int MAX_BLOCK_COUNT = 1 << 24;
+    public static final int STRONG_LENGTH = 16;
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[][] strong;
+    // Chained hash index over the rolling checksums
+    private final int[] head;
+    private final int[] next;
+    private final int mask;
+
+    public BlockSignatures(int blockSize, int[] weak, byte[][] strong) {
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+        int tableSize = Integer.highestOneBit(Math.max(weak.length, 1)) * 2;
+        this.mask = tableSize - 1;
+        this.head = new int[tableSize];
+        this.next = new int[weak.length];
+        Arrays.fill(head, -1);
+        // Inserted backwards so that earlier blocks are found first
+        for (int i = weak.length - 1; i >= 0; i--) {
+            int bucket = bucket(weak[i]);
+            next[i] = head[bucket];
+            head[bucket] = i;
+        }
+    }
+
+    /**
+     * Sign the whole blocks of a basis file, or return NONE if it is too
+     * small to be worth matching against.
+     */
+    public static BlockSignatures compute(Path basis) throws IOException {
+        try (FileChannel channel = FileChannel.open(basis, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int blockSize = blockSizeFor(size);
+            long count = size / blockSize;
+            if (count == 0 || count > MAX_BLOCK_COUNT) {
+                return NONE;
+            }
+            int[] weak = new int[(int) count];
+            byte[][] strong = new byte[(int) count][];
+            MessageDigest md5 = newDigest();
+            byte[] buffer = new byte[Math.max(READ_BUFFER_SIZE / blockSize, 1) * blockSize];
+            long position = 0;
+            int block = 0;
+            while (block < count) {
+                int length = (int) Math.min(buffer.length, (count - block) * blockSize);
+                ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+                while (target.hasRemaining()) {
+                    if (channel.read(target, position + target.position()) < 0) {
+                        throw new EOFException("Basis file shrank while it was being signed");
+                    }
+                }
+                for (int offset = 0; offset < length; offset += blockSize) {
+                    weak[block] = weakChecksum(buffer, offset, blockSize);
+                    md5.update(buffer, offset, blockSize);
+                    strong[block] = md5.digest();
+                    block++;
+                }
+                position += length;
+            }
+            return new BlockSignatures(blockSize, weak, strong);
+        }
+    }
+
+    /**
+     * Block size for a basis of the given size: about the square root of
+     * the size, as a power of two, so both the signature list and the
+     * per-block overhead stay small.
+     */
+    public static int blockSizeFor(long fileSize) {
+        long target = (long) Math.sqrt((double) fileSize);
+        if (target <= MIN_BLOCK_SIZE) {
+            return MIN_BLOCK_SIZE;
+        }
+        if (target >= MAX_BLOCK_SIZE) {
+            return MAX_BLOCK_SIZE;
+        }
+        return Integer.highestOneBit((int) target);
+    }
+
+    /**
+     * The rolling checksum of a range: the low half is the sum of the
+     * bytes, the high half the sum of those running sums.
+     */
+    public static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = offset; i < offset + length; i++) {
+            a += data[i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Move a rolling checksum over a window of blockSize bytes one byte on.
+     */
+    public static int roll(int checksum, int blockSize, int outgoing, int incoming) {
+        int a = ((checksum & 0xffff) - outgoing + incoming) & 0xffff;
+        int b = ((checksum >>> 16) - blockSize * outgoing + a) & 0xffff;
+        return a | (b << 16);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    public boolean isEmpty() { return weak.length == 0; }
+    public int getBlockSize() { return blockSize; }
+    public int getBlockCount() { return weak.length; }
+    public int getWeak(int block) { return weak[block]; }
+    public byte[] getStrong(int block) { return strong[block]; }
+
+    /**
+     * Find a block whose content equals the window of blockSize bytes at
+     * offset, given the window's rolling checksum, or return -1. The
+     * preferred block is tried first, so runs of unchanged blocks are
+     * matched in order even where the basis repeats itself.
+     */
+    public int find(int checksum, byte[] data, int offset, int preferred, MessageDigest md5) {
+        byte[] digest = null;
+        if (preferred >= 0 && preferred < weak.length && weak[preferred] == checksum) {
+            md5.update(data, offset, blockSize);
+            digest = md5.digest();
+            if (MessageDigest.isEqual(digest, strong[preferred])) {
+                return preferred;
+            }
+        }
+        for (int i = head[bucket(checksum)]; i >= 0; i = next[i]) {
+            if (weak[i] != checksum) {
+                continue;
+            }
+            if (digest == null) {
+                md5.update(data, offset, blockSize);
+                digest = md5.digest();
+            }
+            if (MessageDigest.isEqual(digest, strong[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Private helper methods
+
+    private int bucket(int checksum) {
+        return (checksum ^ (checksum >>> 15)) & mask;
+    }
+}
@@ -0,0 +1,138 @@
+package com.fileshare.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable direct buffers for the copy loops, so a transfer in steady state
+ * allocates nothing and its bytes never pass through the heap.
+ *
+ * Buffers come in power-of-two size classes from 4KB to 1MB. All direct
+ * memory the pool has handed out or holds counts against one budget. When
+ * the budget is spent, idle buffers of other classes are dropped to make
+ * room; if none are idle, the caller gets a heap buffer that is never
+ * pooled, so a burst of transfers slows down instead of failing.
+ */
+public class BufferPool {
+    private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+
+    private static final int MIN_CLASS_SHIFT = 12; // 4KB
+    private static final int MAX_CLASS_SHIFT = 20; // 1MB
+
+    public static final int MAX_BUFFER_SIZE = 1 << MAX_CLASS_SHIFT;
+
+    private final long budget;
+    private final ArrayDeque<ByteBuffer>[] idle;
+    private final AtomicLong directBytes = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long budgetBytes) {
+        this.budget = Math.max(budgetBytes, MAX_BUFFER_SIZE);
+        this.idle = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < idle.length; i++) {
+            idle[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Create the pool described by the configuration.
+     */
+    public static BufferPool create(TransferConfig config) {
+        return new BufferPool(config.getBufferPoolBudget());
+    }
+
+    public long getBudget() { return budget; }
+    public long getDirectBytes() { return directBytes.get(); }
+    public long getAcquireCount() { return acquired.get(); }
+    public long getAllocationCount() { return allocated.get(); }
+    public long getOverflowCount() { return overflows.get(); }
+
+    /**
+     * Take a cleared buffer of at least the given size, capped at
+     * MAX_BUFFER_SIZE. Its capacity is the size rounded up to a power of
+     * two. Hand it back with release once the loop using it is done.
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        int capacity = 1 << (sizeClass + MIN_CLASS_SHIFT);
+        acquired.incrementAndGet();
+        ByteBuffer buffer = poll(sizeClass);
+        if (buffer != null) {
+            return buffer.clear();
+        }
+        if (reserve(capacity) || (trim(sizeClass, capacity) && reserve(capacity))) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        if (overflows.getAndIncrement() == 0) {
+            logger.info("Buffer pool budget of {} bytes spent, using heap buffers for the excess", budget);
+        }
+        return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Return a buffer from acquire. Heap buffers handed out past the budget
+     * are left to the garbage collector.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> queue = idle[sizeClass(buffer.capacity())];
+        synchronized (queue) {
+            // Last in, first out, so the buffer most likely still in cache goes next
+            queue.push(buffer);
+        }
+    }
+
+    // Private helper methods
+
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.min(Math.max(shift, MIN_CLASS_SHIFT), MAX_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+
+    private ByteBuffer poll(int sizeClass) {
+        ArrayDeque<ByteBuffer> queue = idle[sizeClass];
+        synchronized (queue) {
+            return queue.poll();
+        }
+    }
+
+    private boolean reserve(int capacity) {
+        long current;
+        do {
+            current = directBytes.get();
+            if (current + capacity > budget) {
+                return false;
+            }
+        } while (!directBytes.compareAndSet(current, current + capacity));
+        return true;
+    }
+
+    /**
+     * Drop idle buffers of other classes until the capacity fits the budget.
+     * Their memory goes back once the collector clears them.
+     */
+    private boolean trim(int sizeClass, int capacity) {
+        for (int i = idle.length - 1; i >= 0; i--) {
+            if (i == sizeClass) {
+                continue;
+            }
+            ByteBuffer dropped;
+            while ((dropped = poll(i)) != null) {
+                if (directBytes.addAndGet(-dropped.capacity()) + capacity <= budget) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+package com.fileshare.core;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of single chunks for compressed transfers.
+ *
+ * Compression is only attempted where it can pay off: files whose type is
+ * already compressed are sent raw without looking at them, and for other
+ * files a slice from the middle of each chunk is compressed first. Only if
+ * that slice shrinks enough is the whole chunk compressed, and encoding
+ * stops as soon as the output grows past what would be worth sending.
+ *
+ * Instances keep their buffers between chunks and are not thread-safe;
+ * each stream uses its own. Call close when done to free the native
+ * deflater.
+ */
+public class ChunkCompressor implements AutoCloseable {
+    public static final int CODEC_RAW = 0;
+    public static final int CODEC_DEFLATE = 1;
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    private static final double MAX_CHUNK_RATIO = 0.95;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+        "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif",
+        "mp4", "m4v", "mov", "mkv", "avi", "webm", "3gp",
+        "mp3", "m4a", "aac", "ogg", "opus", "flac",
+        "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+        "jar", "apk", "docx", "xlsx", "pptx", "odt");
+
+    // Fastest level: the link, not the ratio, is what we are saving on
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] buffer = new byte[0];
+    private int length;
+
+    /**
+     * Whether a file name says its content is already compressed.
+     */
+    public static boolean isCompressedType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Compress a chunk, or return false if it should be sent raw. On success
+     * the compressed bytes are available from getBuffer and getLength.
+     */
+    public boolean compress(byte[] data, int length) {
+        if (length > SAMPLE_SIZE * 2) {
+            int sampleStart = (length - SAMPLE_SIZE) / 2;
+            if (!encode(data, sampleStart, SAMPLE_SIZE, (int) (SAMPLE_SIZE * MAX_SAMPLE_RATIO))) {
+                return false;
+            }
+        }
+        return encode(data, 0, length, (int) (length * MAX_CHUNK_RATIO));
+    }
+
+    public byte[] getBuffer() { return buffer; }
+    public int getLength() { return length; }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+
+    /**
+     * Decompress a chunk into target, which must come out at exactly length
+     * bytes.
+     */
+    public static void decompress(byte[] payload, int payloadLength, byte[] target, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload, 0, payloadLength);
+            int filled = 0;
+            while (filled < length && !inflater.finished()) {
+                int inflated = inflater.inflate(target, filled, length - filled);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                filled += inflated;
+            }
+            if (filled != length || !inflater.finished() || inflater.getRemaining() > 0) {
+                throw new IOException("Compressed chunk does not decode to " + length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Private helper methods
+
+    /**
+     * Deflate a range into the buffer, giving up once the output reaches
+     * limit bytes. Returns whether it fit.
+     */
+    private boolean encode(byte[] data, int offset, int length, int limit) {
+        if (buffer.length < limit) {
+            buffer = new byte[limit];
+        }
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        int written = 0;
+        while (!deflater.finished() && written < limit) {
+            written += deflater.deflate(buffer, written, limit - written);
+        }
+        this.length = written;
+        return deflater.finished();
+    }
+}
@@ -0,0 +1,229 @@
+package com.fileshare.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes a file against the block signatures of the receiver's copy, and
+ * rebuilds it on the receiving side.
+ *
+ * A delta is a sequence of operations: literal bytes, or a run of
+ * consecutive basis blocks to copy. It ends with a CRC32 of the whole
+ * rebuilt file, which is always sent, as it is the only check that a block
+ * match was not a collision and that the basis did not change meanwhile.
+ */
+public final class DeltaCodec {
+    public static final int OP_END = 0;
+    public static final int OP_LITERAL = 1;
+    public static final int OP_BLOCKS = 2;
+
+    // Upper bound of one literal operation and the sender's read window
+    public static final int MAX_LITERAL_SIZE = 1024 * 1024;
+
+    private DeltaCodec() {
+    }
+
+    /**
+     * Write the delta of a file against the signatures. onBytes is told how
+     * much of the file each operation covers. If stopped turns true the
+     * delta is ended early, and the receiver will reject it. A null source
+     * is encoded as an empty file. Returns the number of literal bytes.
+     */
+    public static long encode(FileChannel source, BlockSignatures signatures, DataOutputStream out,
+                              LongConsumer onBytes, BooleanSupplier stopped) throws IOException {
+        Encoder encoder = new Encoder(signatures, out, onBytes);
+        encoder.run(source, stopped);
+        return encoder.literalBytes;
+    }
+
+    /**
+     * Read a delta and write the rebuilt file into target from position 0,
+     * copying matched blocks from basis. Returns whether the result has the
+     * expected size and checksum; either way the delta has been read to its
+     * end. Malformed operations throw.
+     */
+    public static boolean decode(DataInputStream in, FileChannel basis, BlockSignatures signatures,
+                                 FileChannel target, long fileSize, LongConsumer onBytes) throws IOException {
+        int blockSize = signatures.getBlockSize();
+        byte[] buffer = new byte[MAX_LITERAL_SIZE];
+        CRC32 crc32 = new CRC32();
+        long written = 0;
+
+        while (true) {
+            int op = in.readUnsignedByte();
+            if (op == OP_END) {
+                int checksum = in.readInt();
+                return written == fileSize && checksum == (int) crc32.getValue();
+            }
+            if (op == OP_LITERAL) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_LITERAL_SIZE || written + length > fileSize) {
+                    throw new IOException("Invalid literal of " + length + " bytes at offset " + written);
+                }
+                in.readFully(buffer, 0, length);
+                crc32.update(buffer, 0, length);
+                writeFully(target, ByteBuffer.wrap(buffer, 0, length), written);
+                written += length;
+                onBytes.accept(length);
+            } else if (op == OP_BLOCKS) {
+                int first = in.readInt();
+                int count = in.readInt();
+                if (first < 0 || count <= 0 || (long) first + count > signatures.getBlockCount()
+                        || written + (long) count * blockSize > fileSize) {
+                    throw new IOException("Invalid block run " + first + "+" + count + " at offset " + written);
+                }
+                long position = (long) first * blockSize;
+                long end = position + (long) count * blockSize;
+                while (position < end) {
+                    int length = (int) Math.min(buffer.length, end - position);
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+                    while (data.hasRemaining()) {
+                        if (basis.read(data, position + data.position()) < 0) {
+                            throw new IOException("Basis file shrank during the delta transfer");
+                        }
+                    }
+                    crc32.update(buffer, 0, length);
+                    writeFully(target, data.flip(), written);
+                    written += length;
+                    position += length;
+                    onBytes.accept(length);
+                }
+            } else {
+                throw new IOException("Unknown delta operation: " + op);
+            }
+        }
+    }
+
+    // Private helper methods
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data, position + data.position());
+        }
+    }
+
+    /**
+     * The sender's state: a window of the file slides over the read
+     * buffer, bytes it passes become literal data, and matched blocks are
+     * collected into runs.
+     */
+    private static final class Encoder {
+        private final BlockSignatures signatures;
+        private final DataOutputStream out;
+        private final LongConsumer onBytes;
+        private final int blockSize;
+        private final byte[] buffer;
+        private final MessageDigest md5 = BlockSignatures.newDigest();
+        private final CRC32 crc32 = new CRC32();
+        private int runStart = -1;
+        private int runCount;
+        private long literalBytes;
+
+        Encoder(BlockSignatures signatures, DataOutputStream out, LongConsumer onBytes) {
+            this.signatures = signatures;
+            this.out = out;
+            this.onBytes = onBytes;
+            this.blockSize = signatures.getBlockSize();
+            this.buffer = new byte[MAX_LITERAL_SIZE];
+        }
+
+        void run(FileChannel source, BooleanSupplier stopped) throws IOException {
+            long filePosition = 0;
+            boolean eof = source == null;
+            int start = 0;
+            int limit = 0;
+            int literalStart = 0;
+            int checksum = 0;
+            boolean fresh = true;
+
+            while (!stopped.getAsBoolean()) {
+                if (limit - start <= blockSize && !eof) {
+                    // Rolling needs the byte after the window, so refill first
+                    flushLiteral(literalStart, start);
+                    System.arraycopy(buffer, start, buffer, 0, limit - start);
+                    limit -= start;
+                    start = 0;
+                    literalStart = 0;
+                    while (limit < buffer.length) {
+                        int read = source.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit), filePosition);
+                        if (read < 0) {
+                            eof = true;
+                            break;
+                        }
+                        limit += read;
+                        filePosition += read;
+                    }
+                    continue;
+                }
+                if (limit - start < blockSize) {
+                    break;
+                }
+                if (fresh) {
+                    checksum = BlockSignatures.weakChecksum(buffer, start, blockSize);
+                    fresh = false;
+                }
+                int block = signatures.find(checksum, buffer, start, runCount > 0 ? runStart + runCount : -1, md5);
+                if (block >= 0) {
+                    flushLiteral(literalStart, start);
+                    addBlock(block);
+                    crc32.update(buffer, start, blockSize);
+                    onBytes.accept(blockSize);
+                    start += blockSize;
+                    literalStart = start;
+                    fresh = true;
+                } else if (limit - start > blockSize) {
+                    checksum = BlockSignatures.roll(checksum, blockSize,
+                        buffer[start] & 0xff, buffer[start + blockSize] & 0xff);
+                    start++;
+                } else {
+                    break;
+                }
+            }
+
+            flushLiteral(literalStart, stopped.getAsBoolean() ? start : limit);
+            flushRun();
+            out.writeByte(OP_END);
+            out.writeInt((int) crc32.getValue());
+        }
+
+        private void addBlock(int block) throws IOException {
+            if (runCount > 0 && block == runStart + runCount) {
+                runCount++;
+                return;
+            }
+            flushRun();
+            runStart = block;
+            runCount = 1;
+        }
+
+        private void flushRun() throws IOException {
+            if (runCount > 0) {
+                out.writeByte(OP_BLOCKS);
+                out.writeInt(runStart);
+                out.writeInt(runCount);
+                runCount = 0;
+            }
+        }
+
+        private void flushLiteral(int from, int to) throws IOException {
+            int length = to - from;
+            if (length <= 0) {
+                return;
+            }
+            flushRun();
+            out.writeByte(OP_LITERAL);
+            out.writeInt(length);
+            out.write(buffer, from, length);
+            crc32.update(buffer, from, length);
+            literalBytes += length;
+            onBytes.accept(length);
+        }
+    }
+}
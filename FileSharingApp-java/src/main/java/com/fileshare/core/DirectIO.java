@@ -0,0 +1,194 @@
+package com.fileshare.core;
+
+import com.sun.nio.file.ExtendedOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads and writes of huge files that bypass the page cache, so moving a
+ * file many times larger than memory does not evict everything else the
+ * host has cached for data that is read or written once.
+ *
+ * A second channel on the file is opened with O_DIRECT, which needs file
+ * positions, lengths and buffer addresses aligned to the file system's
+ * block size. The aligned middle of every read or write goes through it;
+ * what is left over, like the tail of the file, goes through the ordinary
+ * channel beside it. Buffers come from allocate, already aligned; a heap
+ * buffer always takes the ordinary channel, as the aligned copy the JDK
+ * makes of it breaks the socket reads on the same thread later on.
+ *
+ * Files below direct.io.threshold, platforms without O_DIRECT and file
+ * systems that refuse it get no DirectIO at all, and callers keep the
+ * ordinary channel. If a direct read or write fails later on, the rest of
+ * the transfer goes through the page cache instead.
+ */
+public class DirectIO implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DirectIO.class);
+
+    private static final int DEFAULT_ALIGNMENT = 4096;
+
+    private final Path path;
+    private final FileChannel direct;
+    private final FileChannel channel;
+    private final int alignment;
+    private volatile boolean disabled;
+
+    private DirectIO(Path path, FileChannel direct, FileChannel channel, int alignment) {
+        this.path = path;
+        this.direct = direct;
+        this.channel = channel;
+        this.alignment = alignment;
+    }
+
+    /**
+     * Whether a file of this size is moved with direct I/O as configured.
+     */
+    public static boolean applies(TransferConfig config, long fileSize) {
+        return config.isDirectIoEnabled() && fileSize >= config.getDirectIoThreshold();
+    }
+
+    /**
+     * Open direct I/O on path beside channel, the ordinary channel on the
+     * same file, with the given options, like READ or WRITE. Returns null
+     * if the file is below the threshold or direct I/O is not available
+     * for it.
+     */
+    public static DirectIO open(TransferConfig config, Path path, long fileSize, FileChannel channel,
+                                OpenOption... options) {
+        if (!applies(config, fileSize)) {
+            return null;
+        }
+        Set<OpenOption> directOptions = new HashSet<>(Arrays.asList(options));
+        directOptions.add(ExtendedOpenOption.DIRECT);
+        FileChannel direct;
+        try {
+            direct = FileChannel.open(path, directOptions);
+        } catch (UnsupportedOperationException | IOException e) {
+            logger.info("No direct I/O for {}, using the page cache: {}", path.getFileName(), e.getMessage());
+            return null;
+        }
+        logger.debug("Direct I/O for {}", path.getFileName());
+        return new DirectIO(path, direct, channel, blockSize(path));
+    }
+
+    public int getAlignment() { return alignment; }
+
+    /**
+     * The size rounded up to a whole number of blocks.
+     */
+    public int align(int size) {
+        return (size + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * A direct buffer of at least size bytes, rounded up to whole blocks,
+     * that starts on a block boundary.
+     */
+    public ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(align(size) + alignment - 1).alignedSlice(alignment);
+    }
+
+    /**
+     * Read at the file position until the buffer is full or the file ends,
+     * and return the number of bytes read, or -1 at the end of the file.
+     */
+    public int read(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            long at = position + buffer.position() - start;
+            int read;
+            if (isDirect(buffer, at)) {
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + buffer.remaining() / alignment * alignment);
+                try {
+                    read = direct.read(buffer, at);
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    disable(e);
+                    continue;
+                } finally {
+                    buffer.limit(limit);
+                }
+            } else {
+                read = channel.read(buffer, at);
+            }
+            if (read <= 0) {
+                break;
+            }
+        }
+        int total = buffer.position() - start;
+        return total == 0 && buffer.hasRemaining() ? -1 : total;
+    }
+
+    /**
+     * Write the whole buffer at the file position.
+     */
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            if (isDirect(buffer, at)) {
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + buffer.remaining() / alignment * alignment);
+                try {
+                    at += direct.write(buffer, at);
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    disable(e);
+                } finally {
+                    buffer.limit(limit);
+                }
+            } else {
+                at += channel.write(buffer, at);
+            }
+        }
+    }
+
+    /**
+     * Close the direct channel. The ordinary one belongs to the caller.
+     */
+    @Override
+    public void close() throws IOException {
+        direct.close();
+    }
+
+    // Private helper methods
+
+    private boolean isDirect(ByteBuffer buffer, long position) {
+        return !disabled
+            && position % alignment == 0
+            && buffer.remaining() >= alignment
+            && buffer.isDirect()
+            && buffer.alignmentOffset(buffer.position(), alignment) == 0;
+    }
+
+    private void disable(IOException e) {
+        if (!disabled) {
+            disabled = true;
+            logger.warn("Direct I/O on {} failed, continuing through the page cache: {}", path.getFileName(),
+                e.getMessage());
+        }
+    }
+
+    private static int blockSize(Path path) {
+        try {
+            long size = Files.getFileStore(path).getBlockSize();
+            return size > 0 && Long.bitCount(size) == 1 ? (int) size : DEFAULT_ALIGNMENT;
+        } catch (UnsupportedOperationException | IOException e) {
+            return DEFAULT_ALIGNMENT;
+        }
+    }
+}
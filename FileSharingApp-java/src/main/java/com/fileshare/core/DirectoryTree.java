@@ -0,0 +1,145 @@
+package com.fileshare.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The regular files under a directory, each with the name it is sent
+ * under: the directory's own name followed by the path below it, separated
+ * by '/'. Subdirectories are listed in parallel on a fork/join pool, by
+ * default the common one or else the TransferExecutor's hash pool, and
+ * entries come back sorted by name within each directory, so a tree always
+ * lists in the same order.
+ *
+ * Symbolic links are not followed, and anything that is neither a regular
+ * file nor a directory is left out.
+ */
+public class DirectoryTree {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryTree.class);
+
+    private final File root;
+    private final List<Entry> entries;
+    private final long totalSize;
+
+    private DirectoryTree(File root, List<Entry> entries) {
+        this.root = root;
+        this.entries = entries;
+        this.totalSize = entries.stream().mapToLong(Entry::getSize).sum();
+    }
+
+    /**
+     * List every regular file under the directory.
+     */
+    public static DirectoryTree walk(File directory) throws IOException {
+        return walk(directory, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * List every regular file under the directory on the given pool.
+     */
+    public static DirectoryTree walk(File directory, ForkJoinPool pool) throws IOException {
+        Path root = directory.toPath().toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        Path name = root.getFileName();
+        String prefix = name != null ? name.toString() + "/" : "";
+        try {
+            List<Entry> entries = pool.invoke(new ListTask(root, prefix));
+            return new DirectoryTree(directory, Collections.unmodifiableList(entries));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public File getRoot() { return root; }
+    public List<Entry> getEntries() { return entries; }
+    public long getTotalSize() { return totalSize; }
+
+    public static class Entry {
+        private final File file;
+        private final String name;
+        private final long size;
+
+        public Entry(File file, String name, long size) {
+            this.file = file;
+            this.name = name;
+            this.size = size;
+        }
+
+        public File getFile() { return file; }
+        public String getName() { return name; }
+        public long getSize() { return size; }
+    }
+
+    // Private helper methods
+
+    private static final class ListTask extends RecursiveTask<List<Entry>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final String prefix;
+
+        ListTask(Path directory, String prefix) {
+            this.directory = directory;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected List<Entry> compute() {
+            List<Path> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                stream.forEach(children::add);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            children.sort(null);
+
+            // Files in place, each subdirectory's list as it comes back from its task
+            List<Object> slots = new ArrayList<>(children.size());
+            for (Path child : children) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    logger.warn("Skipping {}: {}", child, e.getMessage());
+                    continue;
+                }
+                String name = prefix + child.getFileName();
+                if (attributes.isDirectory()) {
+                    ListTask subtask = new ListTask(child, name + "/");
+                    subtask.fork();
+                    slots.add(subtask);
+                } else if (attributes.isRegularFile()) {
+                    slots.add(new Entry(child.toFile(), name, attributes.size()));
+                } else {
+                    logger.debug("Skipping {}: not a regular file", child);
+                }
+            }
+
+            List<Entry> entries = new ArrayList<>(slots.size());
+            for (Object slot : slots) {
+                if (slot instanceof ListTask) {
+                    entries.addAll(((ListTask) slot).join());
+                } else {
+                    entries.add((Entry) slot);
+                }
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.fileshare.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When received files are forced to disk, as set by durability.mode:
+ *
+ * NONE never forces; published files reach the disk whenever the kernel
+ * writes them back, and a crash can lose them even after the transfer
+ * reported success.
+ *
+ * FILE forces every file once it is complete, before it is renamed into
+ * place, and the directory after the rename, so a reported file survives
+ * a crash. Each receive forces its own data, in parallel with the others;
+ * the directory forces go to one committer thread that syncs every
+ * directory with renames waiting once per batch, so many concurrent small
+ * files share their directory syncs instead of queueing one by one.
+ *
+ * PERIODIC forces files in progress every durability.periodic.bytes
+ * written or every durability.periodic.millis, whichever comes first, and
+ * publishes files without waiting: each published file and its directory
+ * are forced with the next periodic flush, together with everything else
+ * published since the last one. A crash loses at most about one period of
+ * writes, but a file published just before it may be left short of its
+ * last bytes.
+ */
+public class DurabilityPolicy implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DurabilityPolicy.class);
+
+    public enum Mode {
+        NONE,
+        FILE,
+        PERIODIC
+    }
+
+    private static final Tracker UNTRACKED = new Tracker(null, null);
+
+    private final Mode mode;
+    private final long periodicBytes;
+    private final Set<Tracker> tracked = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<DirectorySync> directorySyncs = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Path> published = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private final ScheduledExecutorService flusher;
+    private volatile boolean closed;
+
+    public DurabilityPolicy(Mode mode, long periodicBytes, long periodicMillis) {
+        this.mode = mode;
+        this.periodicBytes = periodicBytes;
+        if (mode == Mode.FILE) {
+            this.committer = new Thread(this::commitDirectories, "durability-committer");
+            committer.setDaemon(true);
+            committer.start();
+        } else {
+            this.committer = null;
+        }
+        if (mode == Mode.PERIODIC) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "durability-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, periodicMillis, periodicMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    /**
+     * Create the policy described by the configuration.
+     */
+    public static DurabilityPolicy create(TransferConfig config) {
+        Mode mode;
+        try {
+            mode = Mode.valueOf(config.getDurabilityMode().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown durability.mode '{}', forcing each file", config.getDurabilityMode());
+            mode = Mode.FILE;
+        }
+        return new DurabilityPolicy(mode, config.getDurabilityPeriodicBytes(), config.getDurabilityPeriodicMillis());
+    }
+
+    public Mode getMode() { return mode; }
+
+    /**
+     * Start counting the writes to a file being received, which in
+     * PERIODIC mode is then forced as it goes. Close the tracker when the
+     * file is abandoned; publishing the channel stops tracking it too.
+     */
+    public Tracker track(FileChannel channel) {
+        if (mode != Mode.PERIODIC) {
+            return UNTRACKED;
+        }
+        Tracker tracker = new Tracker(this, channel);
+        tracked.add(tracker);
+        return tracker;
+    }
+
+    /**
+     * Make a complete staged file durable as this policy asks, close it
+     * and rename it over its target.
+     */
+    public void publish(FileChannel channel, Path staged, Path target) throws IOException {
+        try {
+            publishAsync(channel, staged, target).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the directory sync");
+        } catch (ExecutionException e) {
+            throw new IOException("Directory sync failed", e.getCause());
+        }
+    }
+
+    /**
+     * Like publish, but return once the file is renamed, with a future that
+     * completes when the rename is as durable as the policy asks. Callers
+     * that must not block, like event loops, wait on the future instead.
+     */
+    public CompletableFuture<Void> publishAsync(FileChannel channel, Path staged, Path target) throws IOException {
+        untrack(channel);
+        if (mode == Mode.FILE) {
+            channel.force(true);
+        }
+        channel.close();
+        StagingFiles.move(staged, target);
+        switch (mode) {
+            case FILE:
+                DirectorySync sync = new DirectorySync(target.toAbsolutePath().getParent());
+                directorySyncs.add(sync);
+                if (closed) {
+                    // The committer may be gone, so sync on this thread
+                    StagingFiles.forceDirectory(sync.directory);
+                    sync.done.complete(null);
+                }
+                return sync.done;
+            case PERIODIC:
+                published.add(target);
+                return CompletableFuture.completedFuture(null);
+            default:
+                return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Stop the committer and the flusher after a last flush of everything
+     * still waiting.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (committer != null) {
+            committer.interrupt();
+            try {
+                committer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            completeDirectorySyncs(drainDirectorySyncs());
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flush();
+        }
+    }
+
+    /**
+     * The writes to one file being received. In other modes than PERIODIC
+     * this does nothing.
+     */
+    public static final class Tracker implements Closeable {
+        private final DurabilityPolicy policy;
+        private final FileChannel channel;
+        private final AtomicLong unforced = new AtomicLong();
+        private final AtomicBoolean forceQueued = new AtomicBoolean();
+
+        Tracker(DurabilityPolicy policy, FileChannel channel) {
+            this.policy = policy;
+            this.channel = channel;
+        }
+
+        /**
+         * Count bytes just written. Once enough are unforced, the flusher
+         * forces the file, off the writing thread.
+         */
+        public void written(long bytes) {
+            if (policy == null) {
+                return;
+            }
+            if (unforced.addAndGet(bytes) >= policy.periodicBytes && forceQueued.compareAndSet(false, true)) {
+                try {
+                    policy.flusher.execute(() -> policy.force(this));
+                } catch (RejectedExecutionException e) {
+                    forceQueued.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (policy != null) {
+                policy.tracked.remove(this);
+            }
+        }
+    }
+
+    // Private helper methods
+
+    private void untrack(FileChannel channel) {
+        if (!tracked.isEmpty()) {
+            tracked.removeIf(tracker -> tracker.channel == channel);
+        }
+    }
+
+    /**
+     * The committer: wait for renames, then sync each of their directories
+     * once for the whole batch that queued up meanwhile.
+     */
+    private void commitDirectories() {
+        while (!closed) {
+            List<DirectorySync> batch = new ArrayList<>();
+            try {
+                batch.add(directorySyncs.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            directorySyncs.drainTo(batch);
+            completeDirectorySyncs(batch);
+        }
+    }
+
+    private List<DirectorySync> drainDirectorySyncs() {
+        List<DirectorySync> batch = new ArrayList<>();
+        directorySyncs.drainTo(batch);
+        return batch;
+    }
+
+    private static void completeDirectorySyncs(List<DirectorySync> batch) {
+        Map<Path, List<DirectorySync>> byDirectory = new LinkedHashMap<>();
+        for (DirectorySync sync : batch) {
+            byDirectory.computeIfAbsent(sync.directory, directory -> new ArrayList<>()).add(sync);
+        }
+        for (Map.Entry<Path, List<DirectorySync>> entry : byDirectory.entrySet()) {
+            StagingFiles.forceDirectory(entry.getKey());
+            entry.getValue().forEach(sync -> sync.done.complete(null));
+        }
+    }
+
+    /**
+     * One periodic flush: force every tracked file with unforced writes,
+     * then every file published since the last flush and, once each,
+     * their directories.
+     */
+    private void flush() {
+        for (Tracker tracker : tracked) {
+            if (tracker.unforced.get() > 0) {
+                force(tracker);
+            }
+        }
+        List<Path> batch = new ArrayList<>();
+        published.drainTo(batch);
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Path path : batch) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // Replaced or removed since, so there is nothing left to force
+            } catch (IOException e) {
+                logger.warn("Cannot force {}: {}", path, e.getMessage());
+            }
+            directories.add(path.toAbsolutePath().getParent());
+        }
+        directories.forEach(StagingFiles::forceDirectory);
+    }
+
+    private void force(Tracker tracker) {
+        long forcing = tracker.unforced.getAndSet(0);
+        tracker.forceQueued.set(false);
+        try {
+            tracker.channel.force(false);
+        } catch (ClosedChannelException e) {
+            // Published or abandoned in the meantime
+            tracked.remove(tracker);
+        } catch (IOException e) {
+            tracker.unforced.addAndGet(forcing);
+            logger.warn("Cannot force a file being received: {}", e.getMessage());
+        }
+    }
+
+    private static final class DirectorySync {
+        final Path directory;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        DirectorySync(Path directory) {
+            this.directory = directory;
+        }
+    }
+}
@@ -4,11 +4,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.CRC32;
@@ -21,29 +34,81 @@ public class FileTransferService {
     private static final Logger logger = LoggerFactory.getLogger(FileTransferService.class);
     
     // Configuration constants
-    private static final int DEFAULT_BUFFER_SIZE = 131072; // 128KB
     private static final int DEFAULT_PORT = 8889;
-    private static final int MAX_CONCURRENT_TRANSFERS = 4;
     private static final long TRANSFER_TIMEOUT_MS = 300000; // 5 minutes
+    private static final long ZERO_COPY_SLICE_SIZE = 8L * 1024 * 1024; // 8MB per transferTo call
+    private static final long SHAPED_SLICE_SIZE = 256 * 1024; // Per transferTo call under a rate limit
     
     // Service state
-    private final ExecutorService executorService;
+    private final TransferConfig config;
+    private final TransferTuner tuner;
+    private final BufferPool bufferPool;
+    private final DurabilityPolicy durability;
+    private final TransferScheduler scheduler;
+    private volatile SendMode sendMode = SendMode.AUTO;
+    private final TransferExecutor executor;
+    private final boolean ownsExecutor;
+    private final ParallelTransferEngine parallelEngine;
+    private final SocketTransport socketTransport;
+    private final TransferTransport transport;
     private final ConcurrentHashMap<String, TransferProgress> activeTransfers;
+    private final ConcurrentHashMap<String, TrackedProgress> trackedProgress = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService progressTicker;
+    private final TransferMetrics metrics = new TransferMetrics();
     private final CopyOnWriteArrayList<TransferProgressListener> progressListeners;
     private final CopyOnWriteArrayList<TransferCompletionListener> completionListeners;
     
     // Transfer statistics
     private final AtomicLong totalBytesTransferred;
     private final AtomicLong totalFilesTransferred;
+    private final AtomicLong transferSequence = new AtomicLong();
     
     public FileTransferService() {
-        this.executorService = Executors.newFixedThreadPool(MAX_CONCURRENT_TRANSFERS);
+        this(TransferConfig.load());
+    }
+    
+    public FileTransferService(TransferConfig config) {
+        this(config, TransferExecutor.create(config), true);
+    }
+    
+    /**
+     * Create a service that runs its transfers on a shared executor, which
+     * the caller shuts down.
+     */
+    public FileTransferService(TransferConfig config, TransferExecutor executor) {
+        this(config, executor, false);
+    }
+    
+    private FileTransferService(TransferConfig config, TransferExecutor executor, boolean ownsExecutor) {
+        this.config = config;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.tuner = new TransferTuner(config);
+        this.scheduler = TransferScheduler.create(config);
+        this.bufferPool = BufferPool.create(config);
+        this.durability = DurabilityPolicy.create(config);
+        this.parallelEngine = new ParallelTransferEngine(config, tuner, bufferPool, durability, executor,
+            (int) TRANSFER_TIMEOUT_MS);
+        this.socketTransport = new SocketTransport();
+        this.transport = createTransport(config.getTransportType());
         this.activeTransfers = new ConcurrentHashMap<>();
         this.progressListeners = new CopyOnWriteArrayList<>();
         this.completionListeners = new CopyOnWriteArrayList<>();
         this.totalBytesTransferred = new AtomicLong(0);
         this.totalFilesTransferred = new AtomicLong(0);
         
+        // Listeners run on the ticker, never in the copy loops
+        this.progressTicker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, 1000 / config.getProgressUpdateRate());
+        progressTicker.scheduleAtFixedRate(this::publishProgress, period, period, TimeUnit.MILLISECONDS);
+        if (config.isMetricsJmxEnabled()) {
+            metrics.registerMBean();
+        }
+        
         logger.info("FileTransferService initialized");
     }
     
@@ -51,33 +116,34 @@ public class FileTransferService {
      * Send a file to a remote host with progress reporting.
      */
     public Future<TransferResult> sendFileAsync(File file, String host, int port) {
-        return executorService.submit(() -> {
-            String transferId = generateTransferId();
-            TransferProgress progress = new TransferProgress(transferId, file.toPath(), TransferType.SEND);
-            activeTransfers.put(transferId, progress);
-            
-            try {
-                logger.info("Starting file send: {} -> {}:{}", file.getName(), host, port);
-                
-                sendFileWithProgress(file, host, port, progress);
-                
-                TransferResult result = new TransferResult(transferId, true, null, file.length());
-                activeTransfers.remove(transferId);
-                totalFilesTransferred.incrementAndGet();
-                totalBytesTransferred.addAndGet(file.length());
-                
-                logger.info("File send completed: {} ({} bytes)", file.getName(), file.length());
-                notifyCompletionListeners(result);
-                
-                return result;
-                
-            } catch (Exception e) {
-                logger.error("File send failed: {}", file.getName(), e);
-                TransferResult result = new TransferResult(transferId, false, e.getMessage(), 0);
-                activeTransfers.remove(transferId);
-                notifyCompletionListeners(result);
-                throw new RuntimeException("File send failed", e);
+        return sendFileAsync(file, host, port, TransferScheduler.Priority.NORMAL);
+    }
+    
+    /**
+     * Send a file to a remote host in the given priority class.
+     */
+    public Future<TransferResult> sendFileAsync(File file, String host, int port,
+                                                TransferScheduler.Priority priority) {
+        String transferId = generateTransferId();
+        TransferProgress progress = new TransferProgress(transferId, file.toPath(), TransferType.SEND);
+        activeTransfers.put(transferId, progress);
+        logger.info("Starting file send: {} -> {}:{}", file.getName(), host, port);
+        
+        return startSend(file, host, port, progress, priority).handle((ignored, error) -> {
+            activeTransfers.remove(transferId);
+            if (error != null) {
+                Throwable cause = unwrap(error);
+                logger.error("File send failed: {}", file.getName(), cause);
+                notifyCompletionListeners(new TransferResult(transferId, false, cause.getMessage(), 0));
+                throw new CompletionException(new RuntimeException("File send failed", cause));
             }
+            TransferResult result = new TransferResult(transferId, true, null, file.length());
+            totalFilesTransferred.incrementAndGet();
+            totalBytesTransferred.addAndGet(file.length());
+            
+            logger.info("File send completed: {} ({} bytes)", file.getName(), file.length());
+            notifyCompletionListeners(result);
+            return result;
         });
     }
     
@@ -85,33 +151,34 @@ public class FileTransferService {
      * Receive a file on the given port with progress reporting.
      */
     public Future<TransferResult> receiveFileAsync(int port, String saveDirectory) {
-        return executorService.submit(() -> {
-            String transferId = generateTransferId();
-            TransferProgress progress = new TransferProgress(transferId, null, TransferType.RECEIVE);
-            activeTransfers.put(transferId, progress);
-            
-            try {
-                logger.info("Starting file receive on port: {}", port);
-                
-                File receivedFile = receiveFileWithProgress(port, saveDirectory, progress);
-                
-                TransferResult result = new TransferResult(transferId, true, null, receivedFile.length());
-                activeTransfers.remove(transferId);
-                totalFilesTransferred.incrementAndGet();
-                totalBytesTransferred.addAndGet(receivedFile.length());
-                
-                logger.info("File receive completed: {} ({} bytes)", receivedFile.getName(), receivedFile.length());
-                notifyCompletionListeners(result);
-                
-                return result;
-                
-            } catch (Exception e) {
-                logger.error("File receive failed on port: {}", port, e);
-                TransferResult result = new TransferResult(transferId, false, e.getMessage(), 0);
-                activeTransfers.remove(transferId);
-                notifyCompletionListeners(result);
-                throw new RuntimeException("File receive failed", e);
+        return receiveFileAsync(port, saveDirectory, TransferScheduler.Priority.NORMAL);
+    }
+    
+    /**
+     * Receive a file on the given port in the given priority class.
+     */
+    public Future<TransferResult> receiveFileAsync(int port, String saveDirectory,
+                                                   TransferScheduler.Priority priority) {
+        String transferId = generateTransferId();
+        TransferProgress progress = new TransferProgress(transferId, null, TransferType.RECEIVE);
+        activeTransfers.put(transferId, progress);
+        logger.info("Starting file receive on port: {}", port);
+        
+        return startReceive(port, saveDirectory, progress, priority).handle((receivedFile, error) -> {
+            activeTransfers.remove(transferId);
+            if (error != null) {
+                Throwable cause = unwrap(error);
+                logger.error("File receive failed on port: {}", port, cause);
+                notifyCompletionListeners(new TransferResult(transferId, false, cause.getMessage(), 0));
+                throw new CompletionException(new RuntimeException("File receive failed", cause));
             }
+            TransferResult result = new TransferResult(transferId, true, null, receivedFile.length());
+            totalFilesTransferred.incrementAndGet();
+            totalBytesTransferred.addAndGet(receivedFile.length());
+            
+            logger.info("File receive completed: {} ({} bytes)", receivedFile.getName(), receivedFile.length());
+            notifyCompletionListeners(result);
+            return result;
         });
     }
     
@@ -120,7 +187,7 @@ public class FileTransferService {
      */
     public void sendFile(File file, String host, int port) throws IOException {
         TransferProgress progress = new TransferProgress(generateTransferId(), file.toPath(), TransferType.SEND);
-        sendFileWithProgress(file, host, port, progress);
+        await(startSend(file, host, port, progress, TransferScheduler.Priority.NORMAL));
     }
     
     /**
@@ -128,103 +195,95 @@ public class FileTransferService {
      */
     public File receiveFile(int port, String saveDirectory) throws IOException {
         TransferProgress progress = new TransferProgress(generateTransferId(), null, TransferType.RECEIVE);
-        return receiveFileWithProgress(port, saveDirectory, progress);
+        return await(startReceive(port, saveDirectory, progress, TransferScheduler.Priority.NORMAL));
     }
     
     /**
      * Send a file over an existing Socket with progress reporting.
+     * The file is sent as a one-file session, so the socket stays open
+     * for the next transfer.
      */
     public void sendFileOverSocket(File file, Socket socket) throws IOException {
-        TransferProgress progress = new TransferProgress(generateTransferId(), file.toPath(), TransferType.SEND);
-        if (!file.exists()) {
-            throw new FileNotFoundException("File not found: " + file.getAbsolutePath());
+        TransferResult result = sendFilesOverSocket(List.of(file), socket).get(0);
+        if (!result.isSuccess()) {
+            throw new IOException("Receiver rejected " + file.getName() + ": " + result.getErrorMessage());
         }
-        socket.setSendBufferSize(DEFAULT_BUFFER_SIZE);
-        try (FileInputStream fis = new FileInputStream(file);
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-            socket.setSoTimeout((int) TRANSFER_TIMEOUT_MS);
-            dos.writeUTF(file.getName());
-            dos.writeLong(file.length());
-            dos.writeLong(calculateFileChecksum(file.toPath()));
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            long totalSent = 0;
-            long fileSize = file.length();
-            long startTime = System.currentTimeMillis();
-            int bytesRead;
-            long lastUpdate = System.currentTimeMillis();
-            double lastPercent = 0;
-            while ((bytesRead = fis.read(buffer)) != -1 && !progress.isCancelled()) {
-                dos.write(buffer, 0, bytesRead);
-                totalSent += bytesRead;
-                double percent = (double) totalSent / fileSize * 100;
-                long now = System.currentTimeMillis();
-                if (percent - lastPercent >= 1.0 || now - lastUpdate >= 100) {
-                    progress.setBytesTransferred(totalSent);
-                    progress.setSpeed(calculateSpeed(totalSent, startTime));
-                    progress.setProgressPercentage(percent);
-                    notifyProgressListeners(progress);
-                    lastUpdate = now;
-                    lastPercent = percent;
-                }
-            }
-            dos.flush();
-            if (progress.isCancelled()) {
-                throw new IOException("Transfer was cancelled");
+    }
+    
+    /**
+     * Send a batch of files over an existing Socket as one session: a
+     * manifest, then the files back to back, acknowledged per file by the
+     * receiver. Returns one result per file; the socket stays open.
+     */
+    public List<TransferResult> sendFilesOverSocket(List<File> files, Socket socket) throws IOException {
+        for (File file : files) {
+            if (!file.exists()) {
+                throw new FileNotFoundException("File not found: " + file.getAbsolutePath());
             }
         }
+        List<String> names = new ArrayList<>(files.size());
+        files.forEach(file -> names.add(file.getName()));
+        return sendSessionOverSocket(files, names, socket);
+    }
+    
+    /**
+     * Send every file under a directory over an existing Socket as one
+     * session, so the receiver rebuilds the tree in its save directory.
+     * Small files travel packed into one continuous stream. Returns one
+     * result per file in the order of the tree's entries.
+     */
+    public List<TransferResult> sendDirectoryOverSocket(File directory, Socket socket) throws IOException {
+        return sendDirectoryOverSocket(DirectoryTree.walk(directory, executor.getHashPool()), socket);
+    }
+
+    /**
+     * Send the files of a directory tree that is already listed.
+     */
+    public List<TransferResult> sendDirectoryOverSocket(DirectoryTree tree, Socket socket) throws IOException {
+        List<File> files = new ArrayList<>(tree.getEntries().size());
+        List<String> names = new ArrayList<>(tree.getEntries().size());
+        for (DirectoryTree.Entry entry : tree.getEntries()) {
+            files.add(entry.getFile());
+            names.add(entry.getName());
+        }
+        logger.info("Sending {} files under {}", files.size(), tree.getRoot());
+        return sendSessionOverSocket(files, names, socket);
     }
 
     /**
      * Receive a file over an existing Socket with progress reporting.
+     * If the peer sends a session, the first file that arrived intact is
+     * returned; use receiveFilesOverSocket to get all of them.
      */
     public File receiveFileOverSocket(Socket socket, String saveDirectory) throws IOException {
+        List<File> files = receiveFilesOverSocket(socket, saveDirectory);
+        if (files.isEmpty()) {
+            throw new IOException("No file was received intact");
+        }
+        return files.get(0);
+    }
+    
+    /**
+     * Receive the next transfer over an existing Socket: a session of any
+     * number of files or a single file. The socket stays open.
+     */
+    public List<File> receiveFilesOverSocket(Socket socket, String saveDirectory) throws IOException {
         TransferProgress progress = new TransferProgress(generateTransferId(), null, TransferType.RECEIVE);
-        socket.setReceiveBufferSize(DEFAULT_BUFFER_SIZE);
+        tuner.applyTo(socket);
         Path savePath = Paths.get(saveDirectory);
         if (!Files.exists(savePath)) {
             Files.createDirectories(savePath);
         }
-        try (DataInputStream dis = new DataInputStream(socket.getInputStream())) {
-            socket.setSoTimeout((int) TRANSFER_TIMEOUT_MS);
-            String fileName = dis.readUTF();
-            long fileSize = dis.readLong();
-            long expectedChecksum = dis.readLong();
-            File outFile = new File(saveDirectory, fileName);
-            progress.setFilePath(outFile.toPath());
-            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-                long totalReceived = 0;
-                long startTime = System.currentTimeMillis();
-                int bytesRead;
-                long lastUpdate = System.currentTimeMillis();
-                double lastPercent = 0;
-                while (totalReceived < fileSize && !progress.isCancelled() &&
-                       (bytesRead = dis.read(buffer, 0, (int)Math.min(buffer.length, fileSize - totalReceived))) != -1) {
-                    fos.write(buffer, 0, bytesRead);
-                    totalReceived += bytesRead;
-                    double percent = (double) totalReceived / fileSize * 100;
-                    long now = System.currentTimeMillis();
-                    if (percent - lastPercent >= 1.0 || now - lastUpdate >= 100) {
-                        progress.setBytesTransferred(totalReceived);
-                        progress.setSpeed(calculateSpeed(totalReceived, startTime));
-                        progress.setProgressPercentage(percent);
-                        notifyProgressListeners(progress);
-                        lastUpdate = now;
-                        lastPercent = percent;
-                    }
-                }
-                fos.flush();
-                if (progress.isCancelled()) {
-                    Files.deleteIfExists(outFile.toPath());
-                    throw new IOException("Transfer was cancelled");
-                }
-                long actualChecksum = calculateFileChecksum(outFile.toPath());
-                if (actualChecksum != expectedChecksum) {
-                    Files.deleteIfExists(outFile.toPath());
-                    throw new IOException("File integrity check failed");
-                }
-            }
-            return outFile;
+        socket.setSoTimeout((int) TRANSFER_TIMEOUT_MS);
+        List<File> files = null;
+        track(progress);
+        try (TransferScheduler.Ticket ticket = scheduler.open(progress.getTransferId(), peerOf(socket), 0,
+                TransferScheduler.Priority.NORMAL)) {
+            progress.setTicket(ticket);
+            files = receiveNextTransfer(socket, saveDirectory, progress);
+            return files;
+        } finally {
+            untrack(progress, files != null);
         }
     }
     
@@ -256,6 +315,46 @@ public class FileTransferService {
         return false;
     }
     
+    /**
+     * Move an active or waiting transfer to another priority class.
+     */
+    public boolean setTransferPriority(String transferId, TransferScheduler.Priority priority) {
+        TransferScheduler.Ticket ticket = ticketOf(transferId);
+        if (ticket == null) {
+            return false;
+        }
+        ticket.setPriority(priority);
+        return true;
+    }
+    
+    /**
+     * Limit the rate of one active or waiting transfer; 0 removes the limit.
+     */
+    public boolean setTransferRateLimit(String transferId, long bytesPerSecond) {
+        TransferScheduler.Ticket ticket = ticketOf(transferId);
+        if (ticket == null) {
+            return false;
+        }
+        ticket.setRateLimit(bytesPerSecond);
+        return true;
+    }
+    
+    /**
+     * Limit the combined rate of all transfers with a peer, named as it is
+     * passed to sendFileAsync; 0 removes the limit.
+     */
+    public void setPeerRateLimit(String peer, long bytesPerSecond) {
+        scheduler.setPeerRateLimit(peer, bytesPerSecond);
+    }
+    
+    /**
+     * Set the capacity of the link that lower priority classes yield on;
+     * 0 turns link shaping off.
+     */
+    public void setLinkRate(long bytesPerSecond) {
+        scheduler.setLinkRate(bytesPerSecond);
+    }
+    
     /**
      * Add progress listener.
      */
@@ -284,6 +383,17 @@ public class FileTransferService {
         completionListeners.remove(listener);
     }
     
+    /**
+     * Select how file content is written to the socket.
+     */
+    public void setSendMode(SendMode sendMode) {
+        this.sendMode = sendMode;
+    }
+    
+    public SendMode getSendMode() {
+        return sendMode;
+    }
+    
     /**
      * Get transfer statistics.
      */
@@ -291,10 +401,25 @@ public class FileTransferService {
         return new TransferStatistics(
             totalFilesTransferred.get(),
             totalBytesTransferred.get(),
-            activeTransfers.size()
+            activeTransfers.size(),
+            tuner.getRecentParameters()
         );
     }
     
+    /**
+     * Time accounting, histograms and throughput of transfers.
+     */
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Direct buffers shared by the copy loops of all transfers.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+    
     /**
      * Shutdown the service and cleanup resources.
      */
@@ -305,14 +430,13 @@ public class FileTransferService {
         activeTransfers.keySet().forEach(this::cancelTransfer);
         
         // Shutdown executor service
-        executorService.shutdown();
-        try {
-            if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
-                executorService.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            executorService.shutdownNow();
-            Thread.currentThread().interrupt();
+        transport.shutdown();
+        socketTransport.shutdown();
+        progressTicker.shutdown();
+        metrics.unregisterMBean();
+        durability.close();
+        if (ownsExecutor) {
+            executor.shutdown(5, TimeUnit.SECONDS);
         }
         
         logger.info("FileTransferService shutdown complete");
@@ -320,49 +444,347 @@ public class FileTransferService {
     
     // Private helper methods
     
+    private TransferTransport createTransport(String type) {
+        if (!"netty".equalsIgnoreCase(type)) {
+            if (!"socket".equalsIgnoreCase(type)) {
+                logger.warn("Unknown transport.type '{}', using socket", type);
+            }
+            return socketTransport;
+        }
+        NettyTransport nettyTransport = new NettyTransport(config, tuner, durability, (int) TRANSFER_TIMEOUT_MS);
+        if (usesChunkedTransfers()) {
+            logger.warn("The Netty transport carries single-stream transfers only; "
+                + "with parallel streams, resume, compression or deltas enabled files go over sockets");
+        }
+        return nettyTransport;
+    }
+    
+    /**
+     * Whether this configuration sends files as chunked transfers, which
+     * only the socket transport and the parallel engine can carry.
+     */
+    private boolean usesChunkedTransfers() {
+        return config.isParallelTransferEnabled() || config.isResumeEnabled()
+            || config.isCompressionEnabled() || config.isDeltaTransferEnabled();
+    }
+    
+    private CompletableFuture<Void> startSend(File file, String host, int port, TransferProgress progress,
+                                              TransferScheduler.Priority priority) {
+        TransferScheduler.Ticket ticket = scheduler.open(progress.getTransferId(), host, file.length(), priority);
+        progress.setTicket(ticket);
+        track(progress);
+        TransferTransport selected = usesChunkedTransfer(file) ? socketTransport : transport;
+        return selected.send(file, host, port, progress, progress::update)
+            .whenComplete((ignored, error) -> {
+                ticket.close();
+                untrack(progress, error == null);
+            });
+    }
+    
+    private CompletableFuture<File> startReceive(int port, String saveDirectory, TransferProgress progress,
+                                                 TransferScheduler.Priority priority) {
+        // The sender and size are only known once it connects
+        TransferScheduler.Ticket ticket = scheduler.open(progress.getTransferId(), null, 0, priority);
+        progress.setTicket(ticket);
+        track(progress);
+        // A chunked sender needs the parallel engine behind the socket transport
+        TransferTransport selected = usesChunkedTransfers() ? socketTransport : transport;
+        return selected.receive(port, saveDirectory, progress, progress::update)
+            .whenComplete((file, error) -> {
+                ticket.close();
+                untrack(progress, error == null);
+            });
+    }
+    
+    private TransferScheduler.Ticket ticketOf(String transferId) {
+        TransferProgress progress = activeTransfers.get(transferId);
+        return progress != null ? progress.getTicket() : null;
+    }
+    
+    private static String peerOf(Socket socket) {
+        return socket.getInetAddress() != null ? socket.getInetAddress().getHostAddress() : null;
+    }
+    
+    private boolean usesChunkedTransfer(File file) {
+        return parallelStreamCount(file.length()) > 1 || config.isResumeEnabled()
+            || config.isCompressionEnabled() || config.isDeltaTransferEnabled();
+    }
+    
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+    
+    /**
+     * Wait for a transfer started by a transport and rethrow its failure.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        } catch (CancellationException e) {
+            throw new IOException("Transfer was cancelled", e);
+        }
+    }
+    
+    private List<TransferResult> sendSessionOverSocket(List<File> files, List<String> names,
+                                                       Socket socket) throws IOException {
+        long[] sizes = files.stream().mapToLong(File::length).toArray();
+        long totalSize = Arrays.stream(sizes).sum();
+        String transferId = generateTransferId();
+        TransferProgress progress = new TransferProgress(transferId,
+            files.isEmpty() ? null : files.get(0).toPath(), TransferType.SEND);
+        tuner.applyTo(socket);
+        socket.setSoTimeout((int) TRANSFER_TIMEOUT_MS);
+        
+        long sessionSize = totalSize;
+        List<TransferProtocol.FileAck> acks = null;
+        track(progress);
+        try (TransferScheduler.Ticket ticket = scheduler.open(transferId, peerOf(socket), totalSize,
+                TransferScheduler.Priority.NORMAL)) {
+            progress.setTicket(ticket);
+            acks = parallelEngine.sendSession(files, names, socket, resolveSendMode(), progress,
+                bytes -> progress.update(bytes, sessionSize));
+        } finally {
+            untrack(progress, acks != null);
+        }
+        
+        List<TransferResult> results = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            TransferProtocol.FileAck ack = acks.get(i);
+            long bytes = ack.isSuccess() ? sizes[i] : 0;
+            results.add(new TransferResult(transferId, ack.isSuccess(), ack.getMessage(), bytes));
+        }
+        return results;
+    }
+
+    private List<File> receiveNextTransfer(Socket socket, String saveDirectory,
+                                           TransferProgress progress) throws IOException {
+        DataInputStream dis = new DataInputStream(socket.getInputStream());
+        int flags = TransferProtocol.readPreamble(dis);
+        if ((flags & TransferProtocol.FLAG_SESSION) != 0) {
+            // Nothing follows the manifest until it is answered, so it can be read ahead
+            DataInputStream manifest = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            List<TransferProtocol.FileHeader> headers = TransferProtocol.readManifest(manifest, flags);
+            long sessionSize = headers.stream().mapToLong(TransferProtocol.FileHeader::getFileSize).sum();
+            return parallelEngine.receiveSession(headers, socket, saveDirectory, progress,
+                bytes -> progress.update(bytes, sessionSize));
+        }
+        TransferProtocol.FileHeader header = TransferProtocol.readHeader(dis, flags);
+        if (header.hasFlag(TransferProtocol.FLAG_CHUNKED)) {
+            return List.of(receiveChunked(header, socket, null, saveDirectory, progress));
+        }
+        return List.of(receiveContent(socket, dis, header, saveDirectory, progress));
+    }
+    
     private void sendFileWithProgress(File file, String host, int port, TransferProgress progress) throws IOException {
         if (!file.exists()) {
             throw new FileNotFoundException("File not found: " + file.getAbsolutePath());
         }
         
-        try (Socket socket = new Socket(host, port);
-             FileInputStream fis = new FileInputStream(file);
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-            
+        // Resume, compression and deltas work on chunked transfers
+        if (usesChunkedTransfer(file)) {
+            parallelEngine.send(file, host, port, Math.max(parallelStreamCount(file.length()), 1),
+                resolveSendMode(), progress, bytes -> progress.update(bytes, file.length()));
+            return;
+        }
+        
+        try (SocketChannel channel = SocketChannel.open()) {
+            Socket socket = channel.socket();
+            // Buffers sized before connecting take part in window scaling
+            tuner.applyTo(socket);
+            channel.connect(new InetSocketAddress(host, port));
             socket.setSoTimeout((int) TRANSFER_TIMEOUT_MS);
             
-            // Send file metadata
-            dos.writeUTF(file.getName());
-            dos.writeLong(file.length());
-            dos.writeLong(calculateFileChecksum(file.toPath()));
-            
-            // Send file content with progress
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            long totalSent = 0;
-            long fileSize = file.length();
-            long startTime = System.currentTimeMillis();
-            
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1 && !progress.isCancelled()) {
-                dos.write(buffer, 0, bytesRead);
-                totalSent += bytesRead;
-                
-                // Update progress
-                progress.setBytesTransferred(totalSent);
-                progress.setSpeed(calculateSpeed(totalSent, startTime));
-                progress.setProgressPercentage((double) totalSent / fileSize * 100);
-                
-                notifyProgressListeners(progress);
-            }
-            
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            transmitFile(file, socket, dos, progress);
+        }
+    }
+    
+    /**
+     * Write the file header and content to the socket, choosing the
+     * zero-copy or stream path according to the current send mode.
+     */
+    private void transmitFile(File file, Socket socket, DataOutputStream dos, TransferProgress progress) throws IOException {
+        // The checksum is computed while the content streams and sent as a trailer
+        CRC32 crc32 = config.isChecksumEnabled() ? new CRC32() : null;
+        int flags = crc32 != null ? TransferProtocol.FLAG_CHECKSUM_TRAILER : 0;
+        
+        // Send file metadata
+        TransferProtocol.writeHeader(dos, new TransferProtocol.FileHeader(file.getName(), file.length(), flags));
+        dos.flush();
+        
+        SocketChannel channel = socket.getChannel();
+        SendMode mode = channel != null ? resolveSendMode() : SendMode.STREAM;
+        if (mode == SendMode.MAPPED && progress.isShaped()) {
+            // Mapped windows are too large to pace evenly
+            mode = SendMode.ZERO_COPY;
+        }
+        if (DirectIO.applies(config, file.length())) {
+            // Zero-copy and mapped sends both read through the page cache
+            mode = SendMode.STREAM;
+        }
+        if (mode == SendMode.ZERO_COPY) {
+            sendZeroCopy(file, channel, crc32, progress);
+        } else if (mode == SendMode.MAPPED) {
+            sendMapped(file, channel, crc32, progress);
+        } else {
+            sendStream(file, channel != null ? channel : Channels.newChannel(dos), crc32, progress);
+        }
+        
+        if (progress.isCancelled()) {
+            throw new IOException("Transfer was cancelled");
+        }
+        
+        if (crc32 != null) {
+            dos.writeLong(crc32.getValue());
             dos.flush();
-            
-            if (progress.isCancelled()) {
-                throw new IOException("Transfer was cancelled");
+        }
+    }
+    
+    /**
+     * Copy file content through a pooled direct buffer into the channel,
+     * with the file read ahead of the copy. Files large enough for direct
+     * I/O are read around the page cache into an aligned buffer instead,
+     * and not read ahead.
+     */
+    private void sendStream(File file, WritableByteChannel out, CRC32 crc32, TransferProgress progress) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             DirectIO direct = DirectIO.open(config, file.toPath(), fileChannel.size(), fileChannel,
+                 StandardOpenOption.READ);
+             ReadAhead readAhead = direct != null ? ReadAhead.none() : readAhead(fileChannel)) {
+            ByteBuffer buffer = direct != null
+                ? direct.allocate(tuner.getBufferSize())
+                : bufferPool.acquire(tuner.getBufferSize());
+            try {
+                long totalSent = 0;
+                long fileSize = fileChannel.size();
+                TransferMetrics.Recorder metrics = progress.getMetrics();
+                readAhead.advance(0);
+                long mark = System.nanoTime();
+                int bytesRead;
+                while ((bytesRead = direct != null
+                           ? direct.read(buffer.clear(), totalSent)
+                           : fileChannel.read(buffer.clear())) != -1
+                       && !progress.isCancelled()) {
+                    mark = metrics.disk(mark);
+                    buffer.flip();
+                    if (crc32 != null) {
+                        crc32.update(buffer);
+                        buffer.rewind();
+                        mark = metrics.checksum(mark);
+                    }
+                    progress.pace(bytesRead);
+                    mark = metrics.throttle(mark);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    mark = metrics.socket(mark);
+                    totalSent += bytesRead;
+                    readAhead.advance(totalSent);
+                    progress.update(totalSent, fileSize);
+                }
+            } finally {
+                if (direct == null) {
+                    bufferPool.release(buffer);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Hand file content to the kernel with FileChannel.transferTo so it never
+     * passes through the JVM heap. Progress is reported after every slice.
+     * The checksum is taken from a mapping of the slice just sent, which is
+     * still in the page cache, so the disk is only read once.
+     */
+    private void sendZeroCopy(File file, SocketChannel channel, CRC32 crc32, TransferProgress progress) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             ReadAhead readAhead = readAhead(fileChannel)) {
+            long fileSize = fileChannel.size();
+            long position = 0;
+            TransferMetrics.Recorder metrics = progress.getMetrics();
+            while (position < fileSize && !progress.isCancelled()) {
+                readAhead.advance(position);
+                long count = Math.min(progress.isShaped() ? SHAPED_SLICE_SIZE : ZERO_COPY_SLICE_SIZE,
+                    fileSize - position);
+                long mark = System.nanoTime();
+                progress.pace(count);
+                mark = metrics.throttle(mark);
+                long sent = fileChannel.transferTo(position, count, channel);
+                mark = metrics.socket(mark);
+                if (sent <= 0) {
+                    throw new IOException("File truncated during transfer: " + file.getAbsolutePath());
+                }
+                if (crc32 != null) {
+                    MappedByteBuffer slice = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, sent);
+                    crc32.update(slice);
+                    metrics.checksum(mark);
+                }
+                position += sent;
+                progress.update(position, fileSize);
             }
         }
     }
     
+    /**
+     * Read-ahead for a single-stream send, in units of the tuned chunk size.
+     */
+    private ReadAhead readAhead(FileChannel fileChannel) throws IOException {
+        return ReadAhead.create(config, fileChannel, fileChannel.size(), tuner.getChunkSize(), bufferPool,
+            executor::runBackground);
+    }
+    
+    /**
+     * Number of connections to use for a file, or 1 for a single stream.
+     */
+    private int parallelStreamCount(long fileSize) {
+        if (!config.isParallelTransferEnabled()) {
+            return 1;
+        }
+        long chunks = (fileSize + tuner.getChunkSize() - 1) / tuner.getChunkSize();
+        return (int) Math.min(config.getConcurrentStreams(), chunks);
+    }
+    
+    /**
+     * Send file content from memory-mapped windows of the source.
+     */
+    private void sendMapped(File file, SocketChannel channel, CRC32 crc32, TransferProgress progress) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             ReadAhead readAhead = readAhead(fileChannel)) {
+            long fileSize = fileChannel.size();
+            long[] sent = {0};
+            readAhead.advance(0);
+            MappedFileIO.send(fileChannel, 0, fileSize, channel, null, crc32, progress.getMetrics(),
+                bufferPool, bytes -> {
+                    long mark = System.nanoTime();
+                    progress.pace(bytes);
+                    progress.getMetrics().throttle(mark);
+                    sent[0] += bytes;
+                    readAhead.advance(sent[0]);
+                    progress.update(sent[0], fileSize);
+                });
+        }
+    }
+    
+    /**
+     * Resolve AUTO to the concrete path used for the next send.
+     */
+    private SendMode resolveSendMode() {
+        if (sendMode != SendMode.AUTO) {
+            return sendMode;
+        }
+        if (config.isCompressionEnabled()) {
+            // Neither zero-copy nor mapped sends can apply a transform to the bytes in flight
+            return SendMode.STREAM;
+        }
+        return config.isMemoryMappedIoEnabled() ? SendMode.MAPPED : SendMode.ZERO_COPY;
+    }
+    
     private File receiveFileWithProgress(int port, String saveDirectory, TransferProgress progress) throws IOException {
         // Ensure save directory exists
         Path savePath = Paths.get(saveDirectory);
@@ -370,85 +792,240 @@ public class FileTransferService {
             Files.createDirectories(savePath);
         }
         
-        try (ServerSocket serverSocket = new ServerSocket(port);
-             Socket clientSocket = serverSocket.accept();
-             DataInputStream dis = new DataInputStream(clientSocket.getInputStream())) {
-            
-            clientSocket.setSoTimeout((int) TRANSFER_TIMEOUT_MS);
-            
-            // Read file metadata
-            String fileName = dis.readUTF();
-            long fileSize = dis.readLong();
-            long expectedChecksum = dis.readLong();
-            
-            File outFile = new File(saveDirectory, fileName);
-            progress.setFilePath(outFile.toPath());
-            
-            // Receive file content with progress
-            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-                long totalReceived = 0;
-                long startTime = System.currentTimeMillis();
-                
-                int bytesRead;
-                while (totalReceived < fileSize && !progress.isCancelled() && 
-                       (bytesRead = dis.read(buffer, 0, (int)Math.min(buffer.length, fileSize - totalReceived))) != -1) {
-                    fos.write(buffer, 0, bytesRead);
-                    totalReceived += bytesRead;
-                    
-                    // Update progress
-                    progress.setBytesTransferred(totalReceived);
-                    progress.setSpeed(calculateSpeed(totalReceived, startTime));
-                    progress.setProgressPercentage((double) totalReceived / fileSize * 100);
-                    
-                    notifyProgressListeners(progress);
+        // Channel-backed sockets allow mapped receives
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            ServerSocket serverSocket = serverChannel.socket();
+            // Accepted sockets inherit the receive buffer, and its size sets the window scale
+            serverSocket.setReceiveBufferSize(tuner.getSocketBufferSize());
+            serverChannel.bind(new InetSocketAddress(port));
+            try (Socket clientSocket = serverSocket.accept();
+                 DataInputStream dis = new DataInputStream(clientSocket.getInputStream())) {
+                clientSocket.setSoTimeout((int) TRANSFER_TIMEOUT_MS);
+                progress.getMetrics().connected();
+                if (progress.getTicket() != null) {
+                    progress.getTicket().setPeer(peerOf(clientSocket));
                 }
-                
-                fos.flush();
-                
-                if (progress.isCancelled()) {
-                    Files.deleteIfExists(outFile.toPath());
-                    throw new IOException("Transfer was cancelled");
+                TransferProtocol.FileHeader header = TransferProtocol.readHeader(dis);
+                if (header.hasFlag(TransferProtocol.FLAG_CHUNKED)) {
+                    return receiveChunked(header, clientSocket, serverSocket, saveDirectory, progress);
                 }
-                
-                // Verify file integrity
-                long actualChecksum = calculateFileChecksum(outFile.toPath());
-                if (actualChecksum != expectedChecksum) {
-                    Files.deleteIfExists(outFile.toPath());
-                    throw new IOException("File integrity check failed");
+                return receiveContent(clientSocket, dis, header, saveDirectory, progress);
+            }
+        }
+    }
+    
+    private File receiveChunked(TransferProtocol.FileHeader header, Socket control, ServerSocket serverSocket,
+                                String saveDirectory, TransferProgress progress) throws IOException {
+        progress.setFilePath(Paths.get(saveDirectory, header.getFileName()));
+        return parallelEngine.receive(header, control, serverSocket, saveDirectory, progress,
+            bytes -> progress.update(bytes, header.getFileSize()));
+    }
+    
+    /**
+     * Read the content of one file into a hidden staging file, verifying
+     * the trailer checksum against the bytes as they arrive, and publish it
+     * under its name once it checks out.
+     */
+    private File receiveContent(Socket socket, DataInputStream dis, TransferProtocol.FileHeader header,
+                                String saveDirectory, TransferProgress progress) throws IOException {
+        long fileSize = header.getFileSize();
+        CRC32 crc32 = header.hasFlag(TransferProtocol.FLAG_CHECKSUM_TRAILER) ? new CRC32() : null;
+        
+        File outFile = StagingFiles.resolveTarget(saveDirectory, header.getFileName());
+        progress.setFilePath(outFile.toPath());
+        
+        Path staged = StagingFiles.create(outFile.toPath());
+        // READ is needed for read-write mappings
+        try (FileChannel fileChannel = FileChannel.open(staged, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             DurabilityPolicy.Tracker tracker = durability.track(fileChannel);
+             DirectIO direct = DirectIO.open(config, staged, fileSize, fileChannel, StandardOpenOption.WRITE)) {
+            StagingFiles.preallocate(fileChannel, fileSize);
+            // Mappings write through the page cache, so direct I/O takes the stream path
+            if (direct == null && config.isMemoryMappedIoEnabled() && socket.getChannel() != null) {
+                receiveMapped(socket.getChannel(), fileChannel, tracker, fileSize, progress, crc32);
+            } else {
+                receiveStream(socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(dis),
+                    fileChannel, direct, tracker, fileSize, progress, crc32);
+            }
+            
+            // Verify file integrity against the trailer
+            if (crc32 != null && dis.readLong() != crc32.getValue()) {
+                throw new IOException("File integrity check failed");
+            }
+            durability.publish(fileChannel, staged, outFile.toPath());
+        } catch (IOException e) {
+            Files.deleteIfExists(staged);
+            throw e;
+        }
+        
+        return outFile;
+    }
+    
+    /**
+     * Read the socket straight into sliding mapped windows of the
+     * preallocated target.
+     */
+    private void receiveMapped(SocketChannel channel, FileChannel fileChannel, DurabilityPolicy.Tracker tracker,
+                               long fileSize, TransferProgress progress, CRC32 crc32) throws IOException {
+        try {
+            long[] received = {0};
+            MappedFileIO.receive(channel, fileChannel, 0, fileSize, crc32, progress.getMetrics(),
+                bufferPool, bytes -> {
+                    long mark = System.nanoTime();
+                    progress.pace(bytes);
+                    progress.getMetrics().throttle(mark);
+                    received[0] += bytes;
+                    tracker.written(bytes);
+                    progress.update(received[0], fileSize);
+                    if (progress.isCancelled()) {
+                        throw new CancellationException();
+                    }
+                });
+        } catch (CancellationException e) {
+            throw new IOException("Transfer was cancelled");
+        }
+    }
+    
+    /**
+     * Read the socket into pooled direct buffers that a ReceivePipeline
+     * writes to the target file, so the socket is drained while the disk
+     * catches up. With direct, which may be null, the writes bypass the
+     * page cache.
+     */
+    private void receiveStream(ReadableByteChannel in, FileChannel fileChannel, DirectIO direct,
+                               DurabilityPolicy.Tracker tracker, long fileSize, TransferProgress progress,
+                               CRC32 crc32) throws IOException {
+        TransferMetrics.Recorder metrics = progress.getMetrics();
+        try (ReceivePipeline pipeline = ReceivePipeline.create(config, fileChannel, direct, fileSize,
+                tuner.getBufferSize(), bufferPool, executor::runBackground, metrics)) {
+            long totalReceived = 0;
+            while (totalReceived < fileSize && !progress.isCancelled()) {
+                ByteBuffer buffer = pipeline.acquire();
+                int wanted = (int) Math.min(buffer.capacity(), fileSize - totalReceived);
+                buffer.limit(wanted);
+                long mark = System.nanoTime();
+                int bytesRead = fill(in, buffer);
+                mark = metrics.socket(mark);
+                buffer.flip();
+                if (crc32 != null) {
+                    crc32.update(buffer);
+                    buffer.rewind();
+                    mark = metrics.checksum(mark);
+                }
+                pipeline.write(buffer, totalReceived);
+                tracker.written(bytesRead);
+                progress.pace(bytesRead);
+                metrics.throttle(mark);
+                totalReceived += bytesRead;
+                progress.update(totalReceived, fileSize);
+                if (bytesRead < wanted) {
+                    break;
                 }
             }
+            pipeline.finish();
             
-            return outFile;
+            if (progress.isCancelled()) {
+                throw new IOException("Transfer was cancelled");
+            }
+            if (totalReceived < fileSize) {
+                throw new EOFException("Connection closed after " + totalReceived + " of " + fileSize + " bytes");
+            }
+        }
+    }
+    
+    /**
+     * Read until the buffer is full or the stream ends, and return the
+     * number of bytes read.
+     */
+    private static int fill(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        // Whole buffers keep the writer's calls few and large
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer.position() - start;
+    }
+    
+    /**
+     * Publish the progress of a transfer from the ticker until untrack.
+     */
+    private void track(TransferProgress progress) {
+        metrics.open(progress);
+        trackedProgress.put(progress.getTransferId(), new TrackedProgress(progress));
+    }
+    
+    /**
+     * Stop publishing a transfer, end its tuner measurement and metrics,
+     * and queue its final snapshot on the ticker.
+     */
+    private void untrack(TransferProgress progress, boolean success) {
+        TrackedProgress tracked = trackedProgress.remove(progress.getTransferId());
+        if (tracked != null) {
+            synchronized (tracked) {
+                tracked.finished = true;
+            }
+        }
+        tuner.finish(progress.getTransferId());
+        metrics.finish(progress, success);
+        if (tracked != null) {
+            try {
+                progressTicker.execute(() -> publish(tracked, System.nanoTime()));
+            } catch (RejectedExecutionException e) {
+                // Shut down, so nobody is listening for the final snapshot
+            }
         }
     }
     
-    private long calculateFileChecksum(Path filePath) throws IOException {
-        CRC32 crc32 = new CRC32();
-        try (InputStream is = Files.newInputStream(filePath)) {
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = is.read(buffer)) != -1) {
-                crc32.update(buffer, 0, bytesRead);
+    /**
+     * One tick of the progress ticker: sample every running transfer for
+     * the tuner and publish what changed since the last tick.
+     */
+    private void publishProgress() {
+        long now = System.nanoTime();
+        for (TrackedProgress tracked : trackedProgress.values()) {
+            try {
+                publish(tracked, now);
+            } catch (RuntimeException e) {
+                logger.error("Error publishing progress of {}", tracked.progress.getTransferId(), e);
             }
         }
-        return crc32.getValue();
+        metrics.tick(now);
     }
     
-    private double calculateSpeed(long bytesTransferred, long startTime) {
-        long elapsed = System.currentTimeMillis() - startTime;
-        if (elapsed == 0) return 0.0;
-        return (bytesTransferred * 1000.0) / (elapsed * 1024.0 * 1024.0); // MB/s
+    private void publish(TrackedProgress tracked, long now) {
+        TransferProgress progress = tracked.progress;
+        long bytes = progress.getBytesTransferred();
+        synchronized (tracked) {
+            if (!tracked.finished) {
+                tuner.sample(progress.getTransferId(), bytes);
+                if (tracked.lastNanos != 0) {
+                    progress.getMetrics().sample(bytes != tracked.lastBytes, now - tracked.lastNanos);
+                }
+            }
+            metrics.addBytes(bytes - tracked.lastBytes, now);
+            // A stalled transfer is published once more, with a speed of 0, a finished one not
+            if (bytes == tracked.lastBytes && tracked.lastNanos != 0 && (tracked.lastSpeed == 0 || tracked.finished)) {
+                return;
+            }
+            double seconds = (now - (tracked.lastNanos != 0 ? tracked.lastNanos : progress.getStartNanos())) / 1e9;
+            tracked.lastSpeed = seconds > 0 ? (bytes - tracked.lastBytes) / seconds / (1024.0 * 1024.0) : 0.0;
+            tracked.lastBytes = bytes;
+            tracked.lastNanos = now;
+        }
+        notifyProgressListeners(progress.snapshot(tracked.lastSpeed));
     }
     
     private String generateTransferId() {
-        return "transfer_" + System.currentTimeMillis() + "_" + Thread.currentThread().getId();
+        // Transfers no longer start on their own pool thread, so the thread id is not unique
+        return "transfer_" + System.currentTimeMillis() + "_" + transferSequence.incrementAndGet();
     }
     
-    private void notifyProgressListeners(TransferProgress progress) {
+    private void notifyProgressListeners(ProgressSnapshot snapshot) {
         progressListeners.forEach(listener -> {
             try {
-                listener.onProgressUpdated(progress);
+                listener.onProgressUpdated(snapshot);
             } catch (Exception e) {
                 logger.error("Error in progress listener", e);
             }
@@ -467,22 +1044,56 @@ public class FileTransferService {
     
     // Inner classes and interfaces
     
+    /**
+     * The blocking transport: one executor thread per transfer, over plain or
+     * chunked transfers. Progress is reported by the transfer methods
+     * themselves.
+     */
+    private class SocketTransport implements TransferTransport {
+        @Override
+        public CompletableFuture<Void> send(File file, String host, int port, TransferProgress progress,
+                                            ProgressCallback onProgress) {
+            return executor.submitTransfer(progress.getTicket(), () -> {
+                sendFileWithProgress(file, host, port, progress);
+                return null;
+            });
+        }
+        
+        @Override
+        public CompletableFuture<File> receive(int port, String saveDirectory, TransferProgress progress,
+                                               ProgressCallback onProgress) {
+            return executor.submitTransfer(progress.getTicket(), () -> receiveFileWithProgress(port, saveDirectory, progress));
+        }
+        
+        @Override
+        public void shutdown() {
+            // The executor is shut down by its owner
+        }
+    }
+    
+    /**
+     * Live state of a transfer. The I/O paths update it with plain atomic
+     * stores; listeners get ProgressSnapshots from the ticker instead.
+     */
     public static class TransferProgress {
         private final String transferId;
-        private Path filePath;
+        private volatile Path filePath;
         private final TransferType type;
         private final long startTime;
+        private final long startNanos;
         
-        private long bytesTransferred;
-        private double speed; // MB/s
-        private double progressPercentage;
-        private boolean cancelled;
+        private final AtomicLong bytesTransferred = new AtomicLong();
+        private volatile long totalBytes;
+        private volatile boolean cancelled;
+        private volatile TransferScheduler.Ticket ticket;
+        private volatile TransferMetrics.Recorder metrics = new TransferMetrics.Recorder();
         
         public TransferProgress(String transferId, Path filePath, TransferType type) {
             this.transferId = transferId;
             this.filePath = filePath;
             this.type = type;
             this.startTime = System.currentTimeMillis();
+            this.startNanos = System.nanoTime();
         }
         
         // Getters and setters
@@ -490,16 +1101,77 @@ public class FileTransferService {
         public Path getFilePath() { return filePath; }
         public TransferType getType() { return type; }
         public long getStartTime() { return startTime; }
-        public long getBytesTransferred() { return bytesTransferred; }
-        public double getSpeed() { return speed; }
-        public double getProgressPercentage() { return progressPercentage; }
+        public long getStartNanos() { return startNanos; }
+        public long getBytesTransferred() { return bytesTransferred.get(); }
+        public long getTotalBytes() { return totalBytes; }
         public boolean isCancelled() { return cancelled; }
+        public TransferScheduler.Ticket getTicket() { return ticket; }
+        public TransferMetrics.Recorder getMetrics() { return metrics; }
         
         public void setFilePath(Path filePath) { this.filePath = filePath; }
-        public void setBytesTransferred(long bytesTransferred) { this.bytesTransferred = bytesTransferred; }
-        public void setSpeed(double speed) { this.speed = speed; }
-        public void setProgressPercentage(double progressPercentage) { this.progressPercentage = progressPercentage; }
         public void setCancelled(boolean cancelled) { this.cancelled = cancelled; }
+        public void setTicket(TransferScheduler.Ticket ticket) { this.ticket = ticket; }
+        public void setMetrics(TransferMetrics.Recorder metrics) { this.metrics = metrics; }
+        
+        /**
+         * Record how far the transfer is. Called from the I/O loops, so it
+         * only stores the counters.
+         */
+        public void update(long bytesTransferred, long totalBytes) {
+            if (this.totalBytes != totalBytes) {
+                this.totalBytes = totalBytes;
+            }
+            this.bytesTransferred.lazySet(bytesTransferred);
+        }
+        
+        /**
+         * Average speed since the start, in MB/s.
+         */
+        public double getSpeed() {
+            long elapsed = getElapsedTime();
+            return elapsed > 0 ? getBytesTransferred() * 1000.0 / (elapsed * 1024.0 * 1024.0) : 0.0;
+        }
+        
+        public double getProgressPercentage() {
+            long total = totalBytes;
+            return total > 0 ? (double) getBytesTransferred() / total * 100 : 100.0;
+        }
+        
+        /**
+         * Immutable copy of the current state with the given recent speed.
+         */
+        public ProgressSnapshot snapshot(double speed) {
+            return new ProgressSnapshot(transferId, filePath, type, getBytesTransferred(), totalBytes,
+                speed, getElapsedTime());
+        }
+        
+        /**
+         * Wait as long as the scheduler's rate limits require before or
+         * after moving bytes of this transfer.
+         */
+        public void pace(long bytes) {
+            TransferScheduler.Ticket current = ticket;
+            if (current != null) {
+                current.pace(bytes, this::isCancelled);
+            }
+        }
+        
+        /**
+         * For paths that must not block: take rate tokens for bytes and
+         * return 0, or return the nanoseconds to wait before asking again.
+         */
+        public long reserve(long bytes) {
+            TransferScheduler.Ticket current = ticket;
+            return current != null ? current.reserve(bytes) : 0;
+        }
+        
+        /**
+         * Whether a rate limit applies, so data should move in small pieces.
+         */
+        public boolean isShaped() {
+            TransferScheduler.Ticket current = ticket;
+            return current != null && current.isShaped();
+        }
         
         public String getFileName() {
             return filePath != null ? filePath.getFileName().toString() : "Unknown";
@@ -510,6 +1182,61 @@ public class FileTransferService {
         }
     }
     
+    /**
+     * The progress of a transfer at one tick, as handed to listeners.
+     */
+    public static class ProgressSnapshot {
+        private final String transferId;
+        private final Path filePath;
+        private final TransferType type;
+        private final long bytesTransferred;
+        private final long totalBytes;
+        private final double speed; // MB/s since the previous snapshot
+        private final long elapsedTime;
+        
+        public ProgressSnapshot(String transferId, Path filePath, TransferType type, long bytesTransferred,
+                                long totalBytes, double speed, long elapsedTime) {
+            this.transferId = transferId;
+            this.filePath = filePath;
+            this.type = type;
+            this.bytesTransferred = bytesTransferred;
+            this.totalBytes = totalBytes;
+            this.speed = speed;
+            this.elapsedTime = elapsedTime;
+        }
+        
+        public String getTransferId() { return transferId; }
+        public Path getFilePath() { return filePath; }
+        public TransferType getType() { return type; }
+        public long getBytesTransferred() { return bytesTransferred; }
+        public long getTotalBytes() { return totalBytes; }
+        public double getSpeed() { return speed; }
+        public long getElapsedTime() { return elapsedTime; }
+        
+        public double getProgressPercentage() {
+            return totalBytes > 0 ? (double) bytesTransferred / totalBytes * 100 : 100.0;
+        }
+        
+        public String getFileName() {
+            return filePath != null ? filePath.getFileName().toString() : "Unknown";
+        }
+    }
+    
+    /**
+     * The ticker's bookkeeping for one transfer, guarded by itself.
+     */
+    private static class TrackedProgress {
+        private final TransferProgress progress;
+        private long lastBytes;
+        private long lastNanos;
+        private double lastSpeed;
+        private boolean finished;
+        
+        TrackedProgress(TransferProgress progress) {
+            this.progress = progress;
+        }
+    }
+    
     public static class TransferResult {
         private final String transferId;
         private final boolean success;
@@ -533,24 +1260,73 @@ public class FileTransferService {
         private final long totalFilesTransferred;
         private final long totalBytesTransferred;
         private final int activeTransfers;
+        private final List<TransferParameters> recentParameters;
         
         public TransferStatistics(long totalFilesTransferred, long totalBytesTransferred, int activeTransfers) {
+            this(totalFilesTransferred, totalBytesTransferred, activeTransfers, List.of());
+        }
+        
+        public TransferStatistics(long totalFilesTransferred, long totalBytesTransferred, int activeTransfers,
+                                  List<TransferParameters> recentParameters) {
             this.totalFilesTransferred = totalFilesTransferred;
             this.totalBytesTransferred = totalBytesTransferred;
             this.activeTransfers = activeTransfers;
+            this.recentParameters = recentParameters;
         }
         
         public long getTotalFilesTransferred() { return totalFilesTransferred; }
         public long getTotalBytesTransferred() { return totalBytesTransferred; }
         public int getActiveTransfers() { return activeTransfers; }
+        public List<TransferParameters> getRecentParameters() { return recentParameters; }
+    }
+    
+    /**
+     * Tuning parameters a transfer ran with and what it measured.
+     */
+    public static class TransferParameters {
+        private final String transferId;
+        private final int bufferSize;
+        private final int socketBufferSize;
+        private final int chunkSize;
+        private final double roundTripMillis;
+        private final double throughput;
+        private final long stallMillis;
+        
+        public TransferParameters(String transferId, int bufferSize, int socketBufferSize, int chunkSize,
+                                  double roundTripMillis, double throughput, long stallMillis) {
+            this.transferId = transferId;
+            this.bufferSize = bufferSize;
+            this.socketBufferSize = socketBufferSize;
+            this.chunkSize = chunkSize;
+            this.roundTripMillis = roundTripMillis;
+            this.throughput = throughput;
+            this.stallMillis = stallMillis;
+        }
+        
+        public String getTransferId() { return transferId; }
+        public int getBufferSize() { return bufferSize; }
+        public int getSocketBufferSize() { return socketBufferSize; }
+        public int getChunkSize() { return chunkSize; }
+        public double getRoundTripMillis() { return roundTripMillis; }
+        public double getThroughput() { return throughput; } // MB/s
+        public long getStallMillis() { return stallMillis; }
     }
     
     public enum TransferType {
         SEND, RECEIVE
     }
     
+    /**
+     * AUTO uses the mapped path when memory.mapped.io.enabled is set and
+     * zero-copy otherwise, as long as no payload transform is active and the
+     * socket has a channel. The other modes force one path.
+     */
+    public enum SendMode {
+        AUTO, STREAM, ZERO_COPY, MAPPED
+    }
+    
     public interface TransferProgressListener {
-        void onProgressUpdated(TransferProgress progress);
+        void onProgressUpdated(ProgressSnapshot progress);
     }
     
     public interface TransferCompletionListener {
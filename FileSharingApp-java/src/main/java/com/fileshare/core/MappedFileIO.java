@@ -0,0 +1,276 @@
+package com.fileshare.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+import java.util.zip.Checksum;
+
+/**
+ * Memory-mapped file I/O for the transfer paths.
+ *
+ * Files are mapped in sliding windows of at most WINDOW_SIZE bytes, so
+ * files of any size can be handled without mapping them at once. If a
+ * window cannot be mapped (address space exhausted, a file system without
+ * mmap support), the rest of the range is copied through a pooled buffer.
+ */
+public final class MappedFileIO {
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileIO.class);
+
+    public static final long WINDOW_SIZE = 64L * 1024 * 1024; // 64MB
+    private static final int FALLBACK_BUFFER_SIZE = 131072;
+
+    private MappedFileIO() {
+    }
+
+    /**
+     * Map a region for reading, or return null if it cannot be mapped.
+     */
+    public static MappedByteBuffer mapForRead(FileChannel channel, long position, long length) {
+        return map(channel, FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    /**
+     * Read exactly length bytes from the channel straight into mapped
+     * windows of the file region starting at position. Page faults of the
+     * windows are booked as socket time.
+     */
+    public static void receive(ReadableByteChannel in, FileChannel out, long position, long length,
+                               Checksum crc32, TransferMetrics.Recorder metrics, BufferPool pool,
+                               LongConsumer onBytes) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            long windowLength = Math.min(WINDOW_SIZE, end - position);
+            MappedByteBuffer window = map(out, FileChannel.MapMode.READ_WRITE, position, windowLength);
+            if (window == null) {
+                receiveBuffered(in, out, position, end - position, crc32, metrics, pool, onBytes);
+                return;
+            }
+            while (window.hasRemaining()) {
+                int start = window.position();
+                long mark = System.nanoTime();
+                int read = in.read(window);
+                if (read < 0) {
+                    throw new EOFException("Connection closed at offset " + (position + start));
+                }
+                mark = metrics.socket(mark);
+                if (crc32 != null) {
+                    ByteBuffer received = window.duplicate();
+                    received.position(start).limit(start + read);
+                    crc32.update(received);
+                    metrics.checksum(mark);
+                }
+                onBytes.accept(read);
+            }
+            position += windowLength;
+        }
+    }
+
+    /**
+     * Read exactly target.remaining() bytes from the channel into a mapped slice.
+     */
+    public static void receive(ReadableByteChannel in, ByteBuffer target, Checksum crc32,
+                               TransferMetrics.Recorder metrics) throws IOException {
+        int start = target.position();
+        long mark = System.nanoTime();
+        while (target.hasRemaining()) {
+            if (in.read(target) < 0) {
+                throw new EOFException("Connection closed inside a mapped region");
+            }
+        }
+        mark = metrics.socket(mark);
+        if (crc32 != null) {
+            ByteBuffer received = target.duplicate();
+            received.flip().position(start);
+            crc32.update(received);
+            metrics.checksum(mark);
+        }
+    }
+
+    /**
+     * Write a file region to the channel from mapped windows. The prefix is
+     * sent with the first window in the same gathering write. Page faults
+     * of the windows are booked with whichever step touches them first.
+     */
+    public static void send(FileChannel in, long position, long length, WritableByteChannel out,
+                            ByteBuffer prefix, Checksum crc32, TransferMetrics.Recorder metrics, BufferPool pool,
+                            LongConsumer onBytes) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            long windowLength = Math.min(WINDOW_SIZE, end - position);
+            MappedByteBuffer window = mapForRead(in, position, windowLength);
+            if (window == null) {
+                if (prefix != null) {
+                    writeFully(out, prefix);
+                }
+                sendBuffered(in, position, end - position, out, crc32, metrics, pool, onBytes);
+                return;
+            }
+            long mark = System.nanoTime();
+            if (crc32 != null) {
+                crc32.update(window.duplicate());
+                mark = metrics.checksum(mark);
+            }
+            if (prefix != null) {
+                writeFully(out, prefix, window);
+                prefix = null;
+            } else {
+                writeFully(out, window);
+            }
+            metrics.socket(mark);
+            onBytes.accept(windowLength);
+            position += windowLength;
+        }
+        if (prefix != null) {
+            writeFully(out, prefix);
+        }
+    }
+
+    /**
+     * Write all buffers, as one gathering write where the channel supports it.
+     */
+    public static void writeFully(WritableByteChannel out, ByteBuffer... buffers) throws IOException {
+        if (out instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) out;
+            while (hasRemaining(buffers)) {
+                gathering.write(buffers);
+            }
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Read-write windows over one file that concurrent chunk writers share.
+     * Windows are mapped on first use and kept until the transfer ends, so
+     * small chunks do not pay for a mapping each.
+     */
+    public static class WindowCache {
+        private final FileChannel channel;
+        private final long fileSize;
+        private final ConcurrentHashMap<Long, MappedByteBuffer> windows = new ConcurrentHashMap<>();
+
+        public WindowCache(FileChannel channel, long fileSize) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+        }
+
+        /**
+         * A buffer over [position, position + length), or null if the region
+         * spans two windows or cannot be mapped.
+         */
+        public ByteBuffer slice(long position, int length) {
+            long index = position / WINDOW_SIZE;
+            long windowStart = index * WINDOW_SIZE;
+            if (position + length > windowStart + WINDOW_SIZE) {
+                return null;
+            }
+            MappedByteBuffer window = windows.computeIfAbsent(index, i -> map(channel,
+                FileChannel.MapMode.READ_WRITE, windowStart, Math.min(WINDOW_SIZE, fileSize - windowStart)));
+            if (window == null) {
+                return null;
+            }
+            ByteBuffer slice = window.duplicate();
+            int start = (int) (position - windowStart);
+            slice.limit(start + length).position(start);
+            return slice;
+        }
+    }
+
+    // Private helper methods
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long length) {
+        try {
+            return channel.map(mode, position, length);
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.warn("Cannot map {} bytes at offset {}, falling back to buffered I/O: {}",
+                length, position, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void receiveBuffered(ReadableByteChannel in, FileChannel out, long position, long length,
+                                        Checksum crc32, TransferMetrics.Recorder metrics, BufferPool pool,
+                                        LongConsumer onBytes) throws IOException {
+        ByteBuffer buffer = pool.acquire(FALLBACK_BUFFER_SIZE);
+        try {
+            long end = position + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                long mark = System.nanoTime();
+                int read = in.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("Connection closed at offset " + position);
+                }
+                mark = metrics.socket(mark);
+                buffer.flip();
+                if (crc32 != null) {
+                    crc32.update(buffer);
+                    buffer.rewind();
+                    mark = metrics.checksum(mark);
+                }
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+                metrics.disk(mark);
+                onBytes.accept(read);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static void sendBuffered(FileChannel in, long position, long length, WritableByteChannel out,
+                                     Checksum crc32, TransferMetrics.Recorder metrics, BufferPool pool,
+                                     LongConsumer onBytes) throws IOException {
+        ByteBuffer buffer = pool.acquire(FALLBACK_BUFFER_SIZE);
+        try {
+            long end = position + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                long mark = System.nanoTime();
+                int read = in.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("File truncated during transfer");
+                }
+                mark = metrics.disk(mark);
+                buffer.flip();
+                if (crc32 != null) {
+                    crc32.update(buffer);
+                    buffer.rewind();
+                    mark = metrics.checksum(mark);
+                }
+                writeFully(out, buffer);
+                metrics.socket(mark);
+                position += read;
+                onBytes.accept(read);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.fileshare.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SHA-256 hash tree over the chunks of a file. Each leaf hashes one chunk
+ * and each inner node hashes its two children. A prefix byte tells leaves
+ * and inner nodes apart, so no chunk can pass for a pair of hashes. A
+ * level with an odd node count carries its last node up unchanged.
+ *
+ * Leaves are hashed in parallel on a fork/join pool, by default the
+ * common one or else the TransferExecutor's hash pool. Each task
+ * reads its chunks through a mapping of the file, which is usually still
+ * in the page cache from the transfer itself. A chunk of zeros takes a
+ * cached leaf, so holes are checked with a compare instead of a hash.
+ * Files moved with DirectIO are read around the page cache instead, into
+ * one aligned buffer per task.
+ */
+public class MerkleTree {
+    public static final int HASH_LENGTH = 32;
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+    // A task hashes its chunks itself once they are down to this many bytes
+    private static final long SPLIT_BYTES = 8L * 1024 * 1024;
+    // Leaves of all-zero chunks by length, as holes in sparse files are common
+    private static final ConcurrentHashMap<Integer, byte[]> ZERO_LEAVES = new ConcurrentHashMap<>();
+
+    private final long fileSize;
+    private final int chunkSize;
+    private final byte[][] leaves;
+    private byte[] root;
+
+    private MerkleTree(long fileSize, int chunkSize) {
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.leaves = new byte[(int) ((fileSize + chunkSize - 1) / chunkSize)][];
+    }
+
+    /**
+     * Hash every chunk of the file.
+     */
+    public static MerkleTree compute(FileChannel channel, long fileSize, int chunkSize) throws IOException {
+        return compute(channel, null, fileSize, chunkSize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Hash every chunk of the file on the given pool, reading through
+     * direct if it is not null.
+     */
+    public static MerkleTree compute(FileChannel channel, DirectIO direct, long fileSize, int chunkSize,
+                                     ForkJoinPool pool) throws IOException {
+        MerkleTree tree = new MerkleTree(fileSize, chunkSize);
+        BitSet all = new BitSet(tree.leaves.length);
+        all.set(0, tree.leaves.length);
+        tree.rehash(channel, direct, all, pool);
+        return tree;
+    }
+
+    public int getLeafCount() { return leaves.length; }
+    public byte[][] getLeaves() { return leaves; }
+
+    /**
+     * Hash the given chunks again after they were rewritten.
+     */
+    public void rehash(FileChannel channel, BitSet chunks) throws IOException {
+        rehash(channel, null, chunks, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Hash the given chunks again on the given pool, reading through
+     * direct if it is not null.
+     */
+    public synchronized void rehash(FileChannel channel, DirectIO direct, BitSet chunks,
+                                    ForkJoinPool pool) throws IOException {
+        int[] indices = chunks.stream().filter(i -> i < leaves.length).toArray();
+        try {
+            pool.invoke(new LeafTask(channel, direct, indices, 0, indices.length));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        root = null;
+    }
+
+    /**
+     * Root hash of the tree. A file without chunks has the hash of an empty
+     * leaf as its root.
+     */
+    public synchronized byte[] getRoot() {
+        if (root == null) {
+            MessageDigest digest = sha256();
+            if (leaves.length == 0) {
+                digest.update(LEAF_PREFIX);
+                root = digest.digest();
+                return root;
+            }
+            byte[][] level = leaves;
+            while (level.length > 1) {
+                byte[][] parents = new byte[(level.length + 1) / 2][];
+                for (int i = 0; i < parents.length; i++) {
+                    if (2 * i + 1 < level.length) {
+                        digest.update(NODE_PREFIX);
+                        digest.update(level[2 * i]);
+                        digest.update(level[2 * i + 1]);
+                        parents[i] = digest.digest();
+                    } else {
+                        parents[i] = level[2 * i];
+                    }
+                }
+                level = parents;
+            }
+            root = level[0];
+        }
+        return root;
+    }
+
+    /**
+     * Chunks whose leaf differs from the corresponding one of another tree
+     * over the same layout.
+     */
+    public BitSet diff(byte[][] otherLeaves) {
+        BitSet differing = new BitSet(leaves.length);
+        for (int i = 0; i < leaves.length; i++) {
+            if (i >= otherLeaves.length || !Arrays.equals(leaves[i], otherLeaves[i])) {
+                differing.set(i);
+            }
+        }
+        return differing;
+    }
+
+    // Private helper methods
+
+    private void hashChunk(FileChannel channel, DirectIO direct, ByteBuffer aligned, int chunkIndex,
+                           MessageDigest digest) throws IOException {
+        long offset = (long) chunkIndex * chunkSize;
+        int length = (int) Math.min(chunkSize, fileSize - offset);
+        // A mapping would pull the chunk into the page cache that direct reads stay out of
+        ByteBuffer content = direct == null ? MappedFileIO.mapForRead(channel, offset, length) : null;
+        if (content == null) {
+            content = aligned != null ? aligned.clear().limit(length) : ByteBuffer.allocate(length);
+            while (content.hasRemaining()) {
+                int read = direct != null
+                    ? direct.read(content, offset + content.position())
+                    : channel.read(content, offset + content.position());
+                if (read < 0) {
+                    throw new EOFException("File shorter than its chunk layout at offset " + offset);
+                }
+            }
+            content.flip();
+        }
+        if (SparseFiles.isZero(content)) {
+            leaves[chunkIndex] = ZERO_LEAVES.computeIfAbsent(length, MerkleTree::zeroLeaf);
+            return;
+        }
+        digest.update(LEAF_PREFIX);
+        digest.update(content);
+        leaves[chunkIndex] = digest.digest();
+    }
+
+    private static byte[] zeroLeaf(int length) {
+        MessageDigest digest = sha256();
+        digest.update(LEAF_PREFIX);
+        digest.update(new byte[length]);
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private final class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final DirectIO direct;
+        private final int[] indices;
+        private final int from;
+        private final int to;
+
+        LeafTask(FileChannel channel, DirectIO direct, int[] indices, int from, int to) {
+            this.channel = channel;
+            this.direct = direct;
+            this.indices = indices;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && (long) (to - from) * chunkSize > SPLIT_BYTES) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LeafTask(channel, direct, indices, from, middle),
+                    new LeafTask(channel, direct, indices, middle, to));
+                return;
+            }
+            MessageDigest digest = sha256();
+            // Direct reads take no heap buffers
+            ByteBuffer aligned = direct != null ? direct.allocate(chunkSize) : null;
+            try {
+                for (int i = from; i < to; i++) {
+                    hashChunk(channel, direct, aligned, indices[i], digest);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
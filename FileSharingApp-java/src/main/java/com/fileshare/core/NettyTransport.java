@@ -0,0 +1,501 @@
+package com.fileshare.core;
+
+import com.fileshare.core.FileTransferService.TransferProgress;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Transport on Netty event loops, so any number of transfers share a few
+ * threads instead of holding one blocked thread per socket.
+ *
+ * The native epoll transport is used where it is available, and NIO
+ * elsewhere. Files are sent as DefaultFileRegion slices, which become
+ * sendfile or transferTo calls, and received through pooled direct
+ * buffers written straight to the target at their offsets.
+ *
+ * Transfers use the single-stream format of TransferProtocol: header,
+ * content and the optional CRC32 trailer, so either side can talk to the
+ * socket transport. Chunked transfers (parallel streams, resume,
+ * compression and deltas) need the socket transport and are refused.
+ */
+public class NettyTransport implements TransferTransport {
+    private static final Logger logger = LoggerFactory.getLogger(NettyTransport.class);
+
+    private static final long SLICE_SIZE = 8L * 1024 * 1024; // 8MB per file region
+    private static final long SHAPED_SLICE_SIZE = 256 * 1024; // Per file region under a rate limit
+
+    private final TransferConfig config;
+    private final TransferTuner tuner;
+    private final DurabilityPolicy durability;
+    private final int socketTimeoutMs;
+    private final boolean epoll;
+    private final EventLoopGroup acceptGroup;
+    private final EventLoopGroup ioGroup;
+
+    public NettyTransport(TransferConfig config, TransferTuner tuner, DurabilityPolicy durability,
+                          int socketTimeoutMs) {
+        this.config = config;
+        this.tuner = tuner;
+        this.durability = durability;
+        this.socketTimeoutMs = socketTimeoutMs;
+        this.epoll = Epoll.isAvailable();
+        if (epoll) {
+            acceptGroup = new EpollEventLoopGroup(1, new DefaultThreadFactory("netty-transfer-accept", true));
+            ioGroup = new EpollEventLoopGroup(0, new DefaultThreadFactory("netty-transfer-io", true));
+        } else {
+            acceptGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("netty-transfer-accept", true));
+            ioGroup = new NioEventLoopGroup(0, new DefaultThreadFactory("netty-transfer-io", true));
+        }
+        logger.info("Netty transport using {}", epoll ? "native epoll" : "NIO");
+    }
+
+    @Override
+    public CompletableFuture<Void> send(File file, String host, int port, TransferProgress progress,
+                                        ProgressCallback onProgress) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Bootstrap bootstrap = new Bootstrap()
+            .group(ioGroup)
+            .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+            .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .option(ChannelOption.SO_SNDBUF, tuner.getSocketBufferSize())
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, socketTimeoutMs)
+            .handler(new SendHandler(file, progress, onProgress, result));
+        bootstrap.connect(host, port).addListener((ChannelFuture future) -> {
+            if (!future.isSuccess()) {
+                result.completeExceptionally(future.cause());
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<File> receive(int port, String saveDirectory, TransferProgress progress,
+                                           ProgressCallback onProgress) {
+        CompletableFuture<File> result = new CompletableFuture<>();
+        try {
+            Files.createDirectories(Path.of(saveDirectory));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        AtomicBoolean accepted = new AtomicBoolean();
+        ServerBootstrap bootstrap = new ServerBootstrap()
+            .group(acceptGroup, ioGroup)
+            .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+            // Accepted sockets inherit the receive buffer, and its size sets the window scale
+            .option(ChannelOption.SO_RCVBUF, tuner.getSocketBufferSize())
+            .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel channel) {
+                    if (!accepted.compareAndSet(false, true)) {
+                        channel.close();
+                        return;
+                    }
+                    channel.pipeline().addLast(
+                        new ReadTimeoutHandler(socketTimeoutMs, TimeUnit.MILLISECONDS),
+                        new ReceiveHandler(saveDirectory, progress, onProgress, result));
+                }
+            });
+        ChannelFuture bind = bootstrap.bind(port);
+        bind.addListener((ChannelFuture future) -> {
+            if (!future.isSuccess()) {
+                result.completeExceptionally(future.cause());
+            }
+        });
+        // One file per call, like the socket transport
+        result.whenComplete((file, error) -> bind.channel().close());
+        return result;
+    }
+
+    @Override
+    public void shutdown() {
+        acceptGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        ioGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    // Private helper methods
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Error closing file", e);
+        }
+    }
+
+    /**
+     * Writes the header, then one file region per slice once the previous
+     * one has gone out, then the trailer. Each slice is checksummed from a
+     * mapping after it was sent, while it is still in the page cache.
+     */
+    private final class SendHandler extends ChannelInboundHandlerAdapter {
+        private final File file;
+        private final TransferProgress progress;
+        private final ProgressCallback onProgress;
+        private final CompletableFuture<Void> result;
+        private FileChannel fileChannel;
+        private CRC32 crc32;
+        private long fileSize;
+        private long position;
+
+        SendHandler(File file, TransferProgress progress, ProgressCallback onProgress, CompletableFuture<Void> result) {
+            this.file = file;
+            this.progress = progress;
+            this.onProgress = onProgress;
+            this.result = result;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            fileSize = fileChannel.size();
+            crc32 = config.isChecksumEnabled() ? new CRC32() : null;
+            int flags = crc32 != null ? TransferProtocol.FLAG_CHECKSUM_TRAILER : 0;
+
+            ByteBuf header = ctx.alloc().buffer();
+            try (DataOutputStream dos = new DataOutputStream(new ByteBufOutputStream(header))) {
+                TransferProtocol.writeHeader(dos, new TransferProtocol.FileHeader(file.getName(), fileSize, flags));
+            }
+            ctx.write(header);
+            sendNextSlice(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            fail(ctx, new EOFException("Connection closed after " + position + " of " + fileSize + " bytes"));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(ctx, cause);
+        }
+
+        private void sendNextSlice(ChannelHandlerContext ctx) {
+            if (progress.isCancelled()) {
+                fail(ctx, new IOException("Transfer was cancelled"));
+                return;
+            }
+            if (position == fileSize) {
+                sendTrailer(ctx);
+                return;
+            }
+            long count = Math.min(progress.isShaped() ? SHAPED_SLICE_SIZE : SLICE_SIZE, fileSize - position);
+            // Rate limits delay the slice on the event loop instead of blocking it
+            long pause = progress.reserve(count);
+            if (pause > 0) {
+                ctx.executor().schedule(() -> sendNextSlice(ctx), pause, TimeUnit.NANOSECONDS);
+            } else {
+                sendSlice(ctx, count);
+            }
+        }
+
+        private void sendSlice(ChannelHandlerContext ctx, long count) {
+            // A region over the File opens its own descriptor, so releasing it leaves ours open
+            long started = System.nanoTime();
+            ctx.writeAndFlush(new DefaultFileRegion(file, position, count)).addListener((ChannelFuture future) -> {
+                if (!future.isSuccess()) {
+                    fail(ctx, future.cause());
+                    return;
+                }
+                // Until the slice drained is the event loop's equivalent of a blocked write
+                long mark = progress.getMetrics().socket(started);
+                // Netty only logs what a listener throws, so fail the transfer here
+                try {
+                    if (crc32 != null) {
+                        MappedByteBuffer slice = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, count);
+                        crc32.update(slice);
+                        progress.getMetrics().checksum(mark);
+                    }
+                    position += count;
+                    onProgress.onProgress(position, fileSize);
+                    sendNextSlice(ctx);
+                } catch (IOException | RuntimeException e) {
+                    fail(ctx, e);
+                }
+            });
+        }
+
+        private void sendTrailer(ChannelHandlerContext ctx) {
+            ByteBuf trailer = ctx.alloc().buffer(Long.BYTES);
+            if (crc32 != null) {
+                trailer.writeLong(crc32.getValue());
+            }
+            ctx.writeAndFlush(trailer).addListener((ChannelFuture future) -> {
+                if (!future.isSuccess()) {
+                    fail(ctx, future.cause());
+                    return;
+                }
+                closeQuietly(fileChannel);
+                result.complete(null);
+                ctx.close();
+            });
+        }
+
+        private void fail(ChannelHandlerContext ctx, Throwable cause) {
+            if (fileChannel != null) {
+                closeQuietly(fileChannel);
+            }
+            if (result.completeExceptionally(cause)) {
+                ctx.close();
+            }
+        }
+    }
+
+    /**
+     * Parses the header once enough of it has arrived, then writes every
+     * buffer to the target at the current offset and checks the trailer.
+     * Runs entirely on the channel's event loop.
+     */
+    private final class ReceiveHandler extends ChannelInboundHandlerAdapter {
+        private final String saveDirectory;
+        private final TransferProgress progress;
+        private final ProgressCallback onProgress;
+        private final CompletableFuture<File> result;
+        // Header or trailer bytes that arrived split across reads
+        private ByteBuf pending;
+        private TransferProtocol.FileHeader header;
+        private File outFile;
+        private Path stagedPath;
+        private FileChannel fileChannel;
+        private DurabilityPolicy.Tracker tracker;
+        private CRC32 crc32;
+        private long received;
+        // Set once the file is published, while it is still being made durable
+        private boolean published;
+
+        ReceiveHandler(String saveDirectory, TransferProgress progress, ProgressCallback onProgress,
+                       CompletableFuture<File> result) {
+            this.saveDirectory = saveDirectory;
+            this.progress = progress;
+            this.onProgress = onProgress;
+            this.result = result;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            progress.getMetrics().connected();
+            TransferScheduler.Ticket ticket = progress.getTicket();
+            if (ticket != null && ctx.channel().remoteAddress() instanceof InetSocketAddress) {
+                ticket.setPeer(((InetSocketAddress) ctx.channel().remoteAddress()).getAddress().getHostAddress());
+            }
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ByteBuf buf = (ByteBuf) msg;
+            try {
+                if (published) {
+                    return;
+                }
+                if (progress.isCancelled()) {
+                    throw new IOException("Transfer was cancelled");
+                }
+                if (header == null) {
+                    pending = pending == null ? buf.retain() : append(ctx, pending, buf);
+                    if (!readHeader(pending)) {
+                        return;
+                    }
+                    ByteBuf rest = pending;
+                    pending = null;
+                    try {
+                        writeContent(ctx, rest);
+                    } finally {
+                        rest.release();
+                    }
+                } else {
+                    writeContent(ctx, buf);
+                }
+            } finally {
+                buf.release();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            fail(ctx, new EOFException(header == null
+                ? "Connection closed before the header"
+                : "Connection closed after " + received + " of " + header.getFileSize() + " bytes"));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(ctx, cause);
+        }
+
+        /**
+         * Parse the header from the accumulated bytes, or return false if it
+         * is not complete yet.
+         */
+        private boolean readHeader(ByteBuf buf) throws IOException {
+            int start = buf.readerIndex();
+            try {
+                header = TransferProtocol.readHeader(new DataInputStream(new ByteBufInputStream(buf)));
+            } catch (EOFException e) {
+                buf.readerIndex(start);
+                return false;
+            }
+            if (header.hasFlag(TransferProtocol.FLAG_CHUNKED)) {
+                throw new IOException("Chunked transfers are not supported by the Netty transport");
+            }
+            outFile = StagingFiles.resolveTarget(saveDirectory, header.getFileName());
+            progress.setFilePath(outFile.toPath());
+            crc32 = header.hasFlag(TransferProtocol.FLAG_CHECKSUM_TRAILER) ? new CRC32() : null;
+            // Written to a hidden staging file and published once complete
+            stagedPath = StagingFiles.create(outFile.toPath());
+            fileChannel = FileChannel.open(stagedPath, StandardOpenOption.WRITE);
+            tracker = durability.track(fileChannel);
+            StagingFiles.preallocate(fileChannel, header.getFileSize());
+            return true;
+        }
+
+        private void writeContent(ChannelHandlerContext ctx, ByteBuf buf) throws IOException {
+            long fileSize = header.getFileSize();
+            int length = (int) Math.min(buf.readableBytes(), fileSize - received);
+            if (length > 0) {
+                TransferMetrics.Recorder metrics = progress.getMetrics();
+                metrics.firstByte();
+                long mark = System.nanoTime();
+                if (crc32 != null) {
+                    crc32.update(buf.nioBuffer(buf.readerIndex(), length));
+                    mark = metrics.checksum(mark);
+                }
+                int end = buf.readerIndex() + length;
+                while (buf.readerIndex() < end) {
+                    received += buf.readBytes(fileChannel, received, end - buf.readerIndex());
+                }
+                metrics.disk(mark);
+                tracker.written(length);
+                onProgress.onProgress(received, fileSize);
+                if (received < fileSize) {
+                    throttle(ctx, length);
+                }
+            }
+            if (received < fileSize) {
+                return;
+            }
+            if (crc32 == null) {
+                complete(ctx);
+                return;
+            }
+            pending = pending == null ? ctx.alloc().buffer(Long.BYTES) : pending;
+            pending.writeBytes(buf, Math.min(buf.readableBytes(), Long.BYTES - pending.readableBytes()));
+            if (pending.readableBytes() < Long.BYTES) {
+                return;
+            }
+            if (pending.readLong() != crc32.getValue()) {
+                throw new IOException("File integrity check failed");
+            }
+            complete(ctx);
+        }
+
+        /**
+         * Take rate tokens for bytes already read; while the limits do not
+         * allow them yet, stop reading so TCP flow control slows the sender.
+         */
+        private void throttle(ChannelHandlerContext ctx, long bytes) {
+            long pause = progress.reserve(bytes);
+            if (pause > 0) {
+                ctx.channel().config().setAutoRead(false);
+                ctx.executor().schedule(() -> throttle(ctx, bytes), pause, TimeUnit.NANOSECONDS);
+            } else {
+                ctx.channel().config().setAutoRead(true);
+            }
+        }
+
+        /**
+         * Publish the file, and report it once the policy has made it
+         * durable, without holding the event loop meanwhile.
+         */
+        private void complete(ChannelHandlerContext ctx) throws IOException {
+            CompletableFuture<Void> durable = durability.publishAsync(fileChannel, stagedPath, outFile.toPath());
+            fileChannel = null;
+            published = true;
+            releasePending();
+            durable.whenComplete((ignored, error) -> {
+                boolean completed = error != null
+                    ? result.completeExceptionally(error)
+                    : result.complete(outFile);
+                if (completed) {
+                    ctx.close();
+                }
+            });
+        }
+
+        private void fail(ChannelHandlerContext ctx, Throwable cause) {
+            releasePending();
+            if (published) {
+                // The outcome is up to the directory sync now
+                return;
+            }
+            if (fileChannel != null) {
+                tracker.close();
+                closeQuietly(fileChannel);
+                fileChannel = null;
+                try {
+                    Files.deleteIfExists(stagedPath);
+                } catch (IOException e) {
+                    logger.warn("Failed to remove partial file {}", stagedPath, e);
+                }
+            }
+            if (result.completeExceptionally(cause)) {
+                ctx.close();
+            }
+        }
+
+        private void releasePending() {
+            if (pending != null) {
+                pending.release();
+                pending = null;
+            }
+        }
+
+        private ByteBuf append(ChannelHandlerContext ctx, ByteBuf cumulation, ByteBuf buf) {
+            ByteBuf merged = ctx.alloc().buffer(cumulation.readableBytes() + buf.readableBytes());
+            merged.writeBytes(cumulation).writeBytes(buf);
+            cumulation.release();
+            return merged;
+        }
+    }
+}
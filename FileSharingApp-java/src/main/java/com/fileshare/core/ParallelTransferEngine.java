@@ -0,0 +1,2139 @@
+package com.fileshare.core;
+
+import com.fileshare.core.FileTransferService.SendMode;
+import com.fileshare.core.FileTransferService.TransferProgress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Splits a file into fixed-size chunks and moves them over one or more TCP
+ * connections. Each sending stream pulls the next pending chunk, and the
+ * receiver writes every chunk at its own offset with positional FileChannel
+ * writes, so chunks may arrive in any order.
+ *
+ * Chunks are sent with transferTo (ZERO_COPY), from a mapping of the chunk
+ * in one gathering write with the frame header and trailer (MAPPED), or
+ * through a buffer (STREAM). With memory.mapped.io.enabled the receiver
+ * reads each chunk straight into a mapping of its target region.
+ *
+ * Received files are written to hidden StagingFiles, sized up front, and
+ * renamed into place once complete and forced to disk. Resumable transfers
+ * stage into a hidden .part file with a TransferJournal beside it. The
+ * receiver tells the sender which chunks are missing, so a reconnecting
+ * sender only sends what did not arrive the last time.
+ *
+ * With delta.transfer.enabled a receiver that already has a copy of the
+ * file sends its block signatures, and the sender answers with a delta
+ * against them. The receiver rebuilds the file into a .delta file beside
+ * its copy and swaps it in once the whole-file checksum matches.
+ *
+ * With checksums enabled, a single file is also checked against the root
+ * of a MerkleTree that both sides hash in parallel. Chunks that fail their
+ * CRC32C trailer or their leaf hash are sent again over the first
+ * connection, so one bad chunk costs one chunk rather than the file.
+ *
+ * A session sends a batch of files over one persistent connection with a
+ * single manifest and acknowledges each file without stopping the stream.
+ * Small files go first as one packed run of entries: the sender reads
+ * them ahead in parallel and gathers them into large writes, and the
+ * receiver hands them to parallel writers, so a tree of many small files
+ * is not held up by per-file round trips, framing and file system calls.
+ */
+public class ParallelTransferEngine {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelTransferEngine.class);
+
+    private static final long PROGRESS_INTERVAL_MS = 100;
+    private static final int JOIN_TIMEOUT_MS = 30000;
+    private static final int TRANSFER_RETRY_SIZE = 65536;
+    private static final int MAX_REPAIR_ROUNDS = 3;
+    private static final String PART_SUFFIX = ".part";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String DELTA_SUFFIX = ".delta";
+    // What a zero-copy send reads of each chunk to rule out a zero chunk
+    private static final int SPARSE_PROBE_SIZE = 4096;
+
+    private final TransferConfig config;
+    private final TransferTuner tuner;
+    private final BufferPool bufferPool;
+    private final DurabilityPolicy durability;
+    private final TransferExecutor executor;
+    private final int socketTimeoutMs;
+
+    /**
+     * Create an engine whose streams, read-ahead, writers and hashing run
+     * on the executor.
+     */
+    public ParallelTransferEngine(TransferConfig config, TransferTuner tuner, BufferPool bufferPool,
+                                  DurabilityPolicy durability, TransferExecutor executor, int socketTimeoutMs) {
+        this.config = config;
+        this.tuner = tuner;
+        this.bufferPool = bufferPool;
+        this.durability = durability;
+        this.executor = executor;
+        this.socketTimeoutMs = socketTimeoutMs;
+    }
+
+    /**
+     * Send a file over the given number of connections to host:port.
+     */
+    public void send(File file, String host, int port, int streams, SendMode mode,
+                     TransferProgress progress, LongConsumer onProgress) throws IOException {
+        List<Closeable> connections = new ArrayList<>(streams);
+        try {
+            SocketChannel control = openChannel(host, port);
+            connections.add(control);
+            sendChunked(file, control.socket(), streams, mode, progress, onProgress, sessionId -> {
+                List<WritableByteChannel> channels = new ArrayList<>(streams);
+                channels.add(control);
+                for (int i = 1; i < streams; i++) {
+                    SocketChannel channel = openChannel(host, port);
+                    connections.add(channel);
+                    DataOutputStream joinStream = new DataOutputStream(channel.socket().getOutputStream());
+                    TransferProtocol.writeStreamJoin(joinStream, sessionId);
+                    joinStream.flush();
+                    channels.add(channel);
+                }
+                return channels;
+            });
+        } finally {
+            connections.forEach(this::closeQuietly);
+        }
+    }
+
+    /**
+     * Send a file as chunk frames over an existing connection. The socket
+     * stays open; the caller owns it.
+     */
+    public void send(File file, Socket socket, SendMode mode,
+                     TransferProgress progress, LongConsumer onProgress) throws IOException {
+        sendChunked(file, socket, 1, mode, progress, onProgress, sessionId -> {
+            List<WritableByteChannel> channels = new ArrayList<>(1);
+            channels.add(socket.getChannel() != null
+                ? socket.getChannel()
+                : Channels.newChannel(socket.getOutputStream()));
+            return channels;
+        });
+    }
+
+    /**
+     * Receive a chunked transfer whose header was read from the control socket.
+     * Any further streams are accepted from the server socket, which may be
+     * null for single-stream transfers over an existing connection.
+     */
+    public File receive(TransferProtocol.FileHeader header, Socket control, ServerSocket serverSocket,
+                        String saveDirectory, TransferProgress progress, LongConsumer onProgress) throws IOException {
+        if (header.getStreamCount() > 1 && serverSocket == null) {
+            throw new IOException("Multi-stream transfers need a listening port, not a single socket");
+        }
+        boolean resumable = header.hasFlag(TransferProtocol.FLAG_RESUMABLE);
+        ReceiveTarget target = new ReceiveTarget(header, saveDirectory, resumable);
+        tuner.recordChunkSize(progress.getTransferId(), header.getChunkSize());
+
+        List<Socket> sockets = new ArrayList<>(header.getStreamCount());
+        sockets.add(control);
+        boolean complete = false;
+        try {
+            DataOutputStream reply = new DataOutputStream(
+                new BufferedOutputStream(control.getOutputStream(), tuner.getBufferSize()));
+            if (resumable) {
+                // Sent ahead of the signatures, as the sender times this answer
+                TransferProtocol.writeMissingRanges(reply, target.getMissingRanges());
+                reply.flush();
+            }
+            BlockSignatures signatures = null;
+            if (header.hasFlag(TransferProtocol.FLAG_DELTA)) {
+                signatures = target.getSignatures();
+                TransferProtocol.writeSignatures(reply, signatures);
+                reply.flush();
+            }
+            acceptStreams(header, serverSocket, sockets);
+            if (signatures != null && !signatures.isEmpty()) {
+                File outFile = receiveDeltaStreams(target, signatures, sockets, progress, onProgress);
+                complete = true;
+                return outFile;
+            }
+
+            FileChannel fileChannel = target.open();
+            AtomicLong bytesReceived = new AtomicLong(target.getAlreadyPresent());
+            List<Callable<Void>> workers = new ArrayList<>(sockets.size());
+            MappedFileIO.WindowCache windows = null;
+            // Compressed frames have to be decoded before they reach the file, and mappings fill the page cache
+            if (config.isMemoryMappedIoEnabled() && !header.hasFlag(TransferProtocol.FLAG_COMPRESSED)
+                    && target.direct == null) {
+                windows = new MappedFileIO.WindowCache(fileChannel, header.getFileSize());
+            }
+            MappedFileIO.WindowCache mappedWindows = windows;
+            boolean verified = header.hasFlag(TransferProtocol.FLAG_VERIFIED);
+            // Kept past the frames, as the repair exchange follows on the first connection
+            DataInputStream controlIn = new DataInputStream(
+                new BufferedInputStream(control.getInputStream(), tuner.getBufferSize()));
+            for (Socket socket : sockets) {
+                workers.add(() -> {
+                    if (mappedWindows != null && socket.getChannel() != null) {
+                        receiveChunksMapped(socket.getChannel(), mappedWindows, target, bytesReceived, verified,
+                            progress);
+                    } else {
+                        DataInputStream dis = socket == control ? controlIn : new DataInputStream(
+                            new BufferedInputStream(socket.getInputStream(), tuner.getBufferSize()));
+                        receiveChunks(dis, target, bytesReceived, verified, progress);
+                    }
+                    return null;
+                });
+            }
+            runStreams(workers, sockets.subList(1, sockets.size()), bytesReceived, onProgress);
+
+            if (progress.isCancelled()) {
+                throw new IOException("Transfer was cancelled");
+            }
+            if (verified) {
+                repair(target, fileChannel, controlIn, reply, bytesReceived, progress, onProgress);
+            }
+            File outFile = target.publish();
+            complete = true;
+            return outFile;
+        } finally {
+            // The control socket is owned by the caller
+            sockets.stream().skip(1).forEach(this::closeQuietly);
+            if (!complete) {
+                target.abandon(progress.isCancelled());
+            }
+        }
+    }
+
+    /**
+     * Send a batch of files as one session over an existing connection.
+     * Files are streamed back to back while a second thread collects the
+     * receiver's per-file acknowledgements. The socket stays open; the
+     * caller owns it. A session that breaks off leaves the connection out
+     * of step, so the socket is closed on failure.
+     */
+    public List<TransferProtocol.FileAck> sendSession(List<File> files, Socket socket, SendMode mode,
+                                                      TransferProgress progress, LongConsumer onProgress) throws IOException {
+        List<String> names = new ArrayList<>(files.size());
+        files.forEach(file -> names.add(file.getName()));
+        return sendSession(files, names, socket, mode, progress, onProgress);
+    }
+
+    /**
+     * Send a batch of files as one session under the given names, which may
+     * be paths below the receiver's save directory separated by '/'.
+     */
+    public List<TransferProtocol.FileAck> sendSession(List<File> files, List<String> names, Socket socket,
+                                                      SendMode mode, TransferProgress progress,
+                                                      LongConsumer onProgress) throws IOException {
+        List<TransferProtocol.FileAck> acks;
+        try {
+            acks = streamSession(files, names, socket, mode, progress, onProgress);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        if (progress.isCancelled()) {
+            throw new IOException("Transfer was cancelled");
+        }
+        return acks;
+    }
+
+    /**
+     * Receive a session whose manifest was read from the socket, and return
+     * the files that arrived intact. Each file is acknowledged as soon as it
+     * is complete. Like sendSession, the socket is closed only on failure.
+     */
+    public List<File> receiveSession(List<TransferProtocol.FileHeader> headers, Socket socket, String saveDirectory,
+                                     TransferProgress progress, LongConsumer onProgress) throws IOException {
+        try {
+            return collectSession(headers, socket, saveDirectory, progress, onProgress);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Identity used to match a resumed transfer with its journal.
+     */
+    public static String fileIdentity(File file) {
+        return file.getName() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    // Private helper methods
+
+    private List<TransferProtocol.FileAck> streamSession(List<File> files, List<String> names, Socket socket,
+                                                         SendMode mode, TransferProgress progress,
+                                                         LongConsumer onProgress) throws IOException {
+        boolean resumable = config.isResumeEnabled();
+        int flags = (config.isChecksumEnabled() ? TransferProtocol.FLAG_CHECKSUM_TRAILER : 0)
+            | (resumable ? TransferProtocol.FLAG_RESUMABLE : 0)
+            | (config.isCompressionEnabled() ? TransferProtocol.FLAG_COMPRESSED : 0)
+            | (config.isDeltaTransferEnabled() ? TransferProtocol.FLAG_DELTA : 0)
+            | (config.isSparseTransferEnabled() ? TransferProtocol.FLAG_SPARSE : 0);
+        int chunkSize = tuner.getChunkSize();
+        tuner.recordChunkSize(progress.getTransferId(), chunkSize);
+        int packLimit = config.isPackingEnabled() ? config.getPackMaxFileSize() : -1;
+        List<TransferProtocol.FileHeader> headers = new ArrayList<>(files.size());
+        List<Integer> packed = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            long size = file.length();
+            // A packed file is always sent whole, so it needs no identity to resume by
+            boolean pack = size <= packLimit;
+            int fileFlags = flags | TransferProtocol.FLAG_CHUNKED | (pack ? TransferProtocol.FLAG_PACKED : 0);
+            headers.add(new TransferProtocol.FileHeader(names.get(i), size, fileFlags, 1, chunkSize, 0,
+                pack ? "" : fileIdentity(file)));
+            if (pack) {
+                packed.add(i);
+            }
+        }
+        if (!packed.isEmpty()) {
+            flags |= TransferProtocol.FLAG_PACKED;
+        }
+
+        DataOutputStream dos = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream(), tuner.getBufferSize()));
+        TransferProtocol.writeManifest(dos, flags, chunkSize, packLimit, headers);
+        long requestTime = System.nanoTime();
+        dos.flush();
+
+        // One answer per file that is not packed, all before the first frame. Only
+        // answers and acknowledgements come back, so the stream can be read ahead.
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        boolean timed = false;
+        if (!packed.isEmpty()) {
+            int accepted = dis.readInt();
+            if (accepted != packed.size()) {
+                throw new IOException("Receiver expects " + accepted + " packed files, not " + packed.size());
+            }
+            tuner.recordRoundTrip(progress.getTransferId(), System.nanoTime() - requestTime);
+            timed = true;
+        }
+        long[][] pending = new long[files.size()][];
+        BlockSignatures[] signatures = new BlockSignatures[files.size()];
+        long alreadyPresent = 0;
+        for (int i = 0; i < files.size(); i++) {
+            TransferProtocol.FileHeader header = headers.get(i);
+            if (header.hasFlag(TransferProtocol.FLAG_PACKED)) {
+                continue;
+            }
+            pending[i] = expandRanges(TransferProtocol.readMissingRanges(dis, header.getChunkCount()));
+            if (!timed) {
+                tuner.recordRoundTrip(progress.getTransferId(), System.nanoTime() - requestTime);
+                timed = true;
+            }
+            if (header.hasFlag(TransferProtocol.FLAG_DELTA)) {
+                signatures[i] = TransferProtocol.readSignatures(dis);
+            }
+            alreadyPresent += header.getFileSize();
+            for (long chunkIndex : pending[i]) {
+                alreadyPresent -= chunkLength(header, chunkIndex);
+            }
+        }
+        if (alreadyPresent > 0) {
+            logger.info("Resuming session: {} bytes already on the receiver", alreadyPresent);
+        }
+
+        WritableByteChannel channel = socket.getChannel() != null
+            ? socket.getChannel()
+            : Channels.newChannel(socket.getOutputStream());
+        AtomicLong bytesSent = new AtomicLong(alreadyPresent);
+        TransferProtocol.FileAck[] acks = new TransferProtocol.FileAck[files.size()];
+        List<Callable<Void>> workers = new ArrayList<>(2);
+        workers.add(() -> {
+            if (!packed.isEmpty()) {
+                sendPacked(files, headers, packed, channel, bytesSent, progress);
+            }
+            for (int i = 0; i < files.size(); i++) {
+                if (!headers.get(i).hasFlag(TransferProtocol.FLAG_PACKED)) {
+                    sendSessionFile(files.get(i), headers.get(i), pending[i], signatures[i], channel, bytesSent,
+                        mode, progress);
+                }
+            }
+            return null;
+        });
+        workers.add(() -> {
+            for (int i = 0; i < files.size(); i++) {
+                TransferProtocol.FileAck ack = TransferProtocol.readAck(dis);
+                if (ack.getFileIndex() < 0 || ack.getFileIndex() >= acks.length) {
+                    throw new IOException("Acknowledgement for unknown file " + ack.getFileIndex());
+                }
+                acks[ack.getFileIndex()] = ack;
+            }
+            return null;
+        });
+        runStreams(workers, List.of(socket), bytesSent, onProgress);
+        return Arrays.asList(acks);
+    }
+
+    private List<File> collectSession(List<TransferProtocol.FileHeader> headers, Socket socket, String saveDirectory,
+                                      TransferProgress progress, LongConsumer onProgress) throws IOException {
+        DataOutputStream dos = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream(), tuner.getBufferSize()));
+        BlockSignatures[] signatures = new BlockSignatures[headers.size()];
+        int packedCount = (int) headers.stream()
+            .filter(header -> header.hasFlag(TransferProtocol.FLAG_PACKED))
+            .count();
+        // The sender times the first answer, so it goes out before the rest are worked out
+        boolean answered = false;
+        if (packedCount > 0) {
+            dos.writeInt(packedCount);
+            dos.flush();
+            answered = true;
+        }
+        long alreadyPresent = 0;
+        for (int i = 0; i < headers.size(); i++) {
+            if (headers.get(i).hasFlag(TransferProtocol.FLAG_PACKED)) {
+                continue;
+            }
+            ReceiveTarget target = new ReceiveTarget(headers.get(i), saveDirectory, useJournal(headers.get(i)));
+            alreadyPresent += target.getAlreadyPresent();
+            TransferProtocol.writeMissingRanges(dos, target.getMissingRanges());
+            if (!answered) {
+                dos.flush();
+                answered = true;
+            }
+            if (headers.get(i).hasFlag(TransferProtocol.FLAG_DELTA)) {
+                signatures[i] = target.getSignatures();
+                TransferProtocol.writeSignatures(dos, signatures[i]);
+            }
+            target.release();
+        }
+        long answerTime = System.nanoTime();
+        dos.flush();
+
+        DataInputStream dis = new DataInputStream(
+            new BufferedInputStream(socket.getInputStream(), tuner.getBufferSize()));
+        if (!headers.isEmpty()) {
+            tuner.recordChunkSize(progress.getTransferId(), headers.get(0).getChunkSize());
+            // The wait for the first frame is the receiver's round-trip sample
+            dis.mark(1);
+            dis.read();
+            dis.reset();
+            tuner.recordRoundTrip(progress.getTransferId(), System.nanoTime() - answerTime);
+        }
+        AtomicLong bytesReceived = new AtomicLong(alreadyPresent);
+        List<File> received = Collections.synchronizedList(new ArrayList<>(headers.size()));
+        int writers = Math.min(config.getPackThreads(), packedCount);
+        BlockingQueue<PackedEntry> entries = new ArrayBlockingQueue<>(Math.max(writers, 1) * 2);
+        AtomicReference<IOException> ackFailure = new AtomicReference<>();
+        Set<Path> directories = ConcurrentHashMap.newKeySet();
+        List<Callable<Void>> workers = new ArrayList<>(writers + 1);
+        workers.add(() -> {
+            try {
+                receivePacked(dis, headers, packedCount, entries, ackFailure, bytesReceived, progress);
+            } finally {
+                for (int i = 0; i < writers; i++) {
+                    entries.put(PackedEntry.END);
+                }
+            }
+            int last = headers.size() - 1;
+            while (last >= 0 && headers.get(last).hasFlag(TransferProtocol.FLAG_PACKED)) {
+                last--;
+            }
+            for (int i = 0; i <= last; i++) {
+                if (headers.get(i).hasFlag(TransferProtocol.FLAG_PACKED)) {
+                    continue;
+                }
+                TransferProtocol.FileAck ack = receiveSessionFile(i, headers.get(i), signatures[i], dis,
+                    saveDirectory, bytesReceived, progress, received);
+                synchronized (dos) {
+                    TransferProtocol.writeAck(dos, ack);
+                    // Acknowledgements queue up while more frames are already waiting
+                    if (dis.available() == 0 || i == last) {
+                        dos.flush();
+                    }
+                }
+            }
+            return null;
+        });
+        for (int i = 0; i < writers; i++) {
+            workers.add(() -> {
+                writePacked(entries, headers, saveDirectory, directories, dos, ackFailure, progress, received);
+                return null;
+            });
+        }
+        runStreams(workers, List.of(), bytesReceived, onProgress);
+        return received;
+    }
+
+    private void sendChunked(File file, Socket control, int streams, SendMode mode, TransferProgress progress,
+                             LongConsumer onProgress, StreamOpener opener) throws IOException {
+        boolean resumable = config.isResumeEnabled();
+        boolean delta = config.isDeltaTransferEnabled();
+        long sessionId = ThreadLocalRandom.current().nextLong();
+        int flags = TransferProtocol.FLAG_CHUNKED
+            | (config.isChecksumEnabled()
+                ? TransferProtocol.FLAG_CHECKSUM_TRAILER | TransferProtocol.FLAG_VERIFIED
+                : 0)
+            | (resumable ? TransferProtocol.FLAG_RESUMABLE : 0)
+            | (config.isCompressionEnabled() ? TransferProtocol.FLAG_COMPRESSED : 0)
+            | (delta ? TransferProtocol.FLAG_DELTA : 0)
+            | (config.isSparseTransferEnabled() ? TransferProtocol.FLAG_SPARSE : 0);
+        int chunkSize = tuner.getChunkSize();
+        tuner.recordChunkSize(progress.getTransferId(), chunkSize);
+        TransferProtocol.FileHeader header = new TransferProtocol.FileHeader(file.getName(), file.length(), flags,
+            streams, chunkSize, sessionId, resumable ? fileIdentity(file) : null);
+
+        DataOutputStream dos = new DataOutputStream(control.getOutputStream());
+        TransferProtocol.writeHeader(dos, header);
+        long requestTime = System.nanoTime();
+        dos.flush();
+
+        // Ask the receiver what it already has before sending anything
+        DataInputStream dis = new DataInputStream(control.getInputStream());
+        long[] pending;
+        if (resumable) {
+            pending = expandRanges(TransferProtocol.readMissingRanges(dis, header.getChunkCount()));
+            tuner.recordRoundTrip(progress.getTransferId(), System.nanoTime() - requestTime);
+        } else {
+            pending = expandRanges(List.of(new long[] {0, header.getChunkCount()}));
+        }
+        BlockSignatures signatures = delta ? TransferProtocol.readSignatures(dis) : BlockSignatures.NONE;
+        long alreadyPresent = header.getFileSize();
+        for (long chunkIndex : pending) {
+            alreadyPresent -= chunkLength(header, chunkIndex);
+        }
+        if (alreadyPresent > 0) {
+            logger.info("Resuming {}: {} bytes already on the receiver", file.getName(), alreadyPresent);
+        }
+
+        List<WritableByteChannel> channels = opener.open(sessionId);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             DirectIO direct = DirectIO.open(config, file.toPath(), header.getFileSize(), fileChannel,
+                 StandardOpenOption.READ)) {
+            // Hashed alongside the streams, mostly from the pages they bring in
+            Future<MerkleTree> tree = header.hasFlag(TransferProtocol.FLAG_VERIFIED) && signatures.isEmpty()
+                ? executor.getHashPool().submit(() -> MerkleTree.compute(fileChannel, direct, header.getFileSize(),
+                    chunkSize, executor.getHashPool()))
+                : null;
+            AtomicInteger cursor = new AtomicInteger();
+            AtomicLong bytesSent = new AtomicLong(alreadyPresent);
+            List<Callable<Void>> workers = new ArrayList<>(channels.size());
+            // A delta goes over the first stream alone
+            long[] framePending = signatures.isEmpty() ? pending : new long[0];
+            for (WritableByteChannel channel : channels) {
+                boolean deltaStream = !signatures.isEmpty() && workers.isEmpty();
+                workers.add(() -> {
+                    if (deltaStream) {
+                        sendDelta(fileChannel, channel, header, signatures, bytesSent, progress);
+                    } else {
+                        sendChunks(fileChannel, direct, channel, header, framePending, cursor, bytesSent, mode,
+                            progress);
+                    }
+                    return null;
+                });
+            }
+            runStreams(workers, channels.subList(1, channels.size()), bytesSent, onProgress);
+            if (tree != null && !progress.isCancelled()) {
+                serveRepairs(fileChannel, channels.get(0), control, dis, header, awaitTree(tree), mode, progress);
+            }
+        }
+
+        if (progress.isCancelled()) {
+            throw new IOException("Transfer was cancelled");
+        }
+        logger.debug("Chunked send of {} finished over {} streams", file.getName(), channels.size());
+    }
+
+    /**
+     * Send one file of a session, as a delta if the receiver sent
+     * signatures. A file that can no longer be opened is sent as an empty
+     * stream, which the receiver rejects as incomplete.
+     */
+    private void sendSessionFile(File file, TransferProtocol.FileHeader header, long[] pending,
+                                 BlockSignatures signatures, WritableByteChannel channel, AtomicLong bytesSent,
+                                 SendMode mode, TransferProgress progress) throws IOException {
+        progress.setFilePath(file.toPath());
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            logger.warn("Skipping {}: {}", file, e.getMessage());
+            pending = new long[0];
+            fileChannel = null;
+        }
+        DirectIO direct = fileChannel != null
+            ? DirectIO.open(config, file.toPath(), header.getFileSize(), fileChannel, StandardOpenOption.READ)
+            : null;
+        try {
+            if (signatures != null && !signatures.isEmpty()) {
+                sendDelta(fileChannel, channel, header, signatures, bytesSent, progress);
+            } else {
+                sendChunks(fileChannel, direct, channel, header, pending, new AtomicInteger(), bytesSent, mode,
+                    progress);
+            }
+        } finally {
+            if (direct != null) {
+                closeQuietly(direct);
+            }
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Receive the frames of one session file and publish it. A chunk that
+     * fails its check rejects only this file; the rest of its frames are
+     * skipped so the session stays in step.
+     */
+    private TransferProtocol.FileAck receiveSessionFile(int index, TransferProtocol.FileHeader header,
+                                                        BlockSignatures signatures, DataInputStream dis,
+                                                        String saveDirectory, AtomicLong bytesReceived,
+                                                        TransferProgress progress,
+                                                        List<File> received) throws IOException {
+        progress.setFilePath(new File(saveDirectory, header.getFileName()).toPath());
+        ReceiveTarget target = new ReceiveTarget(header, saveDirectory, useJournal(header));
+        boolean complete = false;
+        try {
+            if (signatures != null && !signatures.isEmpty()) {
+                received.add(target.receiveDelta(dis, signatures, bytesReceived, progress));
+            } else {
+                target.open();
+                receiveChunks(dis, target, bytesReceived, false, progress);
+                if (progress.isCancelled()) {
+                    throw new IOException("Transfer was cancelled");
+                }
+                received.add(target.publish());
+            }
+            complete = true;
+            return new TransferProtocol.FileAck(index, true, null);
+        } catch (ChunkIntegrityException e) {
+            skipFrames(dis, header);
+            logger.warn("Rejecting {}: {}", header.getFileName(), e.getMessage());
+            return new TransferProtocol.FileAck(index, false, e.getMessage());
+        } catch (MissingChunksException | DeltaMismatchException e) {
+            logger.warn("Rejecting {}: {}", header.getFileName(), e.getMessage());
+            return new TransferProtocol.FileAck(index, false, e.getMessage());
+        } finally {
+            if (!complete) {
+                target.abandon(progress.isCancelled());
+            }
+        }
+    }
+
+    /**
+     * Send the packed files of a session as one run of entries. Files are
+     * read and checksummed ahead on the stream threads, and entries are
+     * gathered into one pooled buffer, so small files go out in large
+     * writes. A file that cannot be read, or no longer has the size given
+     * in the manifest, goes as a skipped entry.
+     */
+    private void sendPacked(List<File> files, List<TransferProtocol.FileHeader> headers, List<Integer> packed,
+                            WritableByteChannel channel, AtomicLong bytesSent,
+                            TransferProgress progress) throws IOException {
+        boolean checksum = headers.get(packed.get(0)).hasFlag(TransferProtocol.FLAG_CHECKSUM_TRAILER);
+        int trailerSize = checksum ? Integer.BYTES : 0;
+        ByteBuffer entryHeader = ByteBuffer.allocate(TransferProtocol.PACKED_ENTRY_HEADER_SIZE);
+        ByteBuffer trailer = ByteBuffer.allocate(trailerSize);
+        ByteBuffer batch = bufferPool.acquire(BufferPool.MAX_BUFFER_SIZE);
+        ArrayDeque<Future<PackedEntry>> window = new ArrayDeque<>();
+        int readAhead = config.getPackThreads();
+        TransferMetrics.Recorder metrics = progress.getMetrics();
+        int next = 0;
+
+        try {
+            for (int sent = 0; sent < packed.size(); sent++) {
+                while (next < packed.size() && window.size() < readAhead) {
+                    int index = packed.get(next++);
+                    window.add(executor.submitBackground(
+                        () -> readPacked(index, files.get(index), headers.get(index), checksum, progress)));
+                }
+                Future<PackedEntry> ready = window.poll();
+                if (!ready.isDone()) {
+                    // Nothing else to add, so what is gathered goes out while the read finishes
+                    flushBatch(channel, batch, metrics);
+                }
+                PackedEntry entry = awaitEntry(ready);
+                try {
+                    progress.setFilePath(files.get(entry.index).toPath());
+                    int length = entry.data != null ? entry.data.remaining() : TransferProtocol.PACKED_SKIPPED;
+                    int payload = Math.max(length, 0);
+                    long mark = System.nanoTime();
+                    progress.pace(payload);
+                    metrics.throttle(mark);
+                    int size = TransferProtocol.PACKED_ENTRY_HEADER_SIZE + payload + (entry.data != null ? trailerSize : 0);
+                    if (batch.remaining() < size) {
+                        flushBatch(channel, batch, metrics);
+                    }
+                    if (batch.remaining() >= size) {
+                        batch.putInt(entry.index).putInt(length);
+                        if (entry.data != null) {
+                            batch.put(entry.data);
+                            if (checksum) {
+                                batch.putInt(entry.crc);
+                            }
+                        }
+                    } else {
+                        entryHeader.clear();
+                        entryHeader.putInt(entry.index).putInt(length).flip();
+                        trailer.clear();
+                        if (checksum) {
+                            trailer.putInt(entry.crc);
+                        }
+                        trailer.flip();
+                        mark = System.nanoTime();
+                        MappedFileIO.writeFully(channel, entryHeader, entry.data, trailer);
+                        metrics.socket(mark);
+                    }
+                    bytesSent.addAndGet(payload);
+                } finally {
+                    bufferPool.release(entry.data);
+                }
+            }
+            flushBatch(channel, batch, metrics);
+        } finally {
+            for (Future<PackedEntry> pending : window) {
+                try {
+                    bufferPool.release(awaitEntry(pending).data);
+                } catch (IOException e) {
+                    logger.debug("Read-ahead of a packed file failed", e);
+                }
+            }
+            bufferPool.release(batch);
+        }
+    }
+
+    /**
+     * Read one packed file into a pooled buffer, with its CRC32C. The data
+     * is null when the file is skipped.
+     */
+    private PackedEntry readPacked(int index, File file, TransferProtocol.FileHeader header, boolean checksum,
+                                   TransferProgress progress) {
+        if (progress.isCancelled()) {
+            return new PackedEntry(index, null, 0);
+        }
+        TransferMetrics.Recorder metrics = progress.getMetrics();
+        int length = (int) header.getFileSize();
+        ByteBuffer data = bufferPool.acquire(length);
+        long mark = System.nanoTime();
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            data.limit(length);
+            while (data.hasRemaining()) {
+                if (fileChannel.read(data) < 0) {
+                    throw new EOFException("File truncated during transfer");
+                }
+            }
+            if (fileChannel.size() != length) {
+                throw new IOException("File changed size during transfer");
+            }
+        } catch (IOException e) {
+            bufferPool.release(data);
+            logger.warn("Skipping {}: {}", file, e.getMessage());
+            return new PackedEntry(index, null, 0);
+        }
+        data.flip();
+        mark = metrics.disk(mark);
+        int crc = 0;
+        if (checksum) {
+            CRC32C crc32c = new CRC32C();
+            crc32c.update(data);
+            data.rewind();
+            crc = (int) crc32c.getValue();
+            metrics.checksum(mark);
+        }
+        return new PackedEntry(index, data, crc);
+    }
+
+    /**
+     * Read the packed entries of a session and queue them for the writers.
+     */
+    private void receivePacked(DataInputStream dis, List<TransferProtocol.FileHeader> headers, int packedCount,
+                               BlockingQueue<PackedEntry> entries, AtomicReference<IOException> ackFailure,
+                               AtomicLong bytesReceived, TransferProgress progress) throws IOException, InterruptedException {
+        // Entries are read straight into their pooled buffers, through a channel when direct
+        ReadableByteChannel in = Channels.newChannel(dis);
+        BitSet seen = new BitSet(headers.size());
+        TransferMetrics.Recorder metrics = progress.getMetrics();
+
+        for (int n = 0; n < packedCount; n++) {
+            if (progress.isCancelled()) {
+                throw new IOException("Transfer was cancelled");
+            }
+            int index = dis.readInt();
+            int length = dis.readInt();
+            if (index < 0 || index >= headers.size() || seen.get(index)
+                    || !headers.get(index).hasFlag(TransferProtocol.FLAG_PACKED)) {
+                throw new IOException("Unexpected packed entry for file " + index);
+            }
+            seen.set(index);
+            TransferProtocol.FileHeader header = headers.get(index);
+            progress.setFilePath(new File(header.getFileName()).toPath());
+            PackedEntry entry;
+            if (length == TransferProtocol.PACKED_SKIPPED) {
+                entry = new PackedEntry(index, null, 0);
+            } else {
+                if (length != header.getFileSize()) {
+                    throw new IOException("Packed entry of " + header.getFileName() + " has " + length
+                        + " bytes, expected " + header.getFileSize());
+                }
+                ByteBuffer data = bufferPool.acquire(length);
+                try {
+                    long mark = System.nanoTime();
+                    if (data.hasArray()) {
+                        dis.readFully(data.array(), data.arrayOffset(), length);
+                        data.position(length);
+                    } else {
+                        data.limit(length);
+                        while (data.hasRemaining()) {
+                            if (in.read(data) < 0) {
+                                throw new EOFException("Connection closed inside packed entry " + header.getFileName());
+                            }
+                        }
+                    }
+                    int crc = header.hasFlag(TransferProtocol.FLAG_CHECKSUM_TRAILER) ? dis.readInt() : 0;
+                    mark = metrics.socket(mark);
+                    progress.pace(length);
+                    metrics.throttle(mark);
+                    entry = new PackedEntry(index, data.flip(), crc);
+                } catch (IOException e) {
+                    bufferPool.release(data);
+                    throw e;
+                }
+            }
+            IOException failure = ackFailure.get();
+            if (failure != null) {
+                bufferPool.release(entry.data);
+                throw failure;
+            }
+            entries.put(entry);
+            bytesReceived.addAndGet(Math.max(length, 0));
+        }
+    }
+
+    /**
+     * Write queued packed entries to their files and acknowledge each one.
+     * Runs until it takes an end marker; a failed acknowledgement is kept
+     * for the reader to stop on, while the queue is still drained.
+     */
+    private void writePacked(BlockingQueue<PackedEntry> entries, List<TransferProtocol.FileHeader> headers,
+                             String saveDirectory, Set<Path> directories, DataOutputStream dos,
+                             AtomicReference<IOException> ackFailure,
+                             TransferProgress progress, List<File> received) throws IOException, InterruptedException {
+        CRC32C crc32c = new CRC32C();
+        PackedEntry entry;
+        while ((entry = entries.take()) != PackedEntry.END) {
+            TransferProtocol.FileAck ack;
+            try {
+                ack = writePackedEntry(entry, headers.get(entry.index), saveDirectory, directories, crc32c, progress,
+                    received);
+            } finally {
+                bufferPool.release(entry.data);
+            }
+            if (ackFailure.get() != null) {
+                continue;
+            }
+            try {
+                synchronized (dos) {
+                    TransferProtocol.writeAck(dos, ack);
+                    PackedEntry waiting = entries.peek();
+                    if (waiting == null || waiting == PackedEntry.END) {
+                        dos.flush();
+                    }
+                }
+            } catch (IOException e) {
+                ackFailure.compareAndSet(null, e);
+            }
+        }
+        IOException failure = ackFailure.get();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private TransferProtocol.FileAck writePackedEntry(PackedEntry entry, TransferProtocol.FileHeader header,
+                                                      String saveDirectory, Set<Path> directories, CRC32C crc32c,
+                                                      TransferProgress progress, List<File> received) {
+        if (entry.data == null) {
+            logger.warn("Rejecting {}: the sender could not read it", header.getFileName());
+            return new TransferProtocol.FileAck(entry.index, false, "Sender could not read the file");
+        }
+        TransferMetrics.Recorder metrics = progress.getMetrics();
+        long mark = System.nanoTime();
+        if (header.hasFlag(TransferProtocol.FLAG_CHECKSUM_TRAILER)) {
+            crc32c.reset();
+            crc32c.update(entry.data);
+            entry.data.rewind();
+            mark = metrics.checksum(mark);
+            if ((int) crc32c.getValue() != entry.crc) {
+                logger.warn("Rejecting {}: packed entry failed its check", header.getFileName());
+                return new TransferProtocol.FileAck(entry.index, false, "Packed entry integrity check failed");
+            }
+        }
+        try {
+            File outFile = StagingFiles.resolveTarget(saveDirectory, header.getFileName(), directories);
+            Path staged = StagingFiles.create(outFile.toPath());
+            try (FileChannel fileChannel = FileChannel.open(staged, StandardOpenOption.WRITE)) {
+                while (entry.data.hasRemaining()) {
+                    fileChannel.write(entry.data);
+                }
+                durability.publish(fileChannel, staged, outFile.toPath());
+            } catch (IOException e) {
+                Files.deleteIfExists(staged);
+                throw e;
+            }
+            metrics.disk(mark);
+            received.add(outFile);
+            return new TransferProtocol.FileAck(entry.index, true, null);
+        } catch (IOException e) {
+            logger.warn("Rejecting {}: {}", header.getFileName(), e.getMessage());
+            return new TransferProtocol.FileAck(entry.index, false, e.getMessage());
+        }
+    }
+
+    /**
+     * Send a file as a delta against the receiver's block signatures.
+     */
+    private void sendDelta(FileChannel fileChannel, WritableByteChannel channel, TransferProtocol.FileHeader header,
+                           BlockSignatures signatures, AtomicLong bytesSent, TransferProgress progress) throws IOException {
+        DataOutputStream dos = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel), tuner.getBufferSize()));
+        long literalBytes = DeltaCodec.encode(fileChannel, signatures, dos, bytesSent::addAndGet, progress::isCancelled);
+        dos.flush();
+        logger.debug("Sent {} as a delta with {} of {} bytes literal",
+            header.getFileName(), literalBytes, header.getFileSize());
+    }
+
+    /**
+     * Send the root of the file's tree and serve the receiver's repair
+     * requests until it is satisfied. Chunks sent again go over the first
+     * connection.
+     */
+    private void serveRepairs(FileChannel fileChannel, WritableByteChannel channel, Socket control,
+                              DataInputStream dis, TransferProtocol.FileHeader header, MerkleTree tree,
+                              SendMode mode, TransferProgress progress) throws IOException {
+        DataOutputStream dos = new DataOutputStream(
+            new BufferedOutputStream(control.getOutputStream(), tuner.getBufferSize()));
+        TransferProtocol.writeHash(dos, tree.getRoot());
+        dos.flush();
+        int rounds = 0;
+        while (true) {
+            int request = TransferProtocol.readRepairRequest(dis);
+            if (request == TransferProtocol.REPAIR_DONE) {
+                return;
+            }
+            if (request == TransferProtocol.REPAIR_LEAVES) {
+                TransferProtocol.writeLeaves(dos, tree.getLeaves());
+                dos.flush();
+                continue;
+            }
+            if (++rounds > MAX_REPAIR_ROUNDS) {
+                throw new IOException("Receiver asked for more than " + MAX_REPAIR_ROUNDS + " repair rounds");
+            }
+            long[] chunks = expandRanges(TransferProtocol.readMissingRanges(dis, header.getChunkCount()));
+            logger.info("Sending {} chunks of {} again", chunks.length, header.getFileName());
+            sendChunks(fileChannel, null, channel, header, chunks, new AtomicInteger(), new AtomicLong(), mode,
+                progress);
+        }
+    }
+
+    /**
+     * Check the received file against the sender's root, and have missing
+     * chunks and chunks whose leaf differs sent again until it matches.
+     * Only the first round hashes the whole file; later rounds rehash the
+     * chunks they replaced.
+     */
+    private void repair(ReceiveTarget target, FileChannel fileChannel, DataInputStream dis, DataOutputStream dos,
+                        AtomicLong bytesReceived, TransferProgress progress, LongConsumer onProgress) throws IOException {
+        TransferProtocol.FileHeader header = target.header;
+        int chunkCount = (int) header.getChunkCount();
+        TransferMetrics.Recorder metrics = progress.getMetrics();
+        byte[] expectedRoot = TransferProtocol.readHash(dis);
+        MerkleTree tree = null;
+        BitSet replaced = null;
+        for (int round = 0; ; round++) {
+            long mark = System.nanoTime();
+            if (tree == null) {
+                tree = MerkleTree.compute(fileChannel, target.direct, header.getFileSize(), header.getChunkSize(),
+                    executor.getHashPool());
+            } else {
+                tree.rehash(fileChannel, target.direct, replaced, executor.getHashPool());
+            }
+            metrics.checksum(mark);
+
+            BitSet bad;
+            synchronized (target.receivedChunks) {
+                bad = (BitSet) target.receivedChunks.clone();
+            }
+            bad.flip(0, chunkCount);
+            if (bad.isEmpty()) {
+                if (Arrays.equals(tree.getRoot(), expectedRoot)) {
+                    TransferProtocol.writeRepairRequest(dos, TransferProtocol.REPAIR_DONE, null);
+                    dos.flush();
+                    if (round > 0) {
+                        logger.info("Repaired {} in {} rounds", header.getFileName(), round);
+                    }
+                    return;
+                }
+                // Every trailer matched, so the leaves tell which chunks are wrong
+                TransferProtocol.writeRepairRequest(dos, TransferProtocol.REPAIR_LEAVES, null);
+                dos.flush();
+                bad = tree.diff(TransferProtocol.readLeaves(dis, chunkCount));
+                if (bad.isEmpty()) {
+                    throw new IOException("File integrity check failed: the sender's root does not match its leaves");
+                }
+                synchronized (target.receivedChunks) {
+                    for (int i = bad.nextSetBit(0); i >= 0; i = bad.nextSetBit(i + 1)) {
+                        target.receivedChunks.clear(i);
+                        bytesReceived.addAndGet(-chunkLength(header, i));
+                    }
+                }
+            }
+            List<long[]> ranges = toRanges(bad);
+            if (round == MAX_REPAIR_ROUNDS) {
+                throw new IOException("File integrity check failed: chunks " + describeRanges(ranges)
+                    + " still bad after " + MAX_REPAIR_ROUNDS + " repair rounds");
+            }
+            logger.warn("Asking for chunks {} of {} again", describeRanges(ranges), header.getFileName());
+            TransferProtocol.writeRepairRequest(dos, TransferProtocol.REPAIR_CHUNKS, ranges);
+            dos.flush();
+            // Chunks sent again may be zero frames over what a bad copy left behind
+            target.holesFrom = header.getFileSize();
+            receiveChunks(dis, target, bytesReceived, true, progress);
+            onProgress.accept(bytesReceived.get());
+            if (progress.isCancelled()) {
+                throw new IOException("Transfer was cancelled");
+            }
+            replaced = bad;
+        }
+    }
+
+    /**
+     * Receive a file sent as a delta on the first stream. Any other streams
+     * carry nothing but their end-of-stream frame.
+     */
+    private File receiveDeltaStreams(ReceiveTarget target, BlockSignatures signatures, List<Socket> sockets,
+                                     TransferProgress progress, LongConsumer onProgress) throws IOException {
+        AtomicLong bytesReceived = new AtomicLong();
+        AtomicReference<File> outFile = new AtomicReference<>();
+        List<Callable<Void>> workers = new ArrayList<>(sockets.size());
+        for (Socket socket : sockets) {
+            DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), tuner.getBufferSize()));
+            if (workers.isEmpty()) {
+                workers.add(() -> {
+                    outFile.set(target.receiveDelta(dis, signatures, bytesReceived, progress));
+                    return null;
+                });
+            } else {
+                workers.add(() -> {
+                    if (dis.readLong() != TransferProtocol.END_OF_STREAM || dis.readInt() != 0) {
+                        throw new IOException("Unexpected frame on an idle delta stream");
+                    }
+                    return null;
+                });
+            }
+        }
+        runStreams(workers, sockets.subList(1, sockets.size()), bytesReceived, onProgress);
+        return outFile.get();
+    }
+
+    /**
+     * Send the pending chunks as frames until the shared cursor runs out.
+     * With direct, which may be null, chunks are read around the page cache
+     * into an aligned buffer, with no read-ahead, and zero chunks are not
+     * looked for, as the check would read every chunk through the cache.
+     *
+     * Zero chunks are found in what the send reads anyway: the mapping of
+     * a mapped send, or the first buffer of a copying one, which then goes
+     * out as the start of the chunk. Zero-copy sends read only the chunk's
+     * first page for the check. The rest of a chunk is only checked when
+     * its start is all zeros.
+     */
+    private void sendChunks(FileChannel fileChannel, DirectIO direct, WritableByteChannel channel,
+                            TransferProtocol.FileHeader header, long[] pending, AtomicInteger cursor,
+                            AtomicLong bytesSent, SendMode mode, TransferProgress progress) throws IOException {
+        if (header.hasFlag(TransferProtocol.FLAG_COMPRESSED)) {
+            sendCompressedChunks(fileChannel, channel, header, pending, cursor, bytesSent, progress);
+            return;
+        }
+        if (direct != null) {
+            mode = SendMode.STREAM;
+        }
+        boolean checksum = header.hasFlag(TransferProtocol.FLAG_CHECKSUM_TRAILER);
+        boolean sparse = header.hasFlag(TransferProtocol.FLAG_SPARSE) && direct == null;
+        ByteBuffer frameHeader = ByteBuffer.allocate(TransferProtocol.FRAME_HEADER_SIZE);
+        ByteBuffer trailer = ByteBuffer.allocate(checksum ? Integer.BYTES : 0);
+        // Mapped sends fall back to copying when a chunk cannot be mapped
+        ByteBuffer buffer = direct != null
+            ? direct.allocate(tuner.getBufferSize())
+            : mode != SendMode.ZERO_COPY ? bufferPool.acquire(tuner.getBufferSize()) : null;
+        ByteBuffer probe = sparse && buffer == null ? bufferPool.acquire(SPARSE_PROBE_SIZE) : null;
+        CRC32C crc32c = new CRC32C();
+        TransferMetrics.Recorder metrics = progress.getMetrics();
+        int next;
+
+        try (ReadAhead readAhead = direct != null
+                ? ReadAhead.none()
+                : ReadAhead.create(config, fileChannel, header.getFileSize(), header.getChunkSize(), bufferPool,
+                    executor::runBackground)) {
+            ChunkClaims claims = new ChunkClaims(header, pending, cursor, readAhead);
+            while ((next = claims.next()) >= 0 && !progress.isCancelled()) {
+                long chunkIndex = pending[next];
+                long offset = chunkIndex * header.getChunkSize();
+                int length = (int) chunkLength(header, chunkIndex);
+                long mark = System.nanoTime();
+                MappedByteBuffer mapped = mode == SendMode.MAPPED
+                    ? MappedFileIO.mapForRead(fileChannel, offset, length)
+                    : null;
+                // Bytes of the chunk already in buffer, read for the zero check
+                int head = 0;
+                if (sparse) {
+                    boolean zero;
+                    if (mapped != null) {
+                        zero = SparseFiles.isZero(mapped);
+                    } else {
+                        ByteBuffer window = buffer != null ? buffer : probe;
+                        int read = SparseFiles.readWindow(fileChannel, offset, length, window);
+                        zero = SparseFiles.isZero(window) && (read == length
+                            || SparseFiles.isZeroRegion(fileChannel, offset + read, length - read, bufferPool));
+                        head = buffer != null ? read : 0;
+                    }
+                    if (zero) {
+                        metrics.disk(mark);
+                        writeZeroFrame(channel, frameHeader, offset, length);
+                        bytesSent.addAndGet(length);
+                        continue;
+                    }
+                }
+                mark = metrics.disk(mark);
+                progress.pace(length);
+                mark = metrics.throttle(mark);
+
+                frameHeader.clear();
+                frameHeader.putLong(offset).putInt(length).flip();
+                trailer.clear();
+                crc32c.reset();
+
+                if (mapped != null) {
+                    if (checksum) {
+                        crc32c.update(mapped.duplicate());
+                        trailer.putInt((int) crc32c.getValue());
+                        mark = metrics.checksum(mark);
+                    }
+                    trailer.flip();
+                    MappedFileIO.writeFully(channel, frameHeader, mapped, trailer);
+                    metrics.socket(mark);
+                } else if (mode == SendMode.STREAM || mode == SendMode.MAPPED) {
+                    writeFully(channel, frameHeader);
+                    if (head > 0) {
+                        sendRead(channel, buffer, checksum ? crc32c : null, metrics, mark);
+                    }
+                    sendBuffered(fileChannel, direct, offset + head, length - head, channel, buffer,
+                        checksum ? crc32c : null, metrics);
+                    writeTrailer(channel, trailer, checksum, crc32c);
+                } else {
+                    writeFully(channel, frameHeader);
+                    transferFully(fileChannel, offset, length, channel);
+                    mark = metrics.socket(mark);
+                    if (checksum) {
+                        MappedByteBuffer sent = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                        crc32c.update(sent);
+                        metrics.checksum(mark);
+                    }
+                    writeTrailer(channel, trailer, checksum, crc32c);
+                }
+                bytesSent.addAndGet(length);
+            }
+        } finally {
+            if (direct == null) {
+                bufferPool.release(buffer);
+            }
+            bufferPool.release(probe);
+        }
+
+        frameHeader.clear();
+        frameHeader.putLong(TransferProtocol.END_OF_STREAM).putInt(0).flip();
+        writeFully(channel, frameHeader);
+    }
+
+    /**
+     * Send chunk frames that carry a codec and the encoded length, with each
+     * chunk compressed when the ChunkCompressor finds it worthwhile. The
+     * trailer always covers the original bytes.
+     */
+    private void sendCompressedChunks(FileChannel fileChannel, WritableByteChannel channel,
+                                      TransferProtocol.FileHeader header, long[] pending, AtomicInteger cursor,
+                                      AtomicLong bytesSent, TransferProgress progress) throws IOException {
+        boolean checksum = header.hasFlag(TransferProtocol.FLAG_CHECKSUM_TRAILER);
+        boolean sparse = header.hasFlag(TransferProtocol.FLAG_SPARSE);
+        boolean compressible = !ChunkCompressor.isCompressedType(header.getFileName());
+        ByteBuffer frameHeader = ByteBuffer.allocate(TransferProtocol.COMPRESSED_FRAME_HEADER_SIZE);
+        ByteBuffer trailer = ByteBuffer.allocate(checksum ? Integer.BYTES : 0);
+        byte[] chunk = new byte[0];
+        CRC32C crc32c = new CRC32C();
+        long encodedBytes = 0;
+        long originalBytes = 0;
+        TransferMetrics.Recorder metrics = progress.getMetrics();
+        int next;
+
+        try (ChunkCompressor compressor = new ChunkCompressor();
+             ReadAhead readAhead = ReadAhead.create(config, fileChannel, header.getFileSize(),
+                 header.getChunkSize(), bufferPool, executor::runBackground)) {
+            ChunkClaims claims = new ChunkClaims(header, pending, cursor, readAhead);
+            while ((next = claims.next()) >= 0 && !progress.isCancelled()) {
+                long chunkIndex = pending[next];
+                long offset = chunkIndex * header.getChunkSize();
+                int length = (int) chunkLength(header, chunkIndex);
+                if (chunk.length < length) {
+                    chunk = new byte[header.getChunkSize()];
+                }
+                ByteBuffer content = ByteBuffer.wrap(chunk, 0, length);
+                long mark = System.nanoTime();
+                while (content.hasRemaining()) {
+                    if (fileChannel.read(content, offset + content.position()) < 0) {
+                        throw new EOFException("File truncated during transfer");
+                    }
+                }
+                if (sparse && SparseFiles.isZero(chunk, length)) {
+                    metrics.disk(mark);
+                    writeZeroFrame(channel, frameHeader, offset, length);
+                    originalBytes += length;
+                    bytesSent.addAndGet(length);
+                    continue;
+                }
+                mark = metrics.disk(mark);
+
+                trailer.clear();
+                if (checksum) {
+                    crc32c.reset();
+                    crc32c.update(chunk, 0, length);
+                    trailer.putInt((int) crc32c.getValue());
+                    metrics.checksum(mark);
+                }
+                trailer.flip();
+
+                ByteBuffer payload;
+                frameHeader.clear();
+                frameHeader.putLong(offset).putInt(length);
+                if (compressible && compressor.compress(chunk, length)) {
+                    payload = ByteBuffer.wrap(compressor.getBuffer(), 0, compressor.getLength());
+                    frameHeader.put((byte) ChunkCompressor.CODEC_DEFLATE).putInt(compressor.getLength());
+                } else {
+                    payload = ByteBuffer.wrap(chunk, 0, length);
+                    frameHeader.put((byte) ChunkCompressor.CODEC_RAW).putInt(length);
+                }
+                frameHeader.flip();
+                mark = System.nanoTime();
+                progress.pace(payload.remaining());
+                mark = metrics.throttle(mark);
+                encodedBytes += payload.remaining();
+                originalBytes += length;
+                MappedFileIO.writeFully(channel, frameHeader, payload, trailer);
+                metrics.socket(mark);
+                bytesSent.addAndGet(length);
+            }
+        }
+
+        frameHeader.clear();
+        frameHeader.putLong(TransferProtocol.END_OF_STREAM).putInt(0).flip();
+        writeFully(channel, frameHeader);
+        if (originalBytes > 0) {
+            logger.debug("Sent {} bytes of {} as {} bytes", originalBytes, header.getFileName(), encodedBytes);
+        }
+    }
+
+    private void sendBuffered(FileChannel fileChannel, DirectIO direct, long offset, int length,
+                              WritableByteChannel channel, ByteBuffer buffer, CRC32C crc32c,
+                              TransferMetrics.Recorder metrics) throws IOException {
+        long position = offset;
+        long end = offset + length;
+        long mark = System.nanoTime();
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = direct != null ? direct.read(buffer, position) : fileChannel.read(buffer, position);
+            mark = metrics.disk(mark);
+            if (read < 0) {
+                throw new EOFException("File truncated during transfer");
+            }
+            buffer.flip();
+            mark = sendRead(channel, buffer, crc32c, metrics, mark);
+            position += read;
+        }
+    }
+
+    /**
+     * Send what was read into the buffer, adding it to the checksum first
+     * if crc32c is not null.
+     */
+    private long sendRead(WritableByteChannel channel, ByteBuffer buffer, CRC32C crc32c,
+                          TransferMetrics.Recorder metrics, long mark) throws IOException {
+        if (crc32c != null) {
+            crc32c.update(buffer);
+            buffer.rewind();
+            mark = metrics.checksum(mark);
+        }
+        writeFully(channel, buffer);
+        return metrics.socket(mark);
+    }
+
+    /**
+     * Send a chunk that reads as all zeros as a zero frame: its offset and
+     * its length negated, with nothing after it.
+     */
+    private void writeZeroFrame(WritableByteChannel channel, ByteBuffer frameHeader, long offset,
+                                int length) throws IOException {
+        frameHeader.clear();
+        frameHeader.putLong(offset).putInt(-length).flip();
+        writeFully(channel, frameHeader);
+    }
+
+    private void writeTrailer(WritableByteChannel channel, ByteBuffer trailer, boolean checksum,
+                              CRC32C crc32c) throws IOException {
+        if (checksum) {
+            trailer.putInt((int) crc32c.getValue()).flip();
+            writeFully(channel, trailer);
+        }
+    }
+
+    /**
+     * Receive chunk frames up to the end-of-stream frame. A repairable
+     * chunk that fails its check is left missing so it can be asked for
+     * again; otherwise it fails the file.
+     *
+     * Payloads, inflated ones included, go through a ReceivePipeline, so a
+     * disk writer keeps up with the stream instead of the stream waiting on
+     * every write.
+     */
+    private void receiveChunks(DataInputStream dis, ReceiveTarget target, AtomicLong bytesReceived,
+                               boolean repairable, TransferProgress progress) throws IOException {
+        // Heap buffers, as the stream reads into arrays, unless direct I/O needs its own
+        try (ReceivePipeline pipeline = ReceivePipeline.create(config, target.channel, target.direct,
+                target.header.getFileSize(), tuner.getBufferSize(), null, executor::runBackground, progress.getMetrics())) {
+            receiveChunks(dis, target, pipeline, bytesReceived, repairable, progress);
+        }
+    }
+
+    private void receiveChunks(DataInputStream dis, ReceiveTarget target, ReceivePipeline pipeline,
+                               AtomicLong bytesReceived, boolean repairable,
+                               TransferProgress progress) throws IOException {
+        TransferProtocol.FileHeader header = target.header;
+        boolean checksum = header.hasFlag(TransferProtocol.FLAG_CHECKSUM_TRAILER);
+        boolean compressed = header.hasFlag(TransferProtocol.FLAG_COMPRESSED);
+        boolean sparse = header.hasFlag(TransferProtocol.FLAG_SPARSE);
+        byte[] payload = new byte[0];
+        byte[] chunk = new byte[0];
+        // Direct buffers are filled through a channel over the stream
+        ReadableByteChannel in = target.direct != null ? Channels.newChannel(dis) : null;
+        CRC32C crc32c = new CRC32C();
+        TransferMetrics.Recorder metrics = progress.getMetrics();
+
+        while (!progress.isCancelled()) {
+            long offset = dis.readLong();
+            int length = dis.readInt();
+            if (offset == TransferProtocol.END_OF_STREAM) {
+                pipeline.finish();
+                return;
+            }
+            if (sparse && length < 0) {
+                long chunkIndex = validateFrame(header, offset, -length);
+                long mark = System.nanoTime();
+                target.fillZeros(offset, -length);
+                metrics.disk(mark);
+                completeChunk(target, chunkIndex, offset, -length, bytesReceived);
+                continue;
+            }
+            long chunkIndex = validateFrame(header, offset, length);
+            crc32c.reset();
+
+            if (compressed && readCodec(dis, length) == ChunkCompressor.CODEC_DEFLATE) {
+                int payloadLength = dis.readInt();
+                if (payloadLength <= 0 || payloadLength >= length) {
+                    throw new IOException("Invalid compressed length " + payloadLength + " at offset " + offset);
+                }
+                if (payload.length < payloadLength) {
+                    payload = new byte[length];
+                }
+                if (chunk.length < length) {
+                    chunk = new byte[header.getChunkSize()];
+                }
+                long mark = System.nanoTime();
+                dis.readFully(payload, 0, payloadLength);
+                mark = metrics.socket(mark);
+                try {
+                    ChunkCompressor.decompress(payload, payloadLength, chunk, length);
+                } catch (IOException e) {
+                    // Still aligned on the next field, so only this chunk is lost
+                    if (checksum) {
+                        dis.readInt();
+                    }
+                    if (repairable) {
+                        logger.debug("Chunk at offset {} did not decompress, leaving it for repair", offset);
+                        continue;
+                    }
+                    throw new ChunkIntegrityException(offset);
+                }
+                mark = System.nanoTime();
+                if (checksum) {
+                    crc32c.update(chunk, 0, length);
+                    metrics.checksum(mark);
+                }
+                if (checksum && dis.readInt() != (int) crc32c.getValue()) {
+                    if (repairable) {
+                        logger.debug("Chunk at offset {} failed its check, leaving it for repair", offset);
+                        continue;
+                    }
+                    throw new ChunkIntegrityException(offset);
+                }
+                // Only chunks that check out are written, through the same writer as the others
+                queueWrites(pipeline, chunk, length, offset);
+                pipeline.afterWrites(() -> completeChunk(target, chunkIndex, offset, length, bytesReceived));
+                mark = System.nanoTime();
+                progress.pace(length);
+                metrics.throttle(mark);
+                continue;
+            }
+
+            // The writer takes the payload; the chunk counts once it is on disk
+            long position = offset;
+            int remaining = length;
+            while (remaining > 0) {
+                ByteBuffer buffer = pipeline.acquire();
+                int read = Math.min(buffer.capacity(), remaining);
+                long mark = System.nanoTime();
+                if (buffer.hasArray()) {
+                    readPayload(dis, buffer.array(), read, offset);
+                    buffer.limit(read);
+                } else {
+                    readPayload(in, buffer.limit(read), offset);
+                    buffer.flip();
+                }
+                mark = metrics.socket(mark);
+                if (checksum) {
+                    crc32c.update(buffer);
+                    buffer.rewind();
+                    metrics.checksum(mark);
+                }
+                pipeline.write(buffer, position);
+                position += read;
+                remaining -= read;
+            }
+
+            if (checksum && dis.readInt() != (int) crc32c.getValue()) {
+                if (repairable) {
+                    logger.debug("Chunk at offset {} failed its check, leaving it for repair", offset);
+                    continue;
+                }
+                throw new ChunkIntegrityException(offset);
+            }
+            pipeline.afterWrites(() -> completeChunk(target, chunkIndex, offset, length, bytesReceived));
+            long mark = System.nanoTime();
+            progress.pace(length);
+            metrics.throttle(mark);
+        }
+    }
+
+    /**
+     * Queue bytes already in memory, like an inflated chunk, to be written
+     * at the file offset.
+     */
+    private static void queueWrites(ReceivePipeline pipeline, byte[] data, int length, long offset) throws IOException {
+        int queued = 0;
+        while (queued < length) {
+            ByteBuffer buffer = pipeline.acquire();
+            int count = Math.min(buffer.capacity(), length - queued);
+            buffer.put(data, queued, count).flip();
+            pipeline.write(buffer, offset + queued);
+            queued += count;
+        }
+    }
+
+    private static void readPayload(DataInputStream dis, byte[] buffer, int length, long offset) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int read = dis.read(buffer, filled, length - filled);
+            if (read < 0) {
+                throw new EOFException("Connection closed inside chunk at offset " + offset);
+            }
+            filled += read;
+        }
+    }
+
+    private static void readPayload(ReadableByteChannel in, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("Connection closed inside chunk at offset " + offset);
+            }
+        }
+    }
+
+    /**
+     * Receive chunk frames reading each payload straight into a mapping of
+     * its target region. Failed chunks are handled as in receiveChunks.
+     */
+    private void receiveChunksMapped(SocketChannel channel, MappedFileIO.WindowCache windows, ReceiveTarget target,
+                                     AtomicLong bytesReceived, boolean repairable,
+                                     TransferProgress progress) throws IOException {
+        TransferProtocol.FileHeader header = target.header;
+        FileChannel fileChannel = target.channel;
+        boolean checksum = header.hasFlag(TransferProtocol.FLAG_CHECKSUM_TRAILER);
+        boolean sparse = header.hasFlag(TransferProtocol.FLAG_SPARSE);
+        ByteBuffer frameHeader = ByteBuffer.allocate(TransferProtocol.FRAME_HEADER_SIZE);
+        ByteBuffer trailer = ByteBuffer.allocate(Integer.BYTES);
+        CRC32C crc32c = new CRC32C();
+        TransferMetrics.Recorder metrics = progress.getMetrics();
+
+        while (!progress.isCancelled()) {
+            frameHeader.clear();
+            readFully(channel, frameHeader);
+            frameHeader.flip();
+            long offset = frameHeader.getLong();
+            int length = frameHeader.getInt();
+            if (offset == TransferProtocol.END_OF_STREAM) {
+                return;
+            }
+            if (sparse && length < 0) {
+                long chunkIndex = validateFrame(header, offset, -length);
+                long mark = System.nanoTime();
+                target.fillZeros(offset, -length);
+                metrics.disk(mark);
+                completeChunk(target, chunkIndex, offset, -length, bytesReceived);
+                continue;
+            }
+            long chunkIndex = validateFrame(header, offset, length);
+
+            crc32c.reset();
+            ByteBuffer slice = windows.slice(offset, length);
+            if (slice != null) {
+                MappedFileIO.receive(channel, slice, checksum ? crc32c : null, metrics);
+            } else {
+                MappedFileIO.receive(channel, fileChannel, offset, length, checksum ? crc32c : null, metrics,
+                    bufferPool, read -> { });
+            }
+
+            if (checksum) {
+                trailer.clear();
+                readFully(channel, trailer);
+                trailer.flip();
+                if (trailer.getInt() != (int) crc32c.getValue()) {
+                    if (repairable) {
+                        logger.debug("Chunk at offset {} failed its check, leaving it for repair", offset);
+                        continue;
+                    }
+                    throw new ChunkIntegrityException(offset);
+                }
+            }
+            completeChunk(target, chunkIndex, offset, length, bytesReceived);
+            long mark = System.nanoTime();
+            progress.pace(length);
+            metrics.throttle(mark);
+        }
+    }
+
+    private void completeChunk(ReceiveTarget target, long chunkIndex, long offset, int length,
+                               AtomicLong bytesReceived) throws IOException {
+        BitSet receivedChunks = target.receivedChunks;
+        synchronized (receivedChunks) {
+            if (receivedChunks.get((int) chunkIndex)) {
+                throw new IOException("Duplicate chunk at offset " + offset);
+            }
+            receivedChunks.set((int) chunkIndex);
+        }
+        if (target.journal != null) {
+            target.journal.markCompleted(chunkIndex);
+        }
+        target.tracker.written(length);
+        bytesReceived.addAndGet(length);
+    }
+
+    private void acceptStreams(TransferProtocol.FileHeader header, ServerSocket serverSocket,
+                               List<Socket> sockets) throws IOException {
+        if (header.getStreamCount() <= 1) {
+            return;
+        }
+        int previousTimeout = serverSocket.getSoTimeout();
+        serverSocket.setSoTimeout(JOIN_TIMEOUT_MS);
+        try {
+            while (sockets.size() < header.getStreamCount()) {
+                Socket socket = serverSocket.accept();
+                socket.setSoTimeout(socketTimeoutMs);
+                tuner.applyTo(socket);
+                long sessionId = TransferProtocol.readStreamJoin(new DataInputStream(socket.getInputStream()));
+                if (sessionId != header.getSessionId()) {
+                    logger.warn("Rejecting stream for unknown session from {}", socket.getInetAddress());
+                    closeQuietly(socket);
+                    continue;
+                }
+                sockets.add(socket);
+            }
+        } finally {
+            serverSocket.setSoTimeout(previousTimeout);
+        }
+    }
+
+    /**
+     * A failed resumable receive keeps its .part file and journal for the
+     * next attempt; a cancelled or non-resumable one is removed.
+     */
+    private void cleanupFailedReceive(Path targetPath, TransferJournal journal, boolean cancelled) {
+        try {
+            if (journal == null || cancelled) {
+                if (journal != null) {
+                    journal.delete();
+                }
+                Files.deleteIfExists(targetPath);
+            } else {
+                journal.close();
+                logger.info("Keeping {} ({} chunks verified) for resume",
+                    targetPath.getFileName(), journal.getCompletedCount());
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to clean up {}", targetPath, e);
+        }
+    }
+
+    private long validateFrame(TransferProtocol.FileHeader header, long offset, int length) throws IOException {
+        long chunkSize = header.getChunkSize();
+        if (offset < 0 || offset % chunkSize != 0 || offset >= header.getFileSize()) {
+            throw new IOException("Invalid chunk offset: " + offset);
+        }
+        long chunkIndex = offset / chunkSize;
+        if (length != chunkLength(header, chunkIndex)) {
+            throw new IOException("Invalid chunk length " + length + " at offset " + offset);
+        }
+        return chunkIndex;
+    }
+
+    /**
+     * Read and discard frames up to the end of the current file.
+     */
+    private void skipFrames(DataInputStream dis, TransferProtocol.FileHeader header) throws IOException {
+        int trailerLength = header.hasFlag(TransferProtocol.FLAG_CHECKSUM_TRAILER) ? Integer.BYTES : 0;
+        while (true) {
+            long offset = dis.readLong();
+            int length = dis.readInt();
+            if (offset == TransferProtocol.END_OF_STREAM) {
+                return;
+            }
+            if (header.hasFlag(TransferProtocol.FLAG_SPARSE) && length < 0) {
+                validateFrame(header, offset, -length);
+                continue;
+            }
+            validateFrame(header, offset, length);
+            int payloadLength = length;
+            if (header.hasFlag(TransferProtocol.FLAG_COMPRESSED) && readCodec(dis, length) != ChunkCompressor.CODEC_RAW) {
+                payloadLength = dis.readInt();
+            }
+            dis.skipNBytes((long) payloadLength + trailerLength);
+        }
+    }
+
+    /**
+     * Read the codec of a compressed frame. A raw payload's length field is
+     * consumed and checked here, as it always equals the chunk length.
+     */
+    private int readCodec(DataInputStream dis, int length) throws IOException {
+        int codec = dis.readUnsignedByte();
+        if (codec == ChunkCompressor.CODEC_RAW) {
+            int payloadLength = dis.readInt();
+            if (payloadLength != length) {
+                throw new IOException("Raw payload of " + payloadLength + " bytes in a chunk of " + length);
+            }
+        } else if (codec != ChunkCompressor.CODEC_DEFLATE) {
+            throw new IOException("Unknown chunk codec: " + codec);
+        }
+        return codec;
+    }
+
+    /**
+     * Files of a single chunk have nothing to resume, so they skip the journal.
+     */
+    private static boolean useJournal(TransferProtocol.FileHeader header) {
+        return header.hasFlag(TransferProtocol.FLAG_RESUMABLE) && header.getChunkCount() > 1;
+    }
+
+    /**
+     * Run one worker per stream and report progress from the calling thread
+     * until they all finish. The first failure closes the extra streams,
+     * which unblocks their workers.
+     */
+    private void runStreams(List<Callable<Void>> workers, List<? extends Closeable> extraStreams, AtomicLong bytes,
+                            LongConsumer onProgress) throws IOException {
+        CountDownLatch done = new CountDownLatch(workers.size());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Future<?>> futures = new ArrayList<>(workers.size());
+        for (Callable<Void> worker : workers) {
+            futures.add(executor.submitBackground(() -> {
+                try {
+                    worker.call();
+                } catch (Throwable t) {
+                    if (failure.compareAndSet(null, t)) {
+                        extraStreams.forEach(this::closeQuietly);
+                    }
+                } finally {
+                    done.countDown();
+                }
+                return null;
+            }));
+        }
+
+        try {
+            while (!done.await(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                onProgress.accept(bytes.get());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Chunked transfer interrupted");
+        }
+        onProgress.accept(bytes.get());
+
+        Throwable error = failure.get();
+        if (error != null) {
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            throw new IOException("Transfer stream failed", error);
+        }
+    }
+
+    private static PackedEntry awaitEntry(Future<PackedEntry> entry) throws IOException {
+        try {
+            return entry.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Reading a packed file failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        }
+    }
+
+    private void flushBatch(WritableByteChannel channel, ByteBuffer batch, TransferMetrics.Recorder metrics)
+            throws IOException {
+        if (batch.position() > 0) {
+            batch.flip();
+            long mark = System.nanoTime();
+            writeFully(channel, batch);
+            metrics.socket(mark);
+        }
+        batch.clear();
+    }
+
+    private static MerkleTree awaitTree(Future<MerkleTree> tree) throws IOException {
+        try {
+            return tree.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Hashing failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing");
+        }
+    }
+
+    /**
+     * Runs of set bits as {firstChunk, count} pairs.
+     */
+    private static List<long[]> toRanges(BitSet chunks) {
+        List<long[]> ranges = new ArrayList<>();
+        int start = chunks.nextSetBit(0);
+        while (start >= 0) {
+            int end = chunks.nextClearBit(start);
+            ranges.add(new long[] {start, end - start});
+            start = chunks.nextSetBit(end);
+        }
+        return ranges;
+    }
+
+    private static String describeRanges(List<long[]> ranges) {
+        StringBuilder description = new StringBuilder();
+        for (long[] range : ranges) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(range[0]);
+            if (range[1] > 1) {
+                description.append('-').append(range[0] + range[1] - 1);
+            }
+        }
+        return description.toString();
+    }
+
+    private static long[] expandRanges(List<long[]> ranges) {
+        long total = 0;
+        for (long[] range : ranges) {
+            total += range[1];
+        }
+        long[] chunks = new long[(int) total];
+        int index = 0;
+        for (long[] range : ranges) {
+            for (long i = 0; i < range[1]; i++) {
+                chunks[index++] = range[0] + i;
+            }
+        }
+        return chunks;
+    }
+
+    private static long chunkLength(TransferProtocol.FileHeader header, long chunkIndex) {
+        long offset = chunkIndex * header.getChunkSize();
+        return Math.min(header.getChunkSize(), header.getFileSize() - offset);
+    }
+
+    private static Path partPath(File outFile) {
+        return StagingFiles.hiddenSibling(outFile.toPath(), PART_SUFFIX);
+    }
+
+    private static Path journalPath(File outFile) {
+        return StagingFiles.hiddenSibling(outFile.toPath(), PART_SUFFIX + JOURNAL_SUFFIX);
+    }
+
+    private static Path deltaPath(File outFile) {
+        return StagingFiles.hiddenSibling(outFile.toPath(), DELTA_SUFFIX);
+    }
+
+    private SocketChannel openChannel(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        // Buffers sized before connecting take part in window scaling
+        tuner.applyTo(channel.socket());
+        channel.connect(new InetSocketAddress(host, port));
+        channel.socket().setSoTimeout(socketTimeoutMs);
+        return channel;
+    }
+
+    private void transferFully(FileChannel fileChannel, long position, long count,
+                               WritableByteChannel channel) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long sent = fileChannel.transferTo(position, end - position, channel);
+            if (sent <= 0) {
+                if (position >= fileChannel.size()) {
+                    throw new EOFException("File truncated during transfer");
+                }
+                // A timed read on the same socket leaves it non-blocking underneath, and
+                // transferTo then returns 0 on a full send buffer where a write would wait
+                sent = Math.min(end - position, TRANSFER_RETRY_SIZE);
+                // The caller books the whole transfer as socket time
+                ByteBuffer buffer = bufferPool.acquire((int) sent);
+                try {
+                    sendBuffered(fileChannel, null, position, (int) sent, channel, buffer, null,
+                        new TransferMetrics.Recorder());
+                } finally {
+                    bufferPool.release(buffer);
+                }
+            }
+            position += sent;
+        }
+    }
+
+    private void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed inside a frame");
+            }
+        }
+    }
+
+    private void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.debug("Error closing stream", e);
+        }
+    }
+
+    /**
+     * The file a chunked receive writes into: a new staging file, or a
+     * .part file with a journal beside it when the transfer can be resumed.
+     * Either is published over the target once every chunk is in.
+     */
+    private final class ReceiveTarget {
+        private final TransferProtocol.FileHeader header;
+        private final File outFile;
+        private Path path;
+        private final TransferJournal journal;
+        private final BitSet receivedChunks = new BitSet();
+        private long alreadyPresent;
+        private FileChannel channel;
+        private DirectIO direct;
+        private DurabilityPolicy.Tracker tracker;
+        private Path rebuildPath;
+        // Zero frames at or past this offset land on holes the transfer never wrote
+        private volatile long holesFrom;
+
+        ReceiveTarget(TransferProtocol.FileHeader header, String saveDirectory, boolean useJournal) throws IOException {
+            this.header = header;
+            this.outFile = StagingFiles.resolveTarget(saveDirectory, header.getFileName());
+            // Without a journal the staging file is only created once it is opened
+            this.path = useJournal ? partPath(outFile) : null;
+            this.journal = useJournal
+                ? TransferJournal.open(journalPath(outFile), header.getFileId(), header.getFileSize(),
+                                       header.getChunkSize())
+                : null;
+            if (journal != null) {
+                for (long i = 0; i < header.getChunkCount(); i++) {
+                    if (journal.isCompleted(i)) {
+                        receivedChunks.set((int) i);
+                        alreadyPresent += chunkLength(header, i);
+                    }
+                }
+            }
+        }
+
+        long getAlreadyPresent() {
+            return alreadyPresent;
+        }
+
+        List<long[]> getMissingRanges() {
+            if (journal != null) {
+                return journal.getMissingRanges();
+            }
+            return header.getChunkCount() > 0
+                ? List.of(new long[] {0, header.getChunkCount()})
+                : List.of();
+        }
+
+        /**
+         * Signatures of the copy already in the save directory, or NONE if
+         * there is no copy or a resume of the file is under way.
+         */
+        BlockSignatures getSignatures() throws IOException {
+            if (alreadyPresent > 0 || !outFile.isFile()) {
+                return BlockSignatures.NONE;
+            }
+            return BlockSignatures.compute(outFile.toPath());
+        }
+
+        FileChannel open() throws IOException {
+            if (path == null) {
+                path = StagingFiles.create(outFile.toPath());
+            }
+            // READ is needed for read-write mappings
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            tracker = durability.track(channel);
+            StagingFiles.hide(path);
+            // Sized up front, which also spares zero chunks from being written
+            holesFrom = channel.size();
+            StagingFiles.preallocate(channel, header.getFileSize());
+            // Read as well, as repairs hash the file back
+            direct = DirectIO.open(config, path, header.getFileSize(), channel, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            return channel;
+        }
+
+        /**
+         * Make a chunk sent as a zero frame read as zeros. Beyond what was
+         * in the file when it was opened, the chunk is still a hole; before
+         * it, a resumed .part may hold old data there.
+         */
+        void fillZeros(long offset, int length) throws IOException {
+            if (offset < holesFrom) {
+                SparseFiles.zeroRegion(channel, offset, length, bufferPool);
+            }
+        }
+
+        /**
+         * Check that every chunk arrived and publish the file over the
+         * target.
+         */
+        File publish() throws IOException {
+            if (receivedChunks.cardinality() != header.getChunkCount()) {
+                throw new MissingChunksException(receivedChunks.cardinality(), header.getChunkCount());
+            }
+            channel.truncate(header.getFileSize());
+            if (journal != null) {
+                // A .part left without its journal is received again from scratch
+                journal.delete();
+            }
+            if (direct != null) {
+                direct.close();
+            }
+            durability.publish(channel, path, outFile.toPath());
+            return outFile;
+        }
+
+        /**
+         * Rebuild the file from a delta against the existing copy into a
+         * .delta file beside it, and swap that in once it checks out. The
+         * copy itself is left untouched until then.
+         */
+        File receiveDelta(DataInputStream dis, BlockSignatures signatures, AtomicLong bytesReceived,
+                          TransferProgress progress) throws IOException {
+            rebuildPath = deltaPath(outFile);
+            boolean verified;
+            try (FileChannel basis = FileChannel.open(outFile.toPath(), StandardOpenOption.READ)) {
+                channel = FileChannel.open(rebuildPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                StagingFiles.hide(rebuildPath);
+                verified = DeltaCodec.decode(dis, basis, signatures, channel, header.getFileSize(), bytes -> {
+                    bytesReceived.addAndGet(bytes);
+                    if (progress.isCancelled()) {
+                        throw new CancellationException();
+                    }
+                });
+            } catch (CancellationException e) {
+                throw new IOException("Transfer was cancelled");
+            }
+            if (!verified) {
+                throw new DeltaMismatchException(header.getFileName());
+            }
+            if (journal != null) {
+                journal.delete();
+                Files.deleteIfExists(path);
+            }
+            durability.publish(channel, rebuildPath, outFile.toPath());
+            return outFile;
+        }
+
+        /**
+         * Close the journal without touching the partial file.
+         */
+        void release() throws IOException {
+            if (journal != null) {
+                journal.close();
+            }
+        }
+
+        void abandon(boolean cancelled) {
+            if (channel == null && journal == null) {
+                // Nothing was written, and an existing file there is kept
+                return;
+            }
+            if (channel != null) {
+                if (tracker != null) {
+                    tracker.close();
+                }
+                if (direct != null) {
+                    closeQuietly(direct);
+                }
+                closeQuietly(channel);
+            }
+            if (rebuildPath != null) {
+                // A delta never writes to the copy it is based on, so only its own files go
+                try {
+                    Files.deleteIfExists(rebuildPath);
+                } catch (IOException e) {
+                    logger.warn("Failed to clean up {}", rebuildPath, e);
+                }
+                if (journal != null) {
+                    cleanupFailedReceive(path, journal, true);
+                }
+                return;
+            }
+            cleanupFailedReceive(path, journal, cancelled);
+        }
+    }
+
+    /**
+     * The chunks one stream takes from the cursor shared by all streams.
+     * With read-ahead the stream claims a few chunks past the one it sends,
+     * so they can be read in the meantime; without it, one at a time.
+     */
+    private static final class ChunkClaims {
+        private final TransferProtocol.FileHeader header;
+        private final long[] pending;
+        private final AtomicInteger cursor;
+        private final ReadAhead readAhead;
+        private final ArrayDeque<Integer> claimed = new ArrayDeque<>();
+
+        ChunkClaims(TransferProtocol.FileHeader header, long[] pending, AtomicInteger cursor, ReadAhead readAhead) {
+            this.header = header;
+            this.pending = pending;
+            this.cursor = cursor;
+            this.readAhead = readAhead;
+        }
+
+        /**
+         * Index into pending of the next chunk to send, or -1 once all are
+         * taken.
+         */
+        int next() {
+            while (claimed.size() <= readAhead.getDepth()) {
+                int next = cursor.getAndIncrement();
+                if (next >= pending.length) {
+                    break;
+                }
+                claimed.add(next);
+                long chunkIndex = pending[next];
+                readAhead.prefetch(chunkIndex * header.getChunkSize(), chunkLength(header, chunkIndex));
+            }
+            Integer next = claimed.poll();
+            return next != null ? next : -1;
+        }
+    }
+
+    /**
+     * One packed file between the thread that reads it and the one that
+     * sends or writes it. The data is a pooled buffer, or null for a
+     * skipped file.
+     */
+    private static final class PackedEntry {
+        static final PackedEntry END = new PackedEntry(-1, null, 0);
+
+        final int index;
+        final ByteBuffer data;
+        final int crc;
+
+        PackedEntry(int index, ByteBuffer data, int crc) {
+            this.index = index;
+            this.data = data;
+            this.crc = crc;
+        }
+    }
+
+    private static class ChunkIntegrityException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkIntegrityException(long offset) {
+            super("Chunk integrity check failed at offset " + offset);
+        }
+    }
+
+    private static class DeltaMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        DeltaMismatchException(String fileName) {
+            super("Rebuilt " + fileName + " does not match the sender's checksum");
+        }
+    }
+
+    private static class MissingChunksException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MissingChunksException(long received, long expected) {
+            super("Missing chunks: received " + received + " of " + expected);
+        }
+    }
+
+    /**
+     * Opens the data streams once the receiver has answered the header.
+     */
+    private interface StreamOpener {
+        List<WritableByteChannel> open(long sessionId) throws IOException;
+    }
+}
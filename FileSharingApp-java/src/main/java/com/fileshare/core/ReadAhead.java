@@ -0,0 +1,163 @@
+package com.fileshare.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reads a file ahead of the thread sending it, so the disk is already
+ * fetching the next regions while the current one goes out on the socket
+ * and disk and network latency overlap instead of adding up.
+ *
+ * A background reader pulls regions into the page cache by loading a
+ * mapping of them, which also tells the kernel they are about to be used
+ * (madvise WILLNEED on Linux); if a region cannot be mapped it is read
+ * through a pooled buffer instead. The sender then finds its data cached,
+ * whichever way it reads it. Java has no portable fadvise, so this is the
+ * sequential access hint the transfer paths can give.
+ *
+ * Sequential senders call advance with their position and are kept depth
+ * units ahead of; senders that pick their regions call prefetch. A depth
+ * of zero reads nothing ahead.
+ */
+public class ReadAhead implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ReadAhead.class);
+
+    private static final long[] END = new long[0];
+    private static final int FALLBACK_BUFFER_SIZE = 131072;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int depth;
+    private final int unit;
+    private final BufferPool pool;
+    private final BlockingQueue<long[]> regions = new LinkedBlockingQueue<>();
+    private final CompletableFuture<Void> reader;
+    private volatile boolean closed;
+    // End of what advance has asked for so far, only touched by the sender
+    private long requestedTo;
+
+    public ReadAhead(FileChannel channel, long fileSize, int depth, int unit, BufferPool pool, Executor executor) {
+        this.channel = channel;
+        this.fileSize = fileSize;
+        this.depth = Math.max(depth, 0);
+        this.unit = unit;
+        this.pool = pool;
+        this.reader = this.depth > 0 ? CompletableFuture.runAsync(this::drain, executor) : null;
+    }
+
+    /**
+     * Create a read-ahead as configured, reading units of the given size.
+     * Files of a single unit are not worth a reader.
+     */
+    public static ReadAhead create(TransferConfig config, FileChannel channel, long fileSize, int unit,
+                                   BufferPool pool, Executor executor) {
+        int depth = config.isReadAheadEnabled() && fileSize > unit ? config.getReadAheadDepth() : 0;
+        return new ReadAhead(channel, fileSize, depth, unit, pool, executor);
+    }
+
+    /**
+     * A read-ahead that reads nothing, for senders that bypass the page
+     * cache and must not fill it.
+     */
+    public static ReadAhead none() {
+        return new ReadAhead(null, 0, 0, 0, null, null);
+    }
+
+    public int getDepth() { return depth; }
+
+    /**
+     * The sender has reached position; read the next depth units past it.
+     */
+    public void advance(long position) {
+        if (depth == 0) {
+            return;
+        }
+        long target = Math.min(fileSize, position + (long) depth * unit);
+        while (requestedTo < target) {
+            long length = Math.min(unit, fileSize - requestedTo);
+            regions.add(new long[] {requestedTo, length});
+            requestedTo += length;
+        }
+    }
+
+    /**
+     * Read a region ahead, for senders that do not go through the file in
+     * order.
+     */
+    public void prefetch(long position, long length) {
+        if (depth > 0 && length > 0) {
+            regions.add(new long[] {position, length});
+        }
+    }
+
+    /**
+     * Stop reading ahead. Regions still queued are dropped; one being read
+     * is finished first, so the channel can be closed afterwards.
+     */
+    @Override
+    public void close() {
+        if (reader != null) {
+            closed = true;
+            regions.add(END);
+            reader.handle((result, e) -> null).join();
+        }
+    }
+
+    // Private helper methods
+
+    private void drain() {
+        while (true) {
+            long[] region;
+            try {
+                region = regions.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (region == END) {
+                return;
+            }
+            if (closed) {
+                continue;
+            }
+            try {
+                load(region[0], region[1]);
+            } catch (IOException e) {
+                // Only an optimization; the sender reads the data itself
+                logger.debug("Read-ahead stopped at offset {}: {}", region[0], e.getMessage());
+                closed = true;
+            }
+        }
+    }
+
+    private void load(long position, long length) throws IOException {
+        MappedByteBuffer mapped = MappedFileIO.mapForRead(channel, position, length);
+        if (mapped != null) {
+            mapped.load();
+            return;
+        }
+        ByteBuffer buffer = pool.acquire(FALLBACK_BUFFER_SIZE);
+        try {
+            long end = position + length;
+            while (position < end && !closed) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    return;
+                }
+                position += read;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.fileshare.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Hands received data from the thread reading the network to a thread
+ * writing it to the file, so the socket keeps draining while the disk is
+ * busy flushing and the TCP window stays open.
+ *
+ * The two threads share a ring of buffers. The reader takes a free one,
+ * fills it and queues it with its file position; the writer writes queued
+ * buffers in order and hands them back. Once every buffer is queued the
+ * reader waits, which is the backpressure on a disk that cannot keep up.
+ * The reader's waits are booked as READER_WAIT and the writer's as
+ * WRITER_WAIT, next to the DISK time of the writes themselves.
+ *
+ * A pipeline of depth one has no writer thread and writes on the reader's
+ * thread as it goes. With a DirectIO the writes bypass the page cache, and
+ * every buffer is an aligned direct buffer of the pipeline's own.
+ */
+public class ReceivePipeline implements Closeable {
+    private static final Write END = new Write(null, 0, null);
+
+    private final FileChannel channel;
+    private final DirectIO direct;
+    private final TransferMetrics.Recorder metrics;
+    private final BufferPool pool;
+    private final ByteBuffer[] buffers;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<Write> queued = new LinkedBlockingQueue<>();
+    private final CompletableFuture<Void> writer;
+    private volatile IOException failure;
+    private volatile boolean aborted;
+
+    /**
+     * A pipeline of depth buffers of bufferSize bytes each, taken from the
+     * pool, or from the heap if pool is null, with its writer on executor.
+     * With direct, which may be null, every buffer is an aligned direct
+     * buffer of its own instead, heap ones included.
+     */
+    public ReceivePipeline(FileChannel channel, DirectIO direct, int depth, int bufferSize, BufferPool pool,
+                           Executor executor, TransferMetrics.Recorder metrics) {
+        this.channel = channel;
+        this.direct = direct;
+        this.metrics = metrics;
+        this.pool = direct == null ? pool : null;
+        this.buffers = new ByteBuffer[Math.max(depth, 1)];
+        this.free = new ArrayBlockingQueue<>(buffers.length);
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = allocate(bufferSize, pool != null);
+            free.add(buffers[i]);
+        }
+        this.writer = buffers.length > 1 ? CompletableFuture.runAsync(this::drain, executor) : null;
+    }
+
+    /**
+     * Create a pipeline as configured for a file of the given size. Files
+     * that fit in one buffer are written on the reader's thread.
+     */
+    public static ReceivePipeline create(TransferConfig config, FileChannel channel, DirectIO direct, long fileSize,
+                                         int bufferSize, BufferPool pool, Executor executor,
+                                         TransferMetrics.Recorder metrics) {
+        int depth = config.isReceivePipelineEnabled() && fileSize > bufferSize
+            ? config.getReceivePipelineDepth()
+            : 1;
+        return new ReceivePipeline(channel, direct, depth, bufferSize, pool, executor, metrics);
+    }
+
+    /**
+     * A cleared buffer to fill, once the writer has one to spare.
+     */
+    public ByteBuffer acquire() throws IOException {
+        checkFailure();
+        if (writer == null) {
+            return free.remove().clear();
+        }
+        long mark = System.nanoTime();
+        try {
+            ByteBuffer buffer = free.take();
+            metrics.readerWait(mark);
+            checkFailure();
+            return buffer.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the disk writer");
+        }
+    }
+
+    /**
+     * Queue the flipped buffer to be written at the file position.
+     */
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        submit(new Write(buffer, position, null));
+    }
+
+    /**
+     * Run the action once everything queued before it has been written.
+     */
+    public void afterWrites(Action action) throws IOException {
+        submit(new Write(null, 0, action));
+    }
+
+    /**
+     * Wait until everything queued has been written and its actions run.
+     */
+    public void finish() throws IOException {
+        if (writer != null) {
+            queued.add(END);
+            try {
+                writer.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the disk writer");
+            } catch (ExecutionException e) {
+                throw new IOException("Disk writer failed", e.getCause());
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stop the writer, dropping whatever is still queued, and release the
+     * buffers. Safe to call after finish.
+     */
+    @Override
+    public void close() {
+        if (writer != null && !writer.isDone()) {
+            aborted = true;
+            queued.add(END);
+            writer.handle((result, e) -> null).join();
+        }
+        if (pool != null) {
+            for (ByteBuffer buffer : buffers) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Work to run on the writer's thread in order with the writes.
+     */
+    @FunctionalInterface
+    public interface Action {
+        void run() throws IOException;
+    }
+
+    // Private helper methods
+
+    private ByteBuffer allocate(int bufferSize, boolean pooled) {
+        if (direct != null) {
+            // Whole blocks, so every write but the last one of the file goes around the cache
+            return direct.allocate(bufferSize);
+        }
+        return pooled ? pool.acquire(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    private void submit(Write write) throws IOException {
+        checkFailure();
+        if (writer != null) {
+            queued.add(write);
+        } else {
+            perform(write);
+        }
+    }
+
+    private void drain() {
+        long mark = System.nanoTime();
+        while (true) {
+            Write write;
+            try {
+                write = queued.take();
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException("Disk writer interrupted");
+                return;
+            }
+            mark = metrics.writerWait(mark);
+            if (write == END) {
+                return;
+            }
+            if (failure == null && !aborted) {
+                try {
+                    perform(write);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (UncheckedIOException e) {
+                    failure = e.getCause();
+                }
+            } else if (write.buffer != null) {
+                free.add(write.buffer);
+            }
+            mark = System.nanoTime();
+        }
+    }
+
+    private void perform(Write write) throws IOException {
+        if (write.buffer != null) {
+            long mark = System.nanoTime();
+            long position = write.position;
+            try {
+                if (direct != null) {
+                    direct.write(write.buffer, position);
+                } else {
+                    while (write.buffer.hasRemaining()) {
+                        position += channel.write(write.buffer, position);
+                    }
+                }
+            } finally {
+                metrics.disk(mark);
+                free.add(write.buffer);
+            }
+        }
+        if (write.action != null) {
+            write.action.run();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Disk writer failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static final class Write {
+        final ByteBuffer buffer;
+        final long position;
+        final Action action;
+
+        Write(ByteBuffer buffer, long position, Action action) {
+            this.buffer = buffer;
+            this.position = position;
+            this.action = action;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.fileshare.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Zero runs in transferred files. A chunk that reads as all zeros, whether
+ * it is a hole or zeros that were written out, travels as a zero extent
+ * instead of its bytes, and the receiver leaves it as a hole.
+ *
+ * Java has no way to ask the file system where the holes are, so regions
+ * are checked by reading them. Holes read back without touching the disk,
+ * and the comparison against a block of zeros is vectorized and stops at
+ * the first byte of data. Senders check the data they read for sending
+ * anyway and only read further when it starts with zeros, so ordinary
+ * files are not read twice.
+ */
+public final class SparseFiles {
+    private static final int ZERO_BLOCK_SIZE = 65536;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(ZERO_BLOCK_SIZE).asReadOnlyBuffer();
+
+    private SparseFiles() {
+    }
+
+    /**
+     * Whether the remaining bytes of the buffer are all zero. The buffer's
+     * position is left as it is.
+     */
+    public static boolean isZero(ByteBuffer buffer) {
+        int position = buffer.position();
+        int end = buffer.limit();
+        while (position < end) {
+            int length = Math.min(end - position, ZERO_BLOCK_SIZE);
+            if (buffer.slice(position, length).mismatch(ZEROS.slice(0, length)) >= 0) {
+                return false;
+            }
+            position += length;
+        }
+        return true;
+    }
+
+    public static boolean isZero(byte[] data, int length) {
+        return isZero(ByteBuffer.wrap(data, 0, length));
+    }
+
+    /**
+     * Whether a file region reads as all zeros, checked through a mapping
+     * of it or, if it cannot be mapped, a pooled buffer.
+     */
+    public static boolean isZeroRegion(FileChannel channel, long offset, int length, BufferPool pool) throws IOException {
+        MappedByteBuffer mapped = MappedFileIO.mapForRead(channel, offset, length);
+        if (mapped != null) {
+            return isZero(mapped);
+        }
+        ByteBuffer buffer = pool.acquire(ZERO_BLOCK_SIZE);
+        try {
+            long end = offset + length;
+            for (long position = offset; position < end; ) {
+                int read = readWindow(channel, position, (int) Math.min(ZERO_BLOCK_SIZE, end - position), buffer);
+                if (read == 0) {
+                    return true;
+                }
+                if (!isZero(buffer)) {
+                    return false;
+                }
+                position += read;
+            }
+            return true;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Read a file region of at most the buffer's capacity into the buffer
+     * and flip it. Returns the number of bytes read, which is less than
+     * length only at the end of the file.
+     */
+    public static int readWindow(FileChannel channel, long position, int length, ByteBuffer buffer) throws IOException {
+        buffer.clear().limit(Math.min(length, buffer.capacity()));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining();
+    }
+
+    /**
+     * Make a file region read as zeros. Only blocks that hold data are
+     * written, so holes in the region stay holes.
+     */
+    public static void zeroRegion(FileChannel channel, long offset, int length, BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire(ZERO_BLOCK_SIZE);
+        try {
+            long end = offset + length;
+            for (long position = offset; position < end; ) {
+                int read = readWindow(channel, position, (int) Math.min(ZERO_BLOCK_SIZE, end - position), buffer);
+                if (read == 0) {
+                    // Past the end of the file, which reads as zeros once it is extended
+                    return;
+                }
+                if (!isZero(buffer)) {
+                    ByteBuffer zeros = ZEROS.slice(0, read);
+                    while (zeros.hasRemaining()) {
+                        channel.write(zeros, position + zeros.position());
+                    }
+                }
+                position += read;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.fileshare.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hidden files that receives write into before they are published under
+ * their real name. A received file shows up in the save directory only
+ * once it is complete, in one atomic rename, so watchers of the directory
+ * never see it half written, and an existing file of the same name is
+ * replaced in one step instead of overwritten in place. When the file and
+ * the rename are forced to disk is up to the DurabilityPolicy.
+ *
+ * Staging files sit beside their target, so the rename never crosses file
+ * systems. Their names start with a dot, which hides them on Unix; where
+ * the file system has DOS attributes only, they are marked hidden too.
+ *
+ * Targets come from names the peer sent, so every receive path resolves
+ * them with resolveTarget, which keeps them inside the save directory.
+ */
+public final class StagingFiles {
+    private static final Logger logger = LoggerFactory.getLogger(StagingFiles.class);
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final boolean DOS_ONLY;
+
+    static {
+        Set<String> views = FileSystems.getDefault().supportedFileAttributeViews();
+        DOS_ONLY = views.contains("dos") && !views.contains("posix");
+    }
+
+    private StagingFiles() {
+    }
+
+    /**
+     * Where a file named by the sender goes in the save directory. Names
+     * from a directory tree carry '/' separators, and the directories they
+     * name are created as needed. A name that leads outside the save
+     * directory is refused.
+     */
+    public static File resolveTarget(String saveDirectory, String fileName) throws IOException {
+        return resolveTarget(saveDirectory, fileName, ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Resolve a target, skipping the check for directories already known
+     * to exist, which a tree of small files shares between many files.
+     */
+    public static File resolveTarget(String saveDirectory, String fileName, Set<Path> directories) throws IOException {
+        Path base = Paths.get(saveDirectory).toAbsolutePath().normalize();
+        Path target = base.resolve(fileName).normalize();
+        if (!target.startsWith(base) || target.equals(base)) {
+            throw new IOException("Refusing to write outside the save directory: " + fileName);
+        }
+        Path parent = target.getParent();
+        if (!parent.equals(base) && !directories.contains(parent)) {
+            if (!Files.isDirectory(parent)) {
+                Files.createDirectories(parent);
+            }
+            directories.add(parent);
+        }
+        return target.toFile();
+    }
+
+    /**
+     * The hidden file beside target with the given suffix, for staging
+     * files that have to be found again, like the .part of a resume.
+     */
+    public static Path hiddenSibling(Path target, String suffix) {
+        return target.resolveSibling("." + target.getFileName() + suffix);
+    }
+
+    /**
+     * Create a new, uniquely named hidden file beside target.
+     */
+    public static Path create(Path target) throws IOException {
+        Path staged = Files.createTempFile(target.toAbsolutePath().getParent(), "." + target.getFileName() + ".",
+            TEMP_SUFFIX);
+        hide(staged);
+        return staged;
+    }
+
+    /**
+     * Mark a staging file hidden where a leading dot does not do it.
+     */
+    public static void hide(Path path) {
+        if (DOS_ONLY) {
+            try {
+                Files.setAttribute(path, "dos:hidden", true);
+            } catch (IOException e) {
+                logger.debug("Cannot hide {}: {}", path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Extend a file to its announced size before it is written, so its
+     * size is set in one metadata update instead of one per append.
+     * Java cannot reserve the blocks themselves (there is no fallocate),
+     * which leaves their placement to the file system's delayed
+     * allocation. A file already that long is left as it is.
+     */
+    public static void preallocate(FileChannel channel, long size) throws IOException {
+        if (channel.size() < size) {
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    /**
+     * Rename a staged file over its target, atomically where the file
+     * system allows it.
+     */
+    public static void move(Path staged, Path target) throws IOException {
+        try {
+            Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Force a directory, so renames into it are durable.
+     */
+    public static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can open a directory; the rename is still atomic there
+            logger.debug("Cannot force directory {}: {}", directory, e.getMessage());
+        }
+    }
+}
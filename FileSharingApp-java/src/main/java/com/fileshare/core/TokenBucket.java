@@ -0,0 +1,71 @@
+package com.fileshare.core;
+
+/**
+ * Token bucket for limiting a byte rate. A caller may move a piece once the
+ * bucket is out of debt, and taking it may put the bucket into debt, which
+ * later callers wait out. Yielding callers wait until the bucket holds
+ * their whole piece, so they only get what eager callers leave over.
+ *
+ * A rate of 0 means unlimited. The rate can be changed at any time.
+ */
+public class TokenBucket {
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    public synchronized long getRate() { return rate; }
+    public synchronized boolean isLimited() { return rate > 0; }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        rate = Math.max(0, bytesPerSecond);
+        // A new limit drops any debt run up under the old one
+        tokens = Math.min(Math.max(tokens, 0), burst());
+    }
+
+    /**
+     * Nanoseconds until a piece of the given size may be taken, or 0 if it
+     * may be taken now.
+     */
+    public synchronized long waitTime(long bytes, boolean yielding) {
+        if (rate == 0) {
+            return 0;
+        }
+        refill();
+        // Capped at the burst, or a piece larger than it could never pass
+        double needed = yielding ? Math.min(bytes, burst()) : 0;
+        return tokens >= needed ? 0 : Math.max(1, (long) ((needed - tokens) * NANOS_PER_SECOND / rate));
+    }
+
+    /**
+     * Take tokens for a piece that is being moved.
+     */
+    public synchronized void take(long bytes) {
+        if (rate > 0) {
+            refill();
+            tokens -= bytes;
+        }
+    }
+
+    // Private helper methods
+
+    private long burst() {
+        // About 100ms worth, so a limited transfer moves in short, even bursts
+        return Math.max(MIN_BURST_BYTES, rate / 10);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(burst(), tokens + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+        }
+        lastRefill = now;
+    }
+}
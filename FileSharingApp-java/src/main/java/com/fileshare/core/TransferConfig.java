@@ -0,0 +1,332 @@
+package com.fileshare.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Transfer settings loaded from application.properties.
+ * Missing or malformed values fall back to the built-in defaults.
+ */
+public class TransferConfig {
+    private static final Logger logger = LoggerFactory.getLogger(TransferConfig.class);
+
+    private static final String RESOURCE_NAME = "/application.properties";
+
+    private final Properties properties;
+
+    public TransferConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Load the configuration bundled with the application.
+     */
+    public static TransferConfig load() {
+        Properties properties = new Properties();
+        try (InputStream is = TransferConfig.class.getResourceAsStream(RESOURCE_NAME)) {
+            if (is != null) {
+                properties.load(is);
+            } else {
+                logger.warn("{} not found, using default transfer settings", RESOURCE_NAME);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to load {}, using default transfer settings", RESOURCE_NAME, e);
+        }
+        return new TransferConfig(properties);
+    }
+
+    /**
+     * Whether a compressing transform is applied to the payload.
+     */
+    public boolean isCompressionEnabled() {
+        return getBoolean("compression.enabled", false);
+    }
+
+    /**
+     * Whether a CRC32 of the content is sent and verified.
+     */
+    public boolean isChecksumEnabled() {
+        return getBoolean("checksum.enabled", true);
+    }
+
+    /**
+     * Size of the chunks a parallel transfer is split into.
+     */
+    public int getChunkSize() {
+        return getInt("chunk.size", 1048576);
+    }
+
+    /**
+     * Size of the buffers file content is copied through.
+     */
+    public int getBufferSize() {
+        return getInt("buffer.size", 131072);
+    }
+
+    /**
+     * Whether buffer, socket buffer and chunk sizes follow the measured link.
+     */
+    public boolean isAdaptiveTuningEnabled() {
+        return getBoolean("adaptive.chunk.size", false);
+    }
+
+    /**
+     * Number of TCP connections used for one parallel transfer.
+     */
+    public int getConcurrentStreams() {
+        return getInt("concurrent.streams", 4);
+    }
+
+    /**
+     * Whether large files are split across several connections.
+     */
+    public boolean isParallelTransferEnabled() {
+        return getBoolean("parallel.file.transfer", true);
+    }
+
+    /**
+     * Whether interrupted downloads are kept as .part files and resumed.
+     */
+    public boolean isResumeEnabled() {
+        return getBoolean("transfer.resume.enabled", true);
+    }
+
+    /**
+     * Whether files the receiver already has a copy of are sent as a delta
+     * against that copy.
+     */
+    public boolean isDeltaTransferEnabled() {
+        return getBoolean("delta.transfer.enabled", false);
+    }
+
+    /**
+     * Whether file content is read and written through memory mappings.
+     */
+    public boolean isMemoryMappedIoEnabled() {
+        return getBoolean("memory.mapped.io.enabled", false);
+    }
+
+    /**
+     * Transport for single-stream transfers: "socket" for blocking sockets
+     * on the transfer threads, or "netty" for Netty event loops.
+     */
+    public String getTransportType() {
+        return getString("transport.type", "socket");
+    }
+
+    /**
+     * Threads transfers run on: "virtual" for a virtual thread per transfer
+     * where the runtime has them, or "platform" for a bounded pool.
+     */
+    public String getExecutorMode() {
+        return getString("executor.mode", "virtual");
+    }
+
+    /**
+     * How many transfers below the large size run at once.
+     */
+    public int getMaxConcurrentTransfers() {
+        return getInt("executor.max.transfers", 64);
+    }
+
+    /**
+     * How many large transfers run at once.
+     */
+    public int getMaxLargeTransfers() {
+        return getInt("executor.max.large.transfers", 4);
+    }
+
+    /**
+     * Size from which a transfer counts as large.
+     */
+    public long getLargeTransferBytes() {
+        return getLong("executor.large.transfer.bytes", 64L * 1024 * 1024);
+    }
+
+    /**
+     * Capacity of the link in bytes per second, which lower priority
+     * classes yield on; 0 turns link shaping off.
+     */
+    public long getLinkRate() {
+        return getLong("scheduler.link.rate", 0);
+    }
+
+    /**
+     * Default rate limit of each transfer in bytes per second; 0 for none.
+     */
+    public long getTransferRateLimit() {
+        return getLong("scheduler.transfer.rate", 0);
+    }
+
+    /**
+     * Default rate limit of all transfers with one peer in bytes per
+     * second; 0 for none.
+     */
+    public long getPeerRateLimit() {
+        return getLong("scheduler.peer.rate", 0);
+    }
+
+    /**
+     * How many times per second progress is published to listeners.
+     */
+    public int getProgressUpdateRate() {
+        return getInt("progress.update.hz", 10);
+    }
+
+    /**
+     * Whether transfer metrics are registered with the platform MBean server.
+     */
+    public boolean isMetricsJmxEnabled() {
+        return getBoolean("metrics.jmx.enabled", true);
+    }
+
+    /**
+     * Direct memory in bytes that pooled copy buffers may take in total.
+     */
+    public long getBufferPoolBudget() {
+        return getLong("buffer.pool.budget", 32L * 1024 * 1024);
+    }
+
+    /**
+     * Whether received data is handed from the thread reading the socket
+     * to a separate disk writer instead of written between reads.
+     */
+    public boolean isReceivePipelineEnabled() {
+        return getBoolean("receive.pipeline.enabled", true);
+    }
+
+    /**
+     * Buffers in flight between a receiving socket and its disk writer.
+     */
+    public int getReceivePipelineDepth() {
+        return getInt("receive.pipeline.depth", 4);
+    }
+
+    /**
+     * Whether senders have the next regions of a file read ahead while
+     * the current one is on the wire.
+     */
+    public boolean isReadAheadEnabled() {
+        return getBoolean("send.readahead.enabled", true);
+    }
+
+    /**
+     * Chunks a sender keeps read ahead of the one it is sending.
+     */
+    public int getReadAheadDepth() {
+        return getInt("send.readahead.depth", 4);
+    }
+
+    /**
+     * Whether files of at least the direct I/O threshold are read and
+     * written around the page cache where the file system allows it.
+     */
+    public boolean isDirectIoEnabled() {
+        return getBoolean("direct.io.enabled", true);
+    }
+
+    /**
+     * Size in bytes from which a file is moved with direct I/O.
+     */
+    public long getDirectIoThreshold() {
+        return getLong("direct.io.threshold", 1024L * 1024 * 1024);
+    }
+
+    /**
+     * When received files are forced to disk: "none", "file" to force each
+     * one as it completes, or "periodic" to force as the data arrives.
+     */
+    public String getDurabilityMode() {
+        return getString("durability.mode", "file");
+    }
+
+    /**
+     * Bytes written to a file in periodic durability mode before it is
+     * forced.
+     */
+    public int getDurabilityPeriodicBytes() {
+        return getInt("durability.periodic.bytes", 67108864);
+    }
+
+    /**
+     * Milliseconds between the forces of periodic durability mode.
+     */
+    public int getDurabilityPeriodicMillis() {
+        return getInt("durability.periodic.millis", 1000);
+    }
+
+    /**
+     * Whether chunks that read as all zeros are sent as zero extents and
+     * left as holes on the receiver.
+     */
+    public boolean isSparseTransferEnabled() {
+        return getBoolean("sparse.transfer.enabled", false);
+    }
+
+    /**
+     * Whether the small files of a session travel packed back to back as
+     * one stream of entries instead of as chunked files.
+     */
+    public boolean isPackingEnabled() {
+        return getBoolean("session.packing.enabled", true);
+    }
+
+    /**
+     * Largest file in bytes that a session packs, at most one pooled buffer.
+     */
+    public int getPackMaxFileSize() {
+        return Math.min(getInt("session.pack.max.size", 262144), BufferPool.MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * Threads that read packed files ahead on the sending side and write
+     * them out on the receiving side.
+     */
+    public int getPackThreads() {
+        return getInt("session.pack.threads", 4);
+    }
+
+    // Private helper methods
+
+    private int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed > 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value for {}: '{}', using {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            return parsed > 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value for {}: '{}', using {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value != null && !value.isBlank() ? value.trim() : defaultValue;
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+}
@@ -0,0 +1,320 @@
+package com.fileshare.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs blocking transfer work for the services and the UI.
+ *
+ * In VIRTUAL mode every task gets its own virtual thread; on runtimes
+ * without virtual threads this falls back to PLATFORM mode, where tasks run
+ * on a bounded pool of daemon threads.
+ *
+ * How many transfers run at once is set by two semaphores rather than by
+ * the pool size: large transfers and small ones have separate limits, so
+ * many small transfers never wait behind a few large ones. A transfer that
+ * has no permit yet waits in a queue without holding a thread. The next
+ * one to start is picked by priority class, then fewest bytes left, then
+ * arrival. Background
+ * work such as listener loops runs outside the limits, and so does the
+ * work a running transfer fans out, like its streams, read-ahead and disk
+ * writers; the transfer's permit already bounds it.
+ *
+ * Hashing and folder listings run on a fork/join pool of one thread per
+ * core that the executor owns, so they never compete with other users of
+ * the common pool.
+ */
+public class TransferExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(TransferExecutor.class);
+
+    public enum Mode {
+        VIRTUAL,
+        PLATFORM
+    }
+
+    private final Mode mode;
+    private final long largeTransferBytes;
+    private final ExecutorService transferThreads;
+    private final ExecutorService backgroundThreads;
+    private final ForkJoinPool hashPool;
+    private final Lane smallTransfers;
+    private final Lane largeTransfers;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public TransferExecutor(Mode mode, int maxTransfers, int maxLargeTransfers, long largeTransferBytes) {
+        ExecutorService virtualThreads = mode == Mode.VIRTUAL ? newVirtualThreadExecutor() : null;
+        this.mode = virtualThreads != null ? Mode.VIRTUAL : Mode.PLATFORM;
+        this.largeTransferBytes = largeTransferBytes;
+        this.smallTransfers = new Lane(maxTransfers);
+        this.largeTransfers = new Lane(maxLargeTransfers);
+        if (virtualThreads != null) {
+            this.transferThreads = virtualThreads;
+            this.backgroundThreads = virtualThreads;
+        } else {
+            // Never more tasks than permits, so the queue only covers the hand-over
+            int threads = maxTransfers + maxLargeTransfers;
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemonThreads("transfer-worker"));
+            pool.allowCoreThreadTimeOut(true);
+            this.transferThreads = pool;
+            this.backgroundThreads = Executors.newCachedThreadPool(daemonThreads("transfer-background"));
+        }
+        this.hashPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("transfer-hash-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        logger.info("Transfer executor in {} mode: {} small and {} large transfers at once",
+            this.mode, maxTransfers, maxLargeTransfers);
+    }
+
+    /**
+     * Create the executor described by the configuration.
+     */
+    public static TransferExecutor create(TransferConfig config) {
+        Mode mode;
+        try {
+            mode = Mode.valueOf(config.getExecutorMode().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown executor.mode '{}', using platform threads", config.getExecutorMode());
+            mode = Mode.PLATFORM;
+        }
+        return new TransferExecutor(mode, config.getMaxConcurrentTransfers(),
+            config.getMaxLargeTransfers(), config.getLargeTransferBytes());
+    }
+
+    public Mode getMode() { return mode; }
+    public int getWaitingTransfers() { return smallTransfers.size() + largeTransfers.size(); }
+
+    /**
+     * The pool that hashes files for verification and lists folders.
+     */
+    public ForkJoinPool getHashPool() { return hashPool; }
+
+    /**
+     * Run a transfer of about sizeHint bytes once a permit of its size class
+     * is free. Pass 0 when the size is not known yet. The future completes
+     * with the task's result or the exception it threw.
+     */
+    public <T> CompletableFuture<T> submitTransfer(long sizeHint, Callable<T> task) {
+        return submitTransfer(sizeHint, null, task);
+    }
+
+    /**
+     * Run a scheduled transfer once a permit of its size class is free,
+     * ahead of waiting transfers that come later in the start order. The
+     * ticket's priority and remaining size are read when a permit frees, so
+     * changes made while it waits count.
+     */
+    public <T> CompletableFuture<T> submitTransfer(TransferScheduler.Ticket ticket, Callable<T> task) {
+        return submitTransfer(ticket.getRemainingBytes(), ticket, task);
+    }
+
+    // Private helper methods
+
+    private <T> CompletableFuture<T> submitTransfer(long sizeHint, TransferScheduler.Ticket ticket, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Lane lane = sizeHint >= largeTransferBytes ? largeTransfers : smallTransfers;
+        lane.submit(new Waiting(ticket, sizeHint, sequence.incrementAndGet(), () -> {
+            try {
+                if (!result.isDone()) {
+                    result.complete(task.call());
+                }
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }));
+        return result;
+    }
+
+    /**
+     * Run long-lived background work, such as a listener loop, outside the
+     * transfer limits.
+     */
+    public CompletableFuture<Void> runBackground(Runnable task) {
+        return CompletableFuture.runAsync(task, backgroundThreads);
+    }
+
+    /**
+     * Run background work whose caller may have to stop it: cancelling the
+     * future interrupts the task.
+     */
+    public <T> Future<T> submitBackground(Callable<T> task) {
+        return backgroundThreads.submit(task);
+    }
+
+    /**
+     * Stop accepting work and wait up to the timeout for running tasks.
+     * Returns whether everything finished.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        transferThreads.shutdown();
+        backgroundThreads.shutdown();
+        hashPool.shutdown();
+        try {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            boolean finished = transferThreads.awaitTermination(timeout, unit)
+                && backgroundThreads.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                && hashPool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (!finished) {
+                transferThreads.shutdownNow();
+                backgroundThreads.shutdownNow();
+                hashPool.shutdownNow();
+            }
+            return finished;
+        } catch (InterruptedException e) {
+            transferThreads.shutdownNow();
+            backgroundThreads.shutdownNow();
+            hashPool.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor, looked up reflectively so the
+     * code still builds and runs on Java 17, or null where it is missing.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.info("Virtual threads are not available on Java {}, using platform threads",
+                Runtime.version().feature());
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A transfer waiting for a permit. Unscheduled ones order as NORMAL
+     * transfers of their size hint.
+     */
+    private static final class Waiting implements Comparable<Waiting> {
+        private final TransferScheduler.Ticket ticket;
+        private final long sizeHint;
+        private final long sequence;
+        private final Runnable task;
+
+        Waiting(TransferScheduler.Ticket ticket, long sizeHint, long sequence, Runnable task) {
+            this.ticket = ticket;
+            this.sizeHint = sizeHint;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Waiting other) {
+            int byPriority = priority().compareTo(other.priority());
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            int bySize = Long.compare(remaining(), other.remaining());
+            return bySize != 0 ? bySize : Long.compare(sequence, other.sequence);
+        }
+
+        private TransferScheduler.Priority priority() {
+            return ticket != null ? ticket.getPriority() : TransferScheduler.Priority.NORMAL;
+        }
+
+        private long remaining() {
+            return ticket != null ? ticket.getRemainingBytes() : sizeHint;
+        }
+    }
+
+    /**
+     * A size class of transfers: tasks wait here until one of its permits
+     * is free, and each finished task hands its permit to the first
+     * waiting one in start order.
+     */
+    private final class Lane {
+        private final Semaphore permits;
+        private final List<Waiting> waiting = new ArrayList<>();
+
+        Lane(int permits) {
+            this.permits = new Semaphore(permits);
+        }
+
+        void submit(Waiting task) {
+            synchronized (waiting) {
+                waiting.add(task);
+            }
+            dispatch();
+        }
+
+        int size() {
+            synchronized (waiting) {
+                return waiting.size();
+            }
+        }
+
+        /**
+         * Remove the waiting task to start next, or return null.
+         */
+        private Runnable next() {
+            synchronized (waiting) {
+                if (waiting.isEmpty()) {
+                    return null;
+                }
+                // Priorities can change while waiting, so pick at start time instead of keeping a heap
+                Waiting first = waiting.get(0);
+                for (Waiting candidate : waiting) {
+                    if (candidate.compareTo(first) < 0) {
+                        first = candidate;
+                    }
+                }
+                waiting.remove(first);
+                return first.task;
+            }
+        }
+
+        private void dispatch() {
+            while (size() > 0 && permits.tryAcquire()) {
+                Runnable task = next();
+                if (task == null) {
+                    // Another thread took it between the check and the removal
+                    permits.release();
+                    continue;
+                }
+                try {
+                    transferThreads.execute(() -> {
+                        try {
+                            task.run();
+                        } finally {
+                            permits.release();
+                            dispatch();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+        }
+    }
+}
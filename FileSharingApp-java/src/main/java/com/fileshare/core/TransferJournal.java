@@ -0,0 +1,156 @@
+package com.fileshare.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Append-only record of the chunks of a partial download that have been
+ * written and verified. It lives next to the .part file and lets a
+ * reconnecting sender skip everything that already arrived.
+ *
+ * Layout: magic, file id, file size and chunk size, followed by one long
+ * per verified chunk index. A torn record at the end is discarded on load.
+ */
+public class TransferJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TransferJournal.class);
+
+    private static final int JOURNAL_MAGIC = 0x46534A31; // "FSJ1"
+
+    private final Path journalPath;
+    private final BitSet completedChunks;
+    private final long chunkCount;
+    private final FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(Long.BYTES);
+
+    private TransferJournal(Path journalPath, BitSet completedChunks, long chunkCount, FileChannel channel) {
+        this.journalPath = journalPath;
+        this.completedChunks = completedChunks;
+        this.chunkCount = chunkCount;
+        this.channel = channel;
+    }
+
+    /**
+     * Open the journal for a file, keeping previously verified chunks only
+     * when the journal describes the same file identity and chunk layout.
+     */
+    public static TransferJournal open(Path journalPath, String fileId, long fileSize, int chunkSize) throws IOException {
+        long chunkCount = (fileSize + chunkSize - 1) / chunkSize;
+        BitSet completed = new BitSet();
+        long validLength = -1;
+
+        if (Files.exists(journalPath)) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalPath)))) {
+                if (dis.readInt() == JOURNAL_MAGIC && fileId.equals(dis.readUTF())
+                        && dis.readLong() == fileSize && dis.readInt() == chunkSize) {
+                    validLength = headerLength(fileId);
+                    while (true) {
+                        long chunkIndex = dis.readLong();
+                        if (chunkIndex >= 0 && chunkIndex < chunkCount) {
+                            completed.set((int) chunkIndex);
+                        }
+                        validLength += Long.BYTES;
+                    }
+                }
+            } catch (EOFException e) {
+                // End of journal or a torn final record
+            }
+        }
+
+        FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (validLength < 0) {
+            completed.clear();
+            channel.truncate(0);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            try (DataOutputStream dos = new DataOutputStream(header)) {
+                dos.writeInt(JOURNAL_MAGIC);
+                dos.writeUTF(fileId);
+                dos.writeLong(fileSize);
+                dos.writeInt(chunkSize);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(header.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } else {
+            channel.truncate(validLength);
+            channel.position(validLength);
+            logger.info("Resuming {} with {} of {} chunks already verified",
+                journalPath.getFileName(), completed.cardinality(), chunkCount);
+        }
+        return new TransferJournal(journalPath, completed, chunkCount, channel);
+    }
+
+    /**
+     * Whether a chunk has already been verified.
+     */
+    public synchronized boolean isCompleted(long chunkIndex) {
+        return completedChunks.get((int) chunkIndex);
+    }
+
+    /**
+     * Record a chunk as written and verified.
+     */
+    public synchronized void markCompleted(long chunkIndex) throws IOException {
+        if (completedChunks.get((int) chunkIndex)) {
+            return;
+        }
+        record.clear();
+        record.putLong(chunkIndex).flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        completedChunks.set((int) chunkIndex);
+    }
+
+    public synchronized int getCompletedCount() {
+        return completedChunks.cardinality();
+    }
+
+    /**
+     * Ranges of chunks still missing, as {firstChunk, count} pairs.
+     */
+    public synchronized List<long[]> getMissingRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        int start = completedChunks.nextClearBit(0);
+        while (start < chunkCount) {
+            int end = completedChunks.nextSetBit(start);
+            if (end < 0 || end > chunkCount) {
+                end = (int) chunkCount;
+            }
+            ranges.add(new long[] {start, end - start});
+            start = completedChunks.nextClearBit(end);
+        }
+        return ranges;
+    }
+
+    /**
+     * Close and remove the journal once the file is complete or abandoned.
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(journalPath);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static long headerLength(String fileId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            dos.writeUTF(fileId);
+        }
+        return Integer.BYTES + bytes.size() + Long.BYTES + Integer.BYTES;
+    }
+}
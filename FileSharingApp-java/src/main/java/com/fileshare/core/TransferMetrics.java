@@ -0,0 +1,573 @@
+package com.fileshare.core;
+
+import com.fileshare.core.FileTransferService.TransferProgress;
+import com.fileshare.core.FileTransferService.TransferType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records where transfers spend their time, for the Status tab and JMX.
+ *
+ * Every tracked transfer gets a Recorder. The data paths hand it a
+ * nanoTime mark around each disk, checksum, socket and rate-limit step;
+ * it adds the step to the transfer's totals and to a latency histogram of
+ * that phase, and returns the mark for the next step. The progress ticker
+ * feeds the bytes moved per tick, from which current and windowed
+ * throughput and stalls (ticks without progress) are derived. Finished
+ * transfers add their throughput and time to first byte to histograms.
+ *
+ * Socket time is how long the data path sat blocked on the socket, i.e.
+ * waiting for the network. Zero-copy sends count the kernel copy, disk
+ * reads included, as socket time; mapped paths fold page faults into it.
+ * Where a ReceivePipeline splits reading from writing, the time the reader
+ * waits for a free buffer and the writer for a filled one are phases too.
+ */
+public class TransferMetrics implements TransferMetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(TransferMetrics.class);
+
+    private static final int RECENT_TRANSFERS = 20;
+    private static final int WINDOW_SECONDS = 60;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final double MB = 1024.0 * 1024.0;
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    /**
+     * The steps a data path spends time in.
+     */
+    public enum Phase {
+        DISK("Disk I/O"),
+        CHECKSUM("Checksum"),
+        SOCKET("Socket stall"),
+        THROTTLE("Rate limit wait"),
+        READER_WAIT("Reader wait on disk"),
+        WRITER_WAIT("Writer wait on network");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() { return label; }
+    }
+
+    private final Map<String, TransferProgress> active = new ConcurrentHashMap<>();
+    private final Histogram[] phaseLatency = new Histogram[Phase.values().length];
+    private final Histogram throughput = new Histogram(); // KB/s per finished transfer
+    private final Histogram timeToFirstByte = new Histogram();
+    private final AtomicLongArray finishedPhaseNanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLong finishedStalls = new AtomicLong();
+    private final AtomicLong finishedStallNanos = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Deque<TransferReport> recent = new ArrayDeque<>();
+
+    // Written by the progress ticker, guarded by this
+    private final long[] windowBytes = new long[WINDOW_SECONDS];
+    private final long[] windowSeconds = new long[WINDOW_SECONDS];
+    private long totalBytes;
+    private long tickBytes;
+    private long lastTickNanos;
+    private double currentThroughput;
+
+    private ObjectName objectName;
+
+    public TransferMetrics() {
+        for (int i = 0; i < phaseLatency.length; i++) {
+            phaseLatency[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Start recording a transfer: its progress gets a Recorder attached
+     * to this registry.
+     */
+    public void open(TransferProgress progress) {
+        progress.setMetrics(new Recorder(this));
+        active.put(progress.getTransferId(), progress);
+    }
+
+    /**
+     * Stop recording a transfer and keep a report of it.
+     */
+    public void finish(TransferProgress progress, boolean success) {
+        if (active.remove(progress.getTransferId()) == null) {
+            return;
+        }
+        Recorder recorder = progress.getMetrics();
+        long now = System.nanoTime();
+        (success ? completed : failed).incrementAndGet();
+        for (Phase phase : Phase.values()) {
+            finishedPhaseNanos.addAndGet(phase.ordinal(), recorder.getPhaseNanos(phase));
+        }
+        finishedStalls.addAndGet(recorder.getStallCount());
+        finishedStallNanos.addAndGet(recorder.getStallNanos());
+
+        long firstByte = recorder.getTimeToFirstByteNanos();
+        double mbPerSecond = 0.0;
+        if (firstByte >= 0) {
+            timeToFirstByte.record(firstByte);
+            long flowing = now - recorder.getStartNanos() - firstByte;
+            if (success && flowing > 0 && progress.getBytesTransferred() > 0) {
+                mbPerSecond = progress.getBytesTransferred() * (double) NANOS_PER_SECOND / flowing / MB;
+                throughput.record((long) (mbPerSecond * 1024));
+            }
+        }
+        TransferReport report = new TransferReport(progress, success, recorder,
+            (now - recorder.getStartNanos()) / 1_000_000, mbPerSecond);
+        synchronized (recent) {
+            if (recent.size() == RECENT_TRANSFERS) {
+                recent.removeFirst();
+            }
+            recent.addLast(report);
+        }
+    }
+
+    /**
+     * Register with the platform MBean server as
+     * com.fileshare:type=TransferMetrics,instance=N.
+     */
+    public synchronized void registerMBean() {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName("com.fileshare:type=TransferMetrics,instance="
+                + instances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            logger.warn("Cannot register transfer metrics with JMX: {}", e.getMessage());
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("Cannot unregister transfer metrics from JMX: {}", e.getMessage());
+        }
+        objectName = null;
+    }
+
+    /**
+     * Count bytes the ticker saw a transfer move since its last tick.
+     */
+    synchronized void addBytes(long bytes, long nanos) {
+        if (bytes <= 0) {
+            return;
+        }
+        long second = nanos / NANOS_PER_SECOND;
+        int slot = (int) Math.floorMod(second, (long) WINDOW_SECONDS);
+        if (windowSeconds[slot] != second) {
+            windowSeconds[slot] = second;
+            windowBytes[slot] = 0;
+        }
+        windowBytes[slot] += bytes;
+        totalBytes += bytes;
+        tickBytes += bytes;
+    }
+
+    /**
+     * End a tick of the progress ticker, setting the current throughput.
+     */
+    synchronized void tick(long nanos) {
+        if (lastTickNanos != 0 && nanos > lastTickNanos) {
+            currentThroughput = tickBytes * (double) NANOS_PER_SECOND / (nanos - lastTickNanos) / MB;
+        }
+        tickBytes = 0;
+        lastTickNanos = nanos;
+    }
+
+    // JMX attributes
+
+    @Override
+    public int getActiveTransfers() { return active.size(); }
+    @Override
+    public long getCompletedTransfers() { return completed.get(); }
+    @Override
+    public long getFailedTransfers() { return failed.get(); }
+    @Override
+    public synchronized long getBytesTransferred() { return totalBytes; }
+    @Override
+    public synchronized double getCurrentThroughput() { return currentThroughput; }
+
+    @Override
+    public double getThroughputLast10Seconds() {
+        return windowedThroughput(10);
+    }
+
+    @Override
+    public double getThroughputLastMinute() {
+        return windowedThroughput(WINDOW_SECONDS);
+    }
+
+    @Override
+    public double getTransferThroughputP50() { return throughput.percentile(0.50) / 1024.0; }
+    @Override
+    public double getTransferThroughputP99() { return throughput.percentile(0.99) / 1024.0; }
+    @Override
+    public double getTimeToFirstByteP50Millis() { return timeToFirstByte.percentile(0.50) / 1e6; }
+    @Override
+    public double getTimeToFirstByteP99Millis() { return timeToFirstByte.percentile(0.99) / 1e6; }
+
+    @Override
+    public double getLatencyMicros(String phase, double percentile) {
+        return phaseLatency[Phase.valueOf(phase).ordinal()].percentile(percentile) / 1e3;
+    }
+
+    @Override
+    public long getDiskMillis() { return phaseMillis(Phase.DISK); }
+    @Override
+    public long getChecksumMillis() { return phaseMillis(Phase.CHECKSUM); }
+    @Override
+    public long getSocketStallMillis() { return phaseMillis(Phase.SOCKET); }
+    @Override
+    public long getThrottleMillis() { return phaseMillis(Phase.THROTTLE); }
+    @Override
+    public long getReaderWaitMillis() { return phaseMillis(Phase.READER_WAIT); }
+    @Override
+    public long getWriterWaitMillis() { return phaseMillis(Phase.WRITER_WAIT); }
+
+    @Override
+    public long getStallCount() {
+        long stalls = finishedStalls.get();
+        for (TransferProgress progress : active.values()) {
+            stalls += progress.getMetrics().getStallCount();
+        }
+        return stalls;
+    }
+
+    @Override
+    public long getStallMillis() {
+        long nanos = finishedStallNanos.get();
+        for (TransferProgress progress : active.values()) {
+            nanos += progress.getMetrics().getStallNanos();
+        }
+        return nanos / 1_000_000;
+    }
+
+    /**
+     * Reports of the most recent finished transfers, oldest first.
+     */
+    public List<TransferReport> getRecentTransfers() {
+        synchronized (recent) {
+            return new ArrayList<>(recent);
+        }
+    }
+
+    /**
+     * A plain-text rendering of all metrics, for the Status tab and logs.
+     */
+    @Override
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Transfers: %d active, %d completed, %d failed, %.1f MB moved%n",
+            getActiveTransfers(), getCompletedTransfers(), getFailedTransfers(), getBytesTransferred() / MB));
+        out.append(String.format("Throughput MB/s: now %.1f, 10s %.1f, 60s %.1f%n",
+            getCurrentThroughput(), getThroughputLast10Seconds(), getThroughputLastMinute()));
+        out.append(String.format("Per transfer MB/s: p50 %.1f, p99 %.1f%n",
+            getTransferThroughputP50(), getTransferThroughputP99()));
+        out.append(String.format("Time to first byte ms: p50 %.1f, p99 %.1f%n",
+            getTimeToFirstByteP50Millis(), getTimeToFirstByteP99Millis()));
+        for (Phase phase : Phase.values()) {
+            out.append(String.format("%s: %d ms total, per step p50 %.0f us, p99 %.0f us%n", phase.getLabel(),
+                phaseMillis(phase), getLatencyMicros(phase.name(), 0.50), getLatencyMicros(phase.name(), 0.99)));
+        }
+        out.append(String.format("Stalls: %d, %d ms%n", getStallCount(), getStallMillis()));
+
+        if (!active.isEmpty()) {
+            out.append(String.format("%nActive:%n"));
+            for (TransferProgress progress : active.values()) {
+                out.append("  ").append(describe(progress.getTransferId(), progress.getType(),
+                    progress.getFileName(), progress.getBytesTransferred(), progress.getMetrics()));
+                out.append(String.format(", %.1f%%%n", progress.getProgressPercentage()));
+            }
+        }
+        List<TransferReport> reports = getRecentTransfers();
+        if (!reports.isEmpty()) {
+            out.append(String.format("%nRecent:%n"));
+            for (int i = reports.size() - 1; i >= 0; i--) {
+                out.append("  ").append(reports.get(i)).append(System.lineSeparator());
+            }
+        }
+        return out.toString();
+    }
+
+    // Private helper methods
+
+    private synchronized double windowedThroughput(int seconds) {
+        // Whole seconds only, the current one is still filling
+        long now = System.nanoTime() / NANOS_PER_SECOND;
+        long bytes = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            long age = now - windowSeconds[i];
+            if (age >= 1 && age <= seconds) {
+                bytes += windowBytes[i];
+            }
+        }
+        return bytes / MB / seconds;
+    }
+
+    private long phaseMillis(Phase phase) {
+        long nanos = finishedPhaseNanos.get(phase.ordinal());
+        for (TransferProgress progress : active.values()) {
+            nanos += progress.getMetrics().getPhaseNanos(phase);
+        }
+        return nanos / 1_000_000;
+    }
+
+    private static String describe(String transferId, TransferType type, String fileName, long bytes,
+                                   Recorder recorder) {
+        StringBuilder out = new StringBuilder(String.format("%s %s %s, %.1f MB", transferId, type, fileName,
+            bytes / MB));
+        long firstByte = recorder.getTimeToFirstByteNanos();
+        if (firstByte >= 0) {
+            out.append(String.format(", first byte %.1f ms", firstByte / 1e6));
+        }
+        for (Phase phase : Phase.values()) {
+            out.append(String.format(", %s %d ms", phase.getLabel().toLowerCase(),
+                recorder.getPhaseNanos(phase) / 1_000_000));
+        }
+        out.append(String.format(", %d stalls", recorder.getStallCount()));
+        return out.toString();
+    }
+
+    /**
+     * Time accounting of one transfer. The phase methods are called from the
+     * data paths, possibly from several stream threads at once; the stall
+     * methods only from the progress ticker.
+     */
+    public static final class Recorder {
+        private final TransferMetrics parent;
+        private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+        private final AtomicLong firstByteNanos = new AtomicLong();
+        private volatile long startNanos = System.nanoTime();
+        private volatile long stallNanos;
+        private volatile long stallCount;
+        private boolean stalled;
+
+        /**
+         * A recorder that only keeps the transfer's own totals.
+         */
+        public Recorder() {
+            this(null);
+        }
+
+        Recorder(TransferMetrics parent) {
+            this.parent = parent;
+        }
+
+        public long getStartNanos() { return startNanos; }
+        public long getPhaseNanos(Phase phase) { return phaseNanos.get(phase.ordinal()); }
+        public long getStallNanos() { return stallNanos; }
+        public long getStallCount() { return stallCount; }
+
+        /**
+         * Nanoseconds from the start to the first payload byte, or -1 if
+         * none has moved yet.
+         */
+        public long getTimeToFirstByteNanos() {
+            long firstByte = firstByteNanos.get();
+            return firstByte != 0 ? firstByte - startNanos : -1;
+        }
+
+        /**
+         * Restart the clock when the peer connects, so a receive's time to
+         * first byte does not include waiting for a sender.
+         */
+        public void connected() {
+            if (firstByteNanos.get() == 0) {
+                startNanos = System.nanoTime();
+            }
+        }
+
+        /**
+         * Mark that payload has started to move.
+         */
+        public void firstByte() {
+            if (firstByteNanos.get() == 0) {
+                firstByteNanos.compareAndSet(0, System.nanoTime());
+            }
+        }
+
+        // Each step method books the time since mark and returns the new mark
+
+        public long disk(long mark) {
+            return record(Phase.DISK, mark);
+        }
+
+        public long checksum(long mark) {
+            return record(Phase.CHECKSUM, mark);
+        }
+
+        public long socket(long mark) {
+            long now = record(Phase.SOCKET, mark);
+            if (firstByteNanos.get() == 0) {
+                firstByteNanos.compareAndSet(0, now);
+            }
+            return now;
+        }
+
+        public long throttle(long mark) {
+            return record(Phase.THROTTLE, mark);
+        }
+
+        public long readerWait(long mark) {
+            return record(Phase.READER_WAIT, mark);
+        }
+
+        public long writerWait(long mark) {
+            return record(Phase.WRITER_WAIT, mark);
+        }
+
+        /**
+         * Called by the ticker with whether the transfer moved since the
+         * last tick; ticks without progress after the first byte are stalls.
+         */
+        void sample(boolean moved, long elapsedNanos) {
+            if (moved || firstByteNanos.get() == 0) {
+                stalled = false;
+                return;
+            }
+            if (!stalled) {
+                stalled = true;
+                stallCount++;
+            }
+            stallNanos += elapsedNanos;
+        }
+
+        private long record(Phase phase, long mark) {
+            long now = System.nanoTime();
+            long elapsed = now - mark;
+            phaseNanos.addAndGet(phase.ordinal(), elapsed);
+            if (parent != null) {
+                parent.phaseLatency[phase.ordinal()].record(elapsed);
+            }
+            return now;
+        }
+    }
+
+    /**
+     * What a finished transfer measured.
+     */
+    public static class TransferReport {
+        private final String transferId;
+        private final TransferType type;
+        private final String fileName;
+        private final long bytesTransferred;
+        private final boolean success;
+        private final long durationMillis;
+        private final double throughput;
+        private final Recorder recorder;
+
+        TransferReport(TransferProgress progress, boolean success, Recorder recorder, long durationMillis,
+                       double throughput) {
+            this.transferId = progress.getTransferId();
+            this.type = progress.getType();
+            this.fileName = progress.getFileName();
+            this.bytesTransferred = progress.getBytesTransferred();
+            this.success = success;
+            this.durationMillis = durationMillis;
+            this.throughput = throughput;
+            this.recorder = recorder;
+        }
+
+        public String getTransferId() { return transferId; }
+        public TransferType getType() { return type; }
+        public String getFileName() { return fileName; }
+        public long getBytesTransferred() { return bytesTransferred; }
+        public boolean isSuccess() { return success; }
+        public long getDurationMillis() { return durationMillis; }
+        public double getThroughput() { return throughput; } // MB/s while data flowed
+        public long getTimeToFirstByteNanos() { return recorder.getTimeToFirstByteNanos(); }
+        public long getPhaseNanos(Phase phase) { return recorder.getPhaseNanos(phase); }
+        public long getStallCount() { return recorder.getStallCount(); }
+        public long getStallNanos() { return recorder.getStallNanos(); }
+
+        @Override
+        public String toString() {
+            return describe(transferId, type, fileName, bytesTransferred, recorder)
+                + String.format(", %d ms, %.1f MB/s, %s", durationMillis, throughput, success ? "ok" : "failed");
+        }
+    }
+
+    /**
+     * Lock-free histogram of non-negative longs in logarithmic buckets:
+     * eight per power of two, so percentiles are within 12.5%.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(long value) {
+            counts.incrementAndGet(bucket(Math.max(0, value)));
+        }
+
+        /**
+         * The value below which the given fraction of recorded values lie,
+         * as the midpoint of its bucket; 0 when nothing was recorded.
+         */
+        double percentile(double fraction) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0.0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                    return (lowerBound(i) + (double) upper) / 2.0;
+                }
+            }
+            return lowerBound(BUCKETS - 1);
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.fileshare.core;
+
+/**
+ * JMX view of TransferMetrics, registered as
+ * com.fileshare:type=TransferMetrics,instance=N. Throughput is in MB/s.
+ */
+public interface TransferMetricsMXBean {
+    int getActiveTransfers();
+    long getCompletedTransfers();
+    long getFailedTransfers();
+    long getBytesTransferred();
+
+    double getCurrentThroughput();
+    double getThroughputLast10Seconds();
+    double getThroughputLastMinute();
+    double getTransferThroughputP50();
+    double getTransferThroughputP99();
+
+    double getTimeToFirstByteP50Millis();
+    double getTimeToFirstByteP99Millis();
+
+    long getDiskMillis();
+    long getChecksumMillis();
+    long getSocketStallMillis();
+    long getThrottleMillis();
+    long getReaderWaitMillis();
+    long getWriterWaitMillis();
+    long getStallCount();
+    long getStallMillis();
+
+    /**
+     * Latency of single steps of a phase (DISK, CHECKSUM, SOCKET, THROTTLE,
+     * READER_WAIT or WRITER_WAIT) at a percentile between 0 and 1.
+     */
+    double getLatencyMicros(String phase, double percentile);
+
+    /**
+     * All metrics as plain text.
+     */
+    String dump();
+}
@@ -0,0 +1,462 @@
+package com.fileshare.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format shared by the sending and receiving side of a transfer.
+ *
+ * A transfer starts with a header: magic, version, flags, file name and
+ * file size. The content follows, and when FLAG_CHECKSUM_TRAILER is set a
+ * CRC32 of the content is appended after the last byte.
+ *
+ * With FLAG_CHUNKED the header also carries the stream count, chunk size
+ * and a session id. Any streams beyond the first open their own
+ * connections and identify themselves with a stream-join header. Every
+ * stream then carries chunk frames (offset, length, bytes and, with
+ * FLAG_CHECKSUM_TRAILER, a CRC32C of the chunk) until an end-of-stream frame.
+ *
+ * With FLAG_COMPRESSED every chunk frame also names its codec (raw or
+ * Deflate) and the length of the encoded payload. The trailer still covers
+ * the original bytes.
+ *
+ * With FLAG_SPARSE a chunk that reads as all zeros goes as a zero frame:
+ * its offset and its length negated, with no codec, payload or trailer.
+ * The receiver sizes the file up front without writing it and leaves such
+ * regions as holes.
+ *
+ * With FLAG_VERIFIED the sender writes the root of the MerkleTree over
+ * its chunks on the first connection once every stream has ended. A chunk
+ * that fails its trailer does not fail the file; it is just left missing.
+ * The receiver checks its copy against the root and answers with a repair
+ * request: done, a request for all leaf hashes (when the roots differ
+ * though every chunk passed its trailer), or the chunk ranges to send
+ * again. Those follow as frames on the first connection, ending with an
+ * end-of-stream frame, and the receiver answers again. A file that goes
+ * as a delta has its own whole-file check and skips this.
+ *
+ * With FLAG_RESUMABLE the header carries a file identity, and the receiver
+ * answers on the first connection with the chunk ranges it is missing
+ * before any frame is sent.
+ *
+ * With FLAG_DELTA the receiver answers, after any missing ranges, with the
+ * block signatures of the copy of the file it already has (none if it has
+ * no copy, or a resume is under way). Given signatures, the sender sends the
+ * file as a delta on the first connection instead of chunk frames: literal
+ * bytes and references to runs of the receiver's blocks, ending with a
+ * CRC32 of the whole file. Any other streams send only an end-of-stream
+ * frame.
+ *
+ * A session (FLAG_SESSION) moves a batch of files over one persistent
+ * connection. The manifest lists every file up front, and the receiver
+ * answers once with the missing ranges of each (all of a file unless it is
+ * being resumed) and, with FLAG_DELTA, its signatures, which also gives both
+ * sides a round-trip sample. The files then follow back to back as chunk
+ * frames ending with an end-of-stream frame, or as deltas, and the
+ * receiver acknowledges every file on the return path while the sender
+ * keeps streaming.
+ *
+ * With FLAG_PACKED the manifest also carries a size limit, and every file
+ * no larger than it is packed: it gets no answer of its own, and the
+ * receiver's answer starts with the number of packed files instead. The
+ * packed files go first, in manifest order, as one run of entries (file
+ * index, length, bytes and, with FLAG_CHECKSUM_TRAILER, a CRC32C of the
+ * bytes) with no per-file framing or end-of-stream frame. An entry with
+ * length PACKED_SKIPPED stands for a file the sender could not read. The
+ * larger files follow as usual.
+ */
+public final class TransferProtocol {
+    public static final int MAGIC = 0x46534852; // "FSHR"
+    public static final int VERSION = 3;
+
+    // Header flags
+    public static final int FLAG_CHECKSUM_TRAILER = 1;
+    public static final int FLAG_CHUNKED = 2;
+    public static final int FLAG_STREAM_JOIN = 4;
+    public static final int FLAG_RESUMABLE = 8;
+    public static final int FLAG_SESSION = 16;
+    public static final int FLAG_COMPRESSED = 32;
+    public static final int FLAG_DELTA = 64;
+    public static final int FLAG_VERIFIED = 128;
+    public static final int FLAG_PACKED = 256;
+    public static final int FLAG_SPARSE = 512;
+
+    // Repair requests of a FLAG_VERIFIED receiver
+    public static final int REPAIR_DONE = 0;
+    public static final int REPAIR_LEAVES = 1;
+    public static final int REPAIR_CHUNKS = 2;
+
+    // Chunk frames: long offset, int length
+    public static final int FRAME_HEADER_SIZE = 12;
+    // With FLAG_COMPRESSED: long offset, int length, byte codec, int payload length
+    public static final int COMPRESSED_FRAME_HEADER_SIZE = 17;
+    public static final long END_OF_STREAM = -1;
+    // Packed entries: int file index, int length
+    public static final int PACKED_ENTRY_HEADER_SIZE = 8;
+    public static final int PACKED_SKIPPED = -1;
+
+    // Largest chunk either side sends; a receiver holds a whole chunk in memory
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    // Manifest entries preallocated before any has arrived
+    private static final int MANIFEST_CAPACITY_HINT = 1024;
+
+    private TransferProtocol() {
+    }
+
+    /**
+     * Write a file header to the stream.
+     */
+    public static void writeHeader(DataOutputStream dos, FileHeader header) throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeInt(header.getFlags());
+        dos.writeUTF(header.getFileName());
+        dos.writeLong(header.getFileSize());
+        if (header.hasFlag(FLAG_CHUNKED)) {
+            dos.writeInt(header.getStreamCount());
+            dos.writeInt(header.getChunkSize());
+            dos.writeLong(header.getSessionId());
+        }
+        if (header.hasFlag(FLAG_RESUMABLE)) {
+            dos.writeUTF(header.getFileId());
+        }
+    }
+
+    /**
+     * Read and validate a file header from the stream.
+     */
+    public static FileHeader readHeader(DataInputStream dis) throws IOException {
+        return readHeader(dis, readPreamble(dis));
+    }
+
+    /**
+     * Read the rest of a file header whose preamble has already been read.
+     */
+    public static FileHeader readHeader(DataInputStream dis, int flags) throws IOException {
+        if ((flags & (FLAG_STREAM_JOIN | FLAG_SESSION | FLAG_PACKED)) != 0) {
+            throw new IOException("Expected a file header but got flags " + flags);
+        }
+        String fileName = dis.readUTF();
+        long fileSize = dis.readLong();
+        if (fileSize < 0) {
+            throw new IOException("Invalid file size in header: " + fileSize);
+        }
+        if ((flags & FLAG_CHUNKED) == 0) {
+            if ((flags & (FLAG_RESUMABLE | FLAG_COMPRESSED | FLAG_DELTA | FLAG_VERIFIED | FLAG_SPARSE)) != 0) {
+                throw new IOException("Resumable, compressed, delta and sparse transfers must be chunked");
+            }
+            return new FileHeader(fileName, fileSize, flags);
+        }
+        int streamCount = dis.readInt();
+        int chunkSize = dis.readInt();
+        long sessionId = dis.readLong();
+        if (streamCount < 1 || chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunked header: " + streamCount + " streams, chunk size " + chunkSize);
+        }
+        String fileId = (flags & FLAG_RESUMABLE) != 0 ? dis.readUTF() : null;
+        return new FileHeader(fileName, fileSize, flags, streamCount, chunkSize, sessionId, fileId);
+    }
+
+    /**
+     * Write the receiver's answer to a resumable header: the chunk ranges
+     * still missing, as {firstChunk, count} pairs. The caller flushes.
+     */
+    public static void writeMissingRanges(DataOutputStream dos, List<long[]> ranges) throws IOException {
+        dos.writeInt(ranges.size());
+        for (long[] range : ranges) {
+            dos.writeLong(range[0]);
+            dos.writeLong(range[1]);
+        }
+    }
+
+    /**
+     * Read the missing chunk ranges sent by the receiver.
+     */
+    public static List<long[]> readMissingRanges(DataInputStream dis, long chunkCount) throws IOException {
+        int count = dis.readInt();
+        if (count < 0 || count > chunkCount) {
+            throw new IOException("Invalid missing range count: " + count);
+        }
+        List<long[]> ranges = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long first = dis.readLong();
+            long length = dis.readLong();
+            if (first < 0 || length < 0 || first + length > chunkCount) {
+                throw new IOException("Invalid missing range: " + first + "+" + length);
+            }
+            ranges.add(new long[] {first, length});
+        }
+        return ranges;
+    }
+
+    /**
+     * Write the block signatures of the receiver's copy of a file. The
+     * caller flushes.
+     */
+    public static void writeSignatures(DataOutputStream dos, BlockSignatures signatures) throws IOException {
+        dos.writeInt(signatures.getBlockSize());
+        dos.writeInt(signatures.getBlockCount());
+        for (int i = 0; i < signatures.getBlockCount(); i++) {
+            dos.writeInt(signatures.getWeak(i));
+            dos.write(signatures.getStrong(i));
+        }
+    }
+
+    /**
+     * Read the block signatures sent by the receiver.
+     */
+    public static BlockSignatures readSignatures(DataInputStream dis) throws IOException {
+        int blockSize = dis.readInt();
+        int count = dis.readInt();
+        if (count == 0) {
+            return BlockSignatures.NONE;
+        }
+        if (count < 0 || count > BlockSignatures.MAX_BLOCK_COUNT
+                || blockSize < BlockSignatures.MIN_BLOCK_SIZE || blockSize > BlockSignatures.MAX_BLOCK_SIZE) {
+            throw new IOException("Invalid signatures: " + count + " blocks of " + blockSize + " bytes");
+        }
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][BlockSignatures.STRONG_LENGTH];
+        for (int i = 0; i < count; i++) {
+            weak[i] = dis.readInt();
+            dis.readFully(strong[i]);
+        }
+        return new BlockSignatures(blockSize, weak, strong);
+    }
+
+    /**
+     * Write a root or leaf hash of a MerkleTree. The caller flushes.
+     */
+    public static void writeHash(DataOutputStream dos, byte[] hash) throws IOException {
+        dos.write(hash);
+    }
+
+    /**
+     * Read a root or leaf hash of a MerkleTree.
+     */
+    public static byte[] readHash(DataInputStream dis) throws IOException {
+        byte[] hash = new byte[MerkleTree.HASH_LENGTH];
+        dis.readFully(hash);
+        return hash;
+    }
+
+    /**
+     * Write every leaf hash of the sender's tree, in chunk order. The caller
+     * flushes.
+     */
+    public static void writeLeaves(DataOutputStream dos, byte[][] leaves) throws IOException {
+        dos.writeInt(leaves.length);
+        for (byte[] leaf : leaves) {
+            dos.write(leaf);
+        }
+    }
+
+    /**
+     * Read the sender's leaf hashes of a file with the given chunk count.
+     */
+    public static byte[][] readLeaves(DataInputStream dis, long chunkCount) throws IOException {
+        int count = dis.readInt();
+        if (count != chunkCount) {
+            throw new IOException("Expected " + chunkCount + " leaf hashes, got " + count);
+        }
+        byte[][] leaves = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            leaves[i] = readHash(dis);
+        }
+        return leaves;
+    }
+
+    /**
+     * Write a repair request, with the chunk ranges to send again for
+     * REPAIR_CHUNKS. The caller flushes.
+     */
+    public static void writeRepairRequest(DataOutputStream dos, int request, List<long[]> ranges) throws IOException {
+        dos.writeByte(request);
+        if (request == REPAIR_CHUNKS) {
+            writeMissingRanges(dos, ranges);
+        }
+    }
+
+    /**
+     * Read the kind of the next repair request; REPAIR_CHUNKS is followed
+     * by missing ranges.
+     */
+    public static int readRepairRequest(DataInputStream dis) throws IOException {
+        int request = dis.readUnsignedByte();
+        if (request > REPAIR_CHUNKS) {
+            throw new IOException("Unknown repair request: " + request);
+        }
+        return request;
+    }
+
+    /**
+     * Write the header that attaches an extra connection to a parallel session.
+     */
+    public static void writeStreamJoin(DataOutputStream dos, long sessionId) throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeInt(FLAG_STREAM_JOIN);
+        dos.writeLong(sessionId);
+    }
+
+    /**
+     * Read a stream-join header and return its session id.
+     */
+    public static long readStreamJoin(DataInputStream dis) throws IOException {
+        int flags = readPreamble(dis);
+        if ((flags & FLAG_STREAM_JOIN) == 0) {
+            throw new IOException("Expected a stream join header");
+        }
+        return dis.readLong();
+    }
+
+    /**
+     * Write a session manifest: shared flags and chunk size, the pack limit
+     * with FLAG_PACKED, then the name, size and identity of every file in
+     * the batch.
+     */
+    public static void writeManifest(DataOutputStream dos, int flags, int chunkSize, int packLimit,
+                                     List<FileHeader> files) throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeInt(flags | FLAG_SESSION);
+        dos.writeInt(chunkSize);
+        if ((flags & FLAG_PACKED) != 0) {
+            dos.writeInt(packLimit);
+        }
+        dos.writeInt(files.size());
+        for (FileHeader file : files) {
+            dos.writeUTF(file.getFileName());
+            dos.writeLong(file.getFileSize());
+            dos.writeUTF(file.getFileId());
+        }
+    }
+
+    /**
+     * Read a session manifest whose preamble has already been read. Files
+     * within the pack limit carry FLAG_PACKED.
+     */
+    public static List<FileHeader> readManifest(DataInputStream dis, int flags) throws IOException {
+        if ((flags & FLAG_SESSION) == 0) {
+            throw new IOException("Expected a session manifest");
+        }
+        int chunkSize = dis.readInt();
+        int packLimit = (flags & FLAG_PACKED) != 0 ? dis.readInt() : -1;
+        int count = dis.readInt();
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE || count < 0) {
+            throw new IOException("Invalid manifest: " + count + " files, chunk size " + chunkSize);
+        }
+        // A packed file is read whole into one pooled buffer
+        if (packLimit > BufferPool.MAX_BUFFER_SIZE) {
+            throw new IOException("Invalid manifest: pack limit " + packLimit);
+        }
+        int fileFlags = (flags & ~(FLAG_SESSION | FLAG_PACKED)) | FLAG_CHUNKED;
+        // The count is the peer's word; the list only grows as entries arrive
+        List<FileHeader> files = new ArrayList<>(Math.min(count, MANIFEST_CAPACITY_HINT));
+        for (int i = 0; i < count; i++) {
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+            String fileId = dis.readUTF();
+            if (fileSize < 0) {
+                throw new IOException("Invalid file size in manifest: " + fileSize);
+            }
+            int entryFlags = fileSize <= packLimit ? fileFlags | FLAG_PACKED : fileFlags;
+            files.add(new FileHeader(fileName, fileSize, entryFlags, 1, chunkSize, 0, fileId));
+        }
+        return files;
+    }
+
+    /**
+     * Acknowledge one file of a session. The caller flushes.
+     */
+    public static void writeAck(DataOutputStream dos, FileAck ack) throws IOException {
+        dos.writeInt(ack.getFileIndex());
+        dos.writeBoolean(ack.isSuccess());
+        dos.writeUTF(ack.getMessage() != null ? ack.getMessage() : "");
+    }
+
+    /**
+     * Read the acknowledgement of one file of a session.
+     */
+    public static FileAck readAck(DataInputStream dis) throws IOException {
+        int fileIndex = dis.readInt();
+        boolean success = dis.readBoolean();
+        String message = dis.readUTF();
+        return new FileAck(fileIndex, success, message.isEmpty() ? null : message);
+    }
+
+    /**
+     * Read magic and version and return the flags of the next message.
+     */
+    public static int readPreamble(DataInputStream dis) throws IOException {
+        int magic = dis.readInt();
+        if (magic != MAGIC) {
+            throw new IOException(String.format("Unexpected transfer header: 0x%08x", magic));
+        }
+        int version = dis.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+        return dis.readInt();
+    }
+
+    public static class FileHeader {
+        private final String fileName;
+        private final long fileSize;
+        private final int flags;
+        private final int streamCount;
+        private final int chunkSize;
+        private final long sessionId;
+        private final String fileId;
+
+        public FileHeader(String fileName, long fileSize, int flags) {
+            this(fileName, fileSize, flags, 1, 0, 0, null);
+        }
+
+        public FileHeader(String fileName, long fileSize, int flags, int streamCount, int chunkSize,
+                          long sessionId, String fileId) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.flags = flags;
+            this.streamCount = streamCount;
+            this.chunkSize = chunkSize;
+            this.sessionId = sessionId;
+            this.fileId = fileId;
+        }
+
+        public String getFileName() { return fileName; }
+        public long getFileSize() { return fileSize; }
+        public int getFlags() { return flags; }
+        public int getStreamCount() { return streamCount; }
+        public int getChunkSize() { return chunkSize; }
+        public long getSessionId() { return sessionId; }
+        public String getFileId() { return fileId; }
+
+        public long getChunkCount() {
+            return chunkSize > 0 ? (fileSize + chunkSize - 1) / chunkSize : 1;
+        }
+
+        public boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+    }
+
+    public static class FileAck {
+        private final int fileIndex;
+        private final boolean success;
+        private final String message;
+
+        public FileAck(int fileIndex, boolean success, String message) {
+            this.fileIndex = fileIndex;
+            this.success = success;
+            this.message = message;
+        }
+
+        public int getFileIndex() { return fileIndex; }
+        public boolean isSuccess() { return success; }
+        public String getMessage() { return message; }
+    }
+}
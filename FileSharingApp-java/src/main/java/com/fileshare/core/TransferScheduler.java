@@ -0,0 +1,184 @@
+package com.fileshare.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Decides which transfers start first and how fast each one may go.
+ *
+ * Every transfer gets a Ticket with a priority class. Waiting transfers are
+ * started by class, and within a class the one with the fewest bytes left
+ * goes first, so a few documents are not stuck behind a backup.
+ *
+ * Rates are shaped by token buckets: one per transfer, one per peer and,
+ * when scheduler.link.rate gives the capacity of the link, one for the
+ * link. While transfers of a higher class are running, lower classes yield
+ * on the link bucket, so they only take what the foreground leaves over.
+ * Priorities and limits may change at any time.
+ */
+public class TransferScheduler {
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    public enum Priority {
+        FOREGROUND,
+        NORMAL,
+        BACKGROUND
+    }
+
+    private final TokenBucket linkBucket;
+    private final long defaultTransferRate;
+    private final long defaultPeerRate;
+    private final Map<String, TokenBucket> peerBuckets = new ConcurrentHashMap<>();
+    private final AtomicIntegerArray activeByPriority = new AtomicIntegerArray(Priority.values().length);
+
+    public TransferScheduler(long linkRate, long defaultTransferRate, long defaultPeerRate) {
+        this.linkBucket = new TokenBucket(linkRate);
+        this.defaultTransferRate = defaultTransferRate;
+        this.defaultPeerRate = defaultPeerRate;
+    }
+
+    public static TransferScheduler create(TransferConfig config) {
+        return new TransferScheduler(config.getLinkRate(), config.getTransferRateLimit(), config.getPeerRateLimit());
+    }
+
+    /**
+     * Create the ticket of a transfer of totalBytes with a peer, which may
+     * be null while it is not known. The transfer counts as active until
+     * the ticket is closed.
+     */
+    public Ticket open(String transferId, String peer, long totalBytes, Priority priority) {
+        Ticket ticket = new Ticket(transferId, peer, totalBytes, priority);
+        activeByPriority.incrementAndGet(priority.ordinal());
+        return ticket;
+    }
+
+    public void setLinkRate(long bytesPerSecond) {
+        linkBucket.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Limit all transfers with a peer together; 0 removes the limit.
+     */
+    public void setPeerRateLimit(String peer, long bytesPerSecond) {
+        peerBucket(peer).setRate(bytesPerSecond);
+    }
+
+    // Private helper methods
+
+    private TokenBucket peerBucket(String peer) {
+        return peerBuckets.computeIfAbsent(peer, key -> new TokenBucket(defaultPeerRate));
+    }
+
+    private boolean higherClassActive(Priority priority) {
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (activeByPriority.get(i) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The scheduling state of one transfer. Data paths call pace, or
+     * reserve where they must not block, for every piece they move.
+     */
+    public final class Ticket implements AutoCloseable {
+        private final String transferId;
+        private final TokenBucket bucket;
+        private final AtomicLong remainingBytes;
+        private volatile String peer;
+        private volatile Priority priority;
+        private volatile boolean closed;
+
+        Ticket(String transferId, String peer, long totalBytes, Priority priority) {
+            this.transferId = transferId;
+            this.peer = peer;
+            this.priority = priority;
+            this.bucket = new TokenBucket(defaultTransferRate);
+            this.remainingBytes = new AtomicLong(Math.max(totalBytes, 0));
+        }
+
+        public String getTransferId() { return transferId; }
+        public String getPeer() { return peer; }
+        public Priority getPriority() { return priority; }
+        public long getRemainingBytes() { return remainingBytes.get(); }
+        public long getRateLimit() { return bucket.getRate(); }
+
+        public void setPeer(String peer) { this.peer = peer; }
+
+        public synchronized void setPriority(Priority priority) {
+            if (!closed && priority != this.priority) {
+                activeByPriority.incrementAndGet(priority.ordinal());
+                activeByPriority.decrementAndGet(this.priority.ordinal());
+            }
+            this.priority = priority;
+        }
+
+        /**
+         * Limit this transfer on its own; 0 removes the limit.
+         */
+        public void setRateLimit(long bytesPerSecond) {
+            bucket.setRate(bytesPerSecond);
+        }
+
+        /**
+         * Whether any bucket currently limits this transfer, so the data
+         * path should move it in small pieces.
+         */
+        public boolean isShaped() {
+            String currentPeer = peer;
+            return bucket.isLimited() || linkBucket.isLimited()
+                || (currentPeer != null && peerBucket(currentPeer).isLimited());
+        }
+
+        /**
+         * Take tokens for a piece of bytes if every bucket allows it now and
+         * return 0, or return the nanoseconds to wait before asking again.
+         */
+        public long reserve(long bytes) {
+            String currentPeer = peer;
+            TokenBucket peerBucket = currentPeer != null ? peerBucket(currentPeer) : null;
+            boolean yielding = higherClassActive(priority);
+            long wait = Math.max(bucket.waitTime(bytes, false), linkBucket.waitTime(bytes, yielding));
+            if (peerBucket != null) {
+                wait = Math.max(wait, peerBucket.waitTime(bytes, false));
+            }
+            if (wait > 0) {
+                return wait;
+            }
+            bucket.take(bytes);
+            linkBucket.take(bytes);
+            if (peerBucket != null) {
+                peerBucket.take(bytes);
+            }
+            remainingBytes.accumulateAndGet(bytes, (left, moved) -> Math.max(0, left - moved));
+            return 0;
+        }
+
+        /**
+         * Wait until the buckets allow a piece of bytes and take it, in
+         * short steps so a cancel is noticed. An interrupt ends the wait and
+         * stays set for the caller's I/O.
+         */
+        public void pace(long bytes, BooleanSupplier cancelled) {
+            long wait;
+            while ((wait = reserve(bytes)) > 0 && !cancelled.getAsBoolean()
+                    && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(Math.min(wait, MAX_PARK_NANOS));
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                activeByPriority.decrementAndGet(priority.ordinal());
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.fileshare.core;
+
+import com.fileshare.core.FileTransferService.TransferProgress;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Moves single files to and from host:port for FileTransferService, which
+ * selects the implementation from transport.type.
+ *
+ * Both calls return at once; the future completes when the transfer has
+ * finished or failed. onProgress is told the bytes moved so far and the
+ * size of the file, and a transfer stops once its progress is cancelled.
+ */
+public interface TransferTransport {
+
+    /**
+     * Connect to host:port and send the file.
+     */
+    CompletableFuture<Void> send(File file, String host, int port, TransferProgress progress,
+                                 ProgressCallback onProgress);
+
+    /**
+     * Listen on the port, receive one file into the save directory and
+     * stop listening.
+     */
+    CompletableFuture<File> receive(int port, String saveDirectory, TransferProgress progress,
+                                    ProgressCallback onProgress);
+
+    /**
+     * Release the threads and connections of the transport.
+     */
+    void shutdown();
+
+    @FunctionalInterface
+    interface ProgressCallback {
+        void onProgress(long bytesTransferred, long totalBytes);
+    }
+}
@@ -0,0 +1,233 @@
+package com.fileshare.core;
+
+import com.fileshare.core.FileTransferService.TransferParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the application buffer, socket buffer and chunk sizes from the
+ * measured behaviour of the link.
+ *
+ * The round-trip time is taken from the request and answer that open a
+ * transfer (manifest or resumable header and the missing-ranges reply),
+ * and the bandwidth from the progress samples taken while data moves.
+ * From their product the tuner sizes socket buffers to twice the
+ * bandwidth-delay product (doubled again while transfers keep stalling),
+ * the application buffer to about 5 ms of data per read or write, and
+ * chunks to about 250 ms of data. Chunk size is fixed per file on the
+ * wire, so a new value applies from the next transfer on; buffers follow
+ * within a transfer.
+ *
+ * With adaptive.chunk.size=false the configured sizes are used unchanged.
+ */
+public class TransferTuner {
+    private static final Logger logger = LoggerFactory.getLogger(TransferTuner.class);
+
+    private static final int MIN_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    private static final int MIN_SOCKET_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_SOCKET_BUFFER_SIZE = 8 * 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNK_SIZE = TransferProtocol.MAX_CHUNK_SIZE;
+
+    private static final double BUFFER_TARGET_SECONDS = 0.005;
+    private static final double CHUNK_TARGET_SECONDS = 0.25;
+    private static final long SAMPLE_INTERVAL_NANOS = 50_000_000L;
+    private static final double STALL_THRESHOLD = 0.2;
+    private static final double SMOOTHING = 0.3;
+    private static final int RECENT_TRANSFERS = 32;
+
+    private final boolean adaptive;
+    private volatile int bufferSize;
+    private volatile int socketBufferSize;
+    private volatile int chunkSize;
+
+    // Link estimates, guarded by this
+    private double roundTripNanos;
+    private double bytesPerSecond;
+    private double stallFraction;
+
+    private final ConcurrentHashMap<String, Measurement> measurements = new ConcurrentHashMap<>();
+    private final Deque<TransferParameters> recentParameters = new ArrayDeque<>();
+
+    public TransferTuner(TransferConfig config) {
+        this.adaptive = config.isAdaptiveTuningEnabled();
+        this.bufferSize = config.getBufferSize();
+        this.socketBufferSize = Math.max(config.getBufferSize(), MIN_SOCKET_BUFFER_SIZE);
+        this.chunkSize = Math.min(config.getChunkSize(), MAX_CHUNK_SIZE);
+    }
+
+    public boolean isAdaptive() { return adaptive; }
+    public int getBufferSize() { return bufferSize; }
+    public int getSocketBufferSize() { return socketBufferSize; }
+    public int getChunkSize() { return chunkSize; }
+
+    /**
+     * Size the kernel buffers of a socket for the current estimate.
+     */
+    public void applyTo(Socket socket) throws SocketException {
+        socket.setSendBufferSize(socketBufferSize);
+        socket.setReceiveBufferSize(socketBufferSize);
+    }
+
+    /**
+     * Record the time between sending a request and reading its answer.
+     */
+    public void recordRoundTrip(String transferId, long nanos) {
+        measurement(transferId).roundTripNanos = nanos;
+        synchronized (this) {
+            // The smallest sample is the one least inflated by the peer's own work
+            roundTripNanos = roundTripNanos == 0 ? nanos : Math.min(roundTripNanos, nanos);
+            retune();
+        }
+    }
+
+    /**
+     * Record the chunk size a transfer runs with.
+     */
+    public void recordChunkSize(String transferId, int chunkSize) {
+        measurement(transferId).chunkSize = chunkSize;
+    }
+
+    /**
+     * Feed the number of bytes a transfer has moved so far. The first call
+     * only sets the baseline, so bytes already present on a resume are not
+     * counted as throughput.
+     */
+    public void sample(String transferId, long bytesTransferred) {
+        Measurement measurement = measurement(transferId);
+        long now = System.nanoTime();
+        long elapsed;
+        long moved;
+        synchronized (measurement) {
+            if (measurement.lastSampleNanos == 0) {
+                measurement.lastSampleNanos = now;
+                measurement.lastBytes = bytesTransferred;
+                return;
+            }
+            elapsed = now - measurement.lastSampleNanos;
+            if (elapsed < SAMPLE_INTERVAL_NANOS) {
+                return;
+            }
+            moved = bytesTransferred - measurement.lastBytes;
+            measurement.lastSampleNanos = now;
+            measurement.lastBytes = bytesTransferred;
+            if (moved > 0) {
+                measurement.activeNanos += elapsed;
+                measurement.activeBytes += moved;
+            } else {
+                measurement.stallNanos += elapsed;
+            }
+        }
+
+        synchronized (this) {
+            stallFraction = smooth(stallFraction, moved > 0 ? 0 : 1);
+            if (moved > 0) {
+                double rate = moved * 1e9 / elapsed;
+                bytesPerSecond = bytesPerSecond == 0 ? rate : smooth(bytesPerSecond, rate);
+            }
+            retune();
+        }
+    }
+
+    /**
+     * End the measurement of a transfer and keep the parameters it ran with.
+     */
+    public TransferParameters finish(String transferId) {
+        Measurement measurement = measurements.remove(transferId);
+        if (measurement == null) {
+            measurement = new Measurement();
+        }
+        TransferParameters parameters;
+        synchronized (measurement) {
+            double seconds = measurement.activeNanos / 1e9;
+            parameters = new TransferParameters(transferId, bufferSize, socketBufferSize,
+                measurement.chunkSize > 0 ? measurement.chunkSize : chunkSize,
+                measurement.roundTripNanos / 1e6,
+                seconds > 0 ? measurement.activeBytes / seconds / (1024.0 * 1024.0) : 0.0,
+                measurement.stallNanos / 1_000_000);
+        }
+        synchronized (recentParameters) {
+            if (recentParameters.size() == RECENT_TRANSFERS) {
+                recentParameters.removeFirst();
+            }
+            recentParameters.addLast(parameters);
+        }
+        return parameters;
+    }
+
+    /**
+     * Parameters of the most recent transfers, oldest first.
+     */
+    public List<TransferParameters> getRecentParameters() {
+        synchronized (recentParameters) {
+            return new ArrayList<>(recentParameters);
+        }
+    }
+
+    // Private helper methods
+
+    private Measurement measurement(String transferId) {
+        return measurements.computeIfAbsent(transferId, id -> new Measurement());
+    }
+
+    private void retune() {
+        if (!adaptive || bytesPerSecond <= 0) {
+            return;
+        }
+        int newBufferSize = clampToPowerOfTwo(bytesPerSecond * BUFFER_TARGET_SECONDS, MIN_BUFFER_SIZE, MAX_BUFFER_SIZE);
+        int newChunkSize = clampToPowerOfTwo(bytesPerSecond * CHUNK_TARGET_SECONDS, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
+        int newSocketBufferSize = socketBufferSize;
+        if (roundTripNanos > 0) {
+            double target = 2 * bytesPerSecond * roundTripNanos / 1e9;
+            if (stallFraction > STALL_THRESHOLD) {
+                target *= 2;
+            }
+            newSocketBufferSize = clampToPowerOfTwo(target, MIN_SOCKET_BUFFER_SIZE, MAX_SOCKET_BUFFER_SIZE);
+        }
+
+        if (newBufferSize != bufferSize || newChunkSize != chunkSize || newSocketBufferSize != socketBufferSize) {
+            logger.debug("Tuned for {} MB/s, RTT {} ms: buffer {}, socket buffer {}, chunk {}",
+                String.format("%.1f", bytesPerSecond / (1024 * 1024)), String.format("%.2f", roundTripNanos / 1e6),
+                newBufferSize, newSocketBufferSize, newChunkSize);
+            bufferSize = newBufferSize;
+            chunkSize = newChunkSize;
+            socketBufferSize = newSocketBufferSize;
+        }
+    }
+
+    private static double smooth(double current, double sample) {
+        return current + SMOOTHING * (sample - current);
+    }
+
+    private static int clampToPowerOfTwo(double target, int min, int max) {
+        if (target <= min) {
+            return min;
+        }
+        if (target >= max) {
+            return max;
+        }
+        return Integer.highestOneBit((int) target);
+    }
+
+    /**
+     * What one transfer has measured so far.
+     */
+    private static class Measurement {
+        private long lastSampleNanos;
+        private long lastBytes;
+        private long activeNanos;
+        private long activeBytes;
+        private long stallNanos;
+        private volatile long roundTripNanos;
+        private volatile int chunkSize;
+    }
+}
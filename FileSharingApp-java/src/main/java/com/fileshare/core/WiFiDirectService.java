@@ -5,6 +5,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -27,11 +29,12 @@ public class WiFiDirectService {
     private String deviceName;
     private String deviceAddress;
     private final Map<String, PeerDevice> discoveredPeers = new ConcurrentHashMap<>();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final TransferExecutor executor;
+    private final boolean ownsExecutor;
     
     // Network components
     private MulticastSocket discoverySocket;
-    private ServerSocket transferServer;
+    private ServerSocketChannel transferServer;
     private DatagramSocket broadcastSocket;
     private Socket groupConnection;
     
@@ -41,6 +44,20 @@ public class WiFiDirectService {
     private final List<ConnectionStatusListener> statusListeners = new CopyOnWriteArrayList<>();
     
     public WiFiDirectService() {
+        this(TransferExecutor.create(TransferConfig.load()), true);
+    }
+    
+    /**
+     * Create a service that runs its listeners on a shared executor, which
+     * the caller shuts down.
+     */
+    public WiFiDirectService(TransferExecutor executor) {
+        this(executor, false);
+    }
+    
+    private WiFiDirectService(TransferExecutor executor, boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
         this.deviceName = System.getProperty("user.name", "Unknown");
         this.deviceAddress = getLocalAddress();
     }
@@ -90,8 +107,10 @@ public class WiFiDirectService {
         // Close network resources
         closeResources();
         
-        // Shutdown executor
-        executorService.shutdown();
+        // Shutdown executor; loops still blocked in I/O end when their sockets close
+        if (ownsExecutor) {
+            executor.shutdown(0, TimeUnit.SECONDS);
+        }
         
         logger.info("WiFi Direct service stopped");
     }
@@ -194,7 +213,7 @@ public class WiFiDirectService {
         discoverySocket.joinGroup(group);
         
         // Start discovery listener
-        executorService.submit(() -> {
+        executor.runBackground(() -> {
             byte[] buffer = new byte[1024];
             DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
             
@@ -212,13 +231,15 @@ public class WiFiDirectService {
     }
     
     private void startTransferServer() throws IOException {
-        transferServer = new ServerSocket(TRANSFER_PORT);
+        // Channel-backed sockets let FileTransferService use zero-copy sends
+        transferServer = ServerSocketChannel.open();
+        transferServer.bind(new InetSocketAddress(TRANSFER_PORT));
         logger.info("[HANDSHAKE] Server listening on port {}", TRANSFER_PORT);
         statusListeners.forEach(listener -> listener.onConnectionStatusChanged(false, "Listening on port " + TRANSFER_PORT));
-        executorService.submit(() -> {
+        executor.runBackground(() -> {
             while (isRunning) {
                 try {
-                    Socket clientSocket = transferServer.accept();
+                    Socket clientSocket = transferServer.accept().socket();
                     logger.info("[HANDSHAKE] Accepted connection from {}", clientSocket.getInetAddress());
                     statusListeners.forEach(listener -> listener.onConnectionStatusChanged(true, clientSocket.getInetAddress().toString()));
                     handleIncomingConnection(clientSocket);
@@ -232,7 +253,7 @@ public class WiFiDirectService {
     }
     
     private void startPeerDiscovery() {
-        executorService.submit(() -> {
+        executor.runBackground(() -> {
             while (isRunning) {
                 try {
                     broadcastDiscoveryMessage();
@@ -263,7 +284,8 @@ public class WiFiDirectService {
         broadcastSocket.send(packet);
     }
     
-    private void handleDiscoveryMessage(DatagramPacket packet) {
+    // Package-private for DiscoveryBenchmark
+    void handleDiscoveryMessage(DatagramPacket packet) {
         String message = new String(packet.getData(), 0, packet.getLength());
         String[] parts = message.split(":");
         
@@ -304,7 +326,7 @@ public class WiFiDirectService {
         logger.info("Incoming connection from {}", socket.getInetAddress());
         statusListeners.forEach(listener -> listener.onConnectionStatusChanged(true, socket.getInetAddress().toString()));
         // Handle the connection in a separate thread
-        executorService.submit(() -> {
+        executor.runBackground(() -> {
             try {
                 // Read the join message
                 byte[] buffer = new byte[1024];
@@ -340,7 +362,7 @@ public class WiFiDirectService {
         try {
             logger.info("[HANDSHAKE] Connecting to group owner at {}:{}", groupOwnerAddress, TRANSFER_PORT);
             statusListeners.forEach(listener -> listener.onConnectionStatusChanged(false, "Connecting to group owner at " + groupOwnerAddress));
-            groupConnection = new Socket(groupOwnerAddress, TRANSFER_PORT);
+            groupConnection = SocketChannel.open(new InetSocketAddress(groupOwnerAddress, TRANSFER_PORT)).socket();
             logger.info("[HANDSHAKE] Connected to group owner at {}", groupOwnerAddress);
             statusListeners.forEach(listener -> listener.onConnectionStatusChanged(true, groupOwnerAddress));
             // Send join message
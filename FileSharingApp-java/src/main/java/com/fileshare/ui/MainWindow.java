@@ -1,7 +1,13 @@
 package com.fileshare.ui;
 
+import com.fileshare.core.DirectoryTree;
 import com.fileshare.core.WiFiDirectService;
 import com.fileshare.core.FileTransferService;
+import com.fileshare.core.TransferConfig;
+import com.fileshare.core.TransferExecutor;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -9,17 +15,21 @@ import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.stage.FileChooser;
 import javafx.stage.DirectoryChooser;
+import javafx.util.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.Socket;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 /**
  * Main application window for WiFi Direct File Share
@@ -38,6 +48,7 @@ public class MainWindow {
     // Service components
     private WiFiDirectService wifiDirectService;
     private FileTransferService fileTransferService;
+    private TransferExecutor transferExecutor;
     
     // UI Controls
     private ListView<WiFiDirectService.PeerDevice> peerListView;
@@ -48,15 +59,18 @@ public class MainWindow {
     private Button createGroupButton;
     private Button joinGroupButton;
     private Button selectFilesButton;
+    private Button selectDirectoryButton;
     private Button sendFilesButton;
     private Button selectFolderButton;
     private Label folderLabel;
     private ListView<String> incomingListView;
     private TextArea logArea;
+    private TextArea metricsArea;
     
     // State management
     private final ConcurrentHashMap<String, WiFiDirectService.PeerDevice> discoveredPeers = new ConcurrentHashMap<>();
     private final AtomicReference<File> downloadFolder = new AtomicReference<>();
+    private final AtomicBoolean receiverRunning = new AtomicBoolean();
     private Socket currentConnection;
     
     public MainWindow() {
@@ -67,8 +81,11 @@ public class MainWindow {
     }
     
     private void initializeServices() {
-        wifiDirectService = new WiFiDirectService();
-        fileTransferService = new FileTransferService();
+        // One executor for discovery, handshakes and transfers
+        TransferConfig config = TransferConfig.load();
+        transferExecutor = TransferExecutor.create(config);
+        wifiDirectService = new WiFiDirectService(transferExecutor);
+        fileTransferService = new FileTransferService(config, transferExecutor);
         
         // Add listeners
         wifiDirectService.addDiscoveryListener(this::onPeerDiscovered);
@@ -135,10 +152,11 @@ public class MainWindow {
         fileControls.setAlignment(Pos.CENTER_LEFT);
         
         selectFilesButton = new Button("Select Files");
+        selectDirectoryButton = new Button("Select Folder");
         sendFilesButton = new Button("Send Files");
         sendFilesButton.setDisable(true);
         
-        fileControls.getChildren().addAll(selectFilesButton, sendFilesButton);
+        fileControls.getChildren().addAll(selectFilesButton, selectDirectoryButton, sendFilesButton);
         
         Label fileLabel = new Label("Selected Files:");
         fileListView = new ListView<>();
@@ -205,9 +223,15 @@ public class MainWindow {
         statusLabel = new Label("Disconnected");
         statusLabel.setStyle("-fx-text-fill: red;");
         
-        // Transfer statistics
+        // Transfer statistics, refreshed from the metrics dump
         Label statsLabel = new Label("Transfer Statistics:");
-        Label statsInfo = new Label("No transfers yet");
+        metricsArea = new TextArea(fileTransferService.getMetrics().dump());
+        metricsArea.setPrefHeight(220);
+        metricsArea.setEditable(false);
+        metricsArea.setStyle("-fx-font-family: monospace;");
+        Timeline metricsRefresh = new Timeline(new KeyFrame(Duration.seconds(1), e -> refreshMetrics()));
+        metricsRefresh.setCycleCount(Animation.INDEFINITE);
+        metricsRefresh.play();
         
         // Log area
         Label logLabel = new Label("Event Log:");
@@ -218,7 +242,7 @@ public class MainWindow {
         
         statusContent.getChildren().addAll(
             connectionLabel, statusLabel,
-            statsLabel, statsInfo,
+            statsLabel, metricsArea,
             logLabel, logArea
         );
         
@@ -244,6 +268,7 @@ public class MainWindow {
         
         // File operations
         selectFilesButton.setOnAction(e -> selectFiles());
+        selectDirectoryButton.setOnAction(e -> selectDirectory());
         sendFilesButton.setOnAction(e -> sendFiles());
         selectFolderButton.setOnAction(e -> selectDownloadFolder());
         
@@ -311,6 +336,18 @@ public class MainWindow {
         }
     }
     
+    private void selectDirectory() {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Select Folder to Send");
+        
+        File selectedDirectory = directoryChooser.showDialog(root.getScene().getWindow());
+        if (selectedDirectory != null) {
+            fileListView.getItems().clear();
+            fileListView.getItems().add(selectedDirectory);
+            updateSendButtonState();
+        }
+    }
+    
     private void sendFiles() {
         WiFiDirectService.PeerDevice selectedPeer = peerListView.getSelectionModel().getSelectedItem();
         if (selectedPeer == null) {
@@ -337,42 +374,79 @@ public class MainWindow {
         transferProgressBar.setProgress(0);
         speedLabel.setText("Preparing transfer...");
         logEvent("Starting file transfer to " + peer.getName() + " (" + peer.getAddress() + ")");
-        CompletableFuture.runAsync(() -> {
+        List<File> plainFiles = files.stream().filter(file -> !file.isDirectory()).collect(Collectors.toList());
+        List<File> directories = files.stream().filter(File::isDirectory).collect(Collectors.toList());
+        // Folders are listed off the UI thread, so they count with the size of their contents
+        transferExecutor.runBackground(() -> {
+            List<DirectoryTree> trees = new ArrayList<>(directories.size());
+            long totalSize = plainFiles.stream().mapToLong(File::length).sum();
+            try {
+                for (File directory : directories) {
+                    DirectoryTree tree = DirectoryTree.walk(directory, transferExecutor.getHashPool());
+                    trees.add(tree);
+                    totalSize += tree.getTotalSize();
+                }
+            } catch (IOException e) {
+                Platform.runLater(() -> showError("Transfer Error", "Cannot read folder: " + e.getMessage()));
+                logEvent("Error: Cannot read folder: " + e.getMessage());
+                return;
+            }
+            submitFileTransfer(plainFiles, trees, totalSize);
+        });
+    }
+    
+    private void submitFileTransfer(List<File> plainFiles, List<DirectoryTree> trees, long totalSize) {
+        transferExecutor.submitTransfer(totalSize, () -> {
             try {
-                long totalSize = files.stream().mapToLong(File::length).sum();
-                long transferred = 0;
-                for (File file : files) {
-                    if (Thread.currentThread().isInterrupted()) break;
-                    try {
-                        logEvent("Sending file: " + file.getName());
-                        fileTransferService.sendFileOverSocket(file, currentConnection);
-                        transferred += file.length();
-                        double progress = (double) transferred / totalSize;
-                        Platform.runLater(() -> {
-                            transferProgressBar.setProgress(progress);
-                            speedLabel.setText(String.format("Sent: %s (%.1f%%)", file.getName(), progress * 100));
-                        });
-                        logEvent("File sent: " + file.getName());
-                    } catch (Exception e) {
-                        Platform.runLater(() -> {
-                            showError("Transfer Error", "Error sending " + file.getName() + ": " + e.getMessage());
-                        });
-                        logEvent("Error: Failed to send file " + file.getName() + ": " + e.getMessage());
+                int failed = 0;
+                int sent = 0;
+                if (!plainFiles.isEmpty()) {
+                    logEvent("Sending " + plainFiles.size() + " file(s) in one session");
+                    List<FileTransferService.TransferResult> results =
+                        fileTransferService.sendFilesOverSocket(plainFiles, currentConnection);
+                    for (int i = 0; i < results.size(); i++) {
+                        FileTransferService.TransferResult result = results.get(i);
+                        if (result.isSuccess()) {
+                            logEvent("File sent: " + plainFiles.get(i).getName());
+                        } else {
+                            failed++;
+                            logEvent("Error: Failed to send file " + plainFiles.get(i).getName() + ": " + result.getErrorMessage());
+                        }
                     }
-                    Thread.sleep(100);
+                    sent += results.size();
+                }
+                for (DirectoryTree tree : trees) {
+                    File directory = tree.getRoot();
+                    logEvent("Sending folder " + directory.getName());
+                    List<FileTransferService.TransferResult> results =
+                        fileTransferService.sendDirectoryOverSocket(tree, currentConnection);
+                    long folderFailed = results.stream().filter(result -> !result.isSuccess()).count();
+                    failed += folderFailed;
+                    sent += results.size();
+                    logEvent(folderFailed == 0
+                        ? "Folder sent: " + directory.getName() + " (" + results.size() + " files)"
+                        : "Error: " + folderFailed + " of " + results.size() + " files in " + directory.getName() + " failed");
                 }
+                int failedCount = failed;
+                int sentCount = sent;
                 Platform.runLater(() -> {
                     transferProgressBar.setProgress(1.0);
-                    speedLabel.setText("Transfer completed");
-                    showInfo("Transfer Complete", "All files have been sent successfully.");
+                    if (failedCount == 0) {
+                        speedLabel.setText("Transfer completed");
+                        showInfo("Transfer Complete", "All files have been sent successfully.");
+                    } else {
+                        speedLabel.setText("Transfer completed with errors");
+                        showError("Transfer Error", failedCount + " of " + sentCount + " files were not received intact.");
+                    }
                 });
-                logEvent("All files sent successfully.");
+                logEvent(failedCount == 0 ? "All files sent successfully." : failedCount + " file(s) failed.");
             } catch (Exception e) {
                 Platform.runLater(() -> {
                     showError("Transfer Error", "Error during file transfer: " + e.getMessage());
                 });
                 logEvent("Error: File transfer failed: " + e.getMessage());
             }
+            return null;
         });
     }
     
@@ -403,21 +477,27 @@ public class MainWindow {
             logEvent("Error: Attempted to receive files without a connection.");
             return;
         }
-        CompletableFuture.runAsync(() -> {
+        if (!receiverRunning.compareAndSet(false, true)) {
+            return;
+        }
+        // Listens for as long as the connection lasts, so it is not counted as a transfer
+        transferExecutor.runBackground(() -> {
             try {
                 logger.info("Starting file receiver using handshake socket");
                 logEvent("Listening for incoming files on handshake socket...");
-                fileTransferService.receiveFileOverSocket(currentConnection, folder.getAbsolutePath());
-                Platform.runLater(() -> {
-                    incomingListView.getItems().add("File received successfully");
-                    showInfo("File Received", "File received successfully!");
-                });
-                logEvent("File received successfully.");
+                // Sessions arrive back to back on the same connection
+                while (currentConnection != null && !currentConnection.isClosed()) {
+                    List<File> received = fileTransferService.receiveFilesOverSocket(currentConnection, folder.getAbsolutePath());
+                    Platform.runLater(() -> received.forEach(file -> incomingListView.getItems().add(file.getName())));
+                    logEvent("Received " + received.size() + " file(s).");
+                }
             } catch (Exception e) {
                 Platform.runLater(() -> {
                     showError("Receive Error", "Error receiving file: " + e.getMessage());
                 });
                 logEvent("Error: File receive failed: " + e.getMessage());
+            } finally {
+                receiverRunning.set(false);
             }
         });
     }
@@ -470,7 +550,7 @@ public class MainWindow {
         });
     }
     
-    private void onTransferProgress(FileTransferService.TransferProgress progress) {
+    private void onTransferProgress(FileTransferService.ProgressSnapshot progress) {
         Platform.runLater(() -> {
             transferProgressBar.setProgress(progress.getProgressPercentage() / 100.0);
             speedLabel.setText(String.format("Speed: %.2f MB/s", progress.getSpeed()));
@@ -492,6 +572,13 @@ public class MainWindow {
     
     // Utility methods
     
+    private void refreshMetrics() {
+        // Keep the reader's scroll position across refreshes
+        double scrollTop = metricsArea.getScrollTop();
+        metricsArea.setText(fileTransferService.getMetrics().dump());
+        metricsArea.setScrollTop(scrollTop);
+    }
+    
     private void updateStatus(String message, boolean isConnected) {
         Platform.runLater(() -> {
             statusLabel.setText(message);
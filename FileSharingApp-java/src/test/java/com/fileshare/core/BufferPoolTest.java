@@ -0,0 +1,154 @@
+package com.fileshare.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class BufferPoolTest {
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private FileChannel source;
+    private FileChannel sink;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        byte[] data = new byte[FILE_SIZE];
+        new Random(17).nextBytes(data);
+        Path file = Files.write(tempDir.resolve("source.bin"), data);
+        source = FileChannel.open(file, StandardOpenOption.READ);
+        sink = FileChannel.open(tempDir.resolve("sink.bin"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        source.close();
+        sink.close();
+    }
+
+    @Test
+    void releasedBufferIsReused() {
+        BufferPool pool = new BufferPool(8 * BufferPool.MAX_BUFFER_SIZE);
+
+        ByteBuffer first = pool.acquire(1000);
+        assertTrue(first.isDirect());
+        assertEquals(4096, first.capacity());
+        first.putInt(42);
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire(4096);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(second.capacity(), second.limit());
+        assertEquals(2, pool.getAcquireCount());
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(4096, pool.getDirectBytes());
+    }
+
+    @Test
+    void fallsBackToHeapOnceBudgetIsSpent() {
+        BufferPool pool = new BufferPool(BufferPool.MAX_BUFFER_SIZE);
+
+        ByteBuffer direct = pool.acquire(BufferPool.MAX_BUFFER_SIZE);
+        ByteBuffer heap = pool.acquire(BufferPool.MAX_BUFFER_SIZE);
+        assertTrue(direct.isDirect());
+        assertFalse(heap.isDirect());
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, heap.capacity());
+        assertEquals(1, pool.getOverflowCount());
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, pool.getDirectBytes());
+
+        // The heap buffer is never pooled, the direct one comes back
+        pool.release(heap);
+        pool.release(direct);
+        assertSame(direct, pool.acquire(BufferPool.MAX_BUFFER_SIZE));
+    }
+
+    @Test
+    void trimsIdleBuffersOfOtherClassesForRoom() {
+        BufferPool pool = new BufferPool(BufferPool.MAX_BUFFER_SIZE);
+
+        pool.release(pool.acquire(BufferPool.MAX_BUFFER_SIZE / 2));
+        ByteBuffer buffer = pool.acquire(BufferPool.MAX_BUFFER_SIZE);
+        assertTrue(buffer.isDirect());
+        assertEquals(0, pool.getOverflowCount());
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, pool.getDirectBytes());
+    }
+
+    @Test
+    void steadyStateCopyAllocatesNothing() throws IOException {
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        BufferPool pool = new BufferPool(8 * BufferPool.MAX_BUFFER_SIZE);
+        CRC32 crc32 = new CRC32();
+        long expected = copy(pool, crc32);
+
+        // The JIT settles at its own pace, so the loop gets a number of
+        // rounds to reach a steady state; one round without allocation passes
+        long thread = Thread.currentThread().getId();
+        long least = Long.MAX_VALUE;
+        for (int round = 0; round < 50 && least > 0; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 50; i++) {
+                assertEquals(expected, copy(pool, crc32));
+            }
+            least = Math.min(least, threads.getThreadAllocatedBytes(thread) - before);
+        }
+
+        assertEquals(0, least, "bytes allocated by 50 pooled copies of " + FILE_SIZE + " bytes");
+        assertEquals(1, pool.getAllocationCount());
+    }
+
+    // Private helper methods
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    /**
+     * The copy loop the transfers run: read a buffer, checksum it, write
+     * it, all through one buffer from the pool.
+     */
+    private long copy(BufferPool pool, CRC32 crc32) throws IOException {
+        ByteBuffer buffer = pool.acquire(BUFFER_SIZE);
+        try {
+            crc32.reset();
+            long position = 0;
+            int read;
+            while ((read = source.read(buffer.clear(), position)) > 0) {
+                buffer.flip();
+                crc32.update(buffer);
+                buffer.rewind();
+                while (buffer.hasRemaining()) {
+                    sink.write(buffer, position + buffer.position());
+                }
+                position += read;
+            }
+            return crc32.getValue();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
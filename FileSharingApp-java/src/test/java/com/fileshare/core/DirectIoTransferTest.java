@@ -0,0 +1,94 @@
+package com.fileshare.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectIoTransferTest {
+    // Odd, so every transfer ends on a tail that is not a whole block
+    private static final int FILE_SIZE = 20_000_003;
+
+    @TempDir
+    Path tempDir;
+
+    private FileTransferService sender;
+    private FileTransferService receiver;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // The shipped settings, with direct I/O brought down to a file a test can move
+        Properties properties = new Properties();
+        try (InputStream in = TransferConfig.class.getResourceAsStream("/application.properties")) {
+            properties.load(in);
+        }
+        properties.setProperty("metrics.jmx.enabled", "false");
+        properties.setProperty("delta.transfer.enabled", "false");
+        properties.setProperty("transfer.resume.enabled", "true");
+        properties.setProperty("direct.io.enabled", "true");
+        properties.setProperty("direct.io.threshold", "1000000");
+        TransferConfig config = new TransferConfig(properties);
+        sender = new FileTransferService(config);
+        receiver = new FileTransferService(config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        sender.shutdown();
+        receiver.shutdown();
+    }
+
+    @Test
+    void chunkedReceivesInARowAboveTheThreshold() throws Exception {
+        Path source = tempDir.resolve("source.bin");
+        writeRandom(source, FILE_SIZE);
+        Path saveDirectory = Files.createDirectories(tempDir.resolve("received"));
+
+        // The receiving threads are pooled, so a second file meets whatever the first left behind
+        for (int round = 0; round < 2; round++) {
+            int port = freePort();
+            Future<FileTransferService.TransferResult> received =
+                receiver.receiveFileAsync(port, saveDirectory.toString());
+            Thread.sleep(300);
+            Future<FileTransferService.TransferResult> sent =
+                sender.sendFileAsync(source.toFile(), "127.0.0.1", port);
+
+            assertTrue(received.get(60, TimeUnit.SECONDS).isSuccess(), "receive " + round);
+            assertTrue(sent.get(60, TimeUnit.SECONDS).isSuccess(), "send " + round);
+            assertEquals(-1, Files.mismatch(source, saveDirectory.resolve("source.bin")), "copy " + round);
+        }
+    }
+
+    // Private helper methods
+
+    private static void writeRandom(Path file, int size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(25);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int left = size; left > 0; left -= block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, Math.min(left, block.length));
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.fileshare.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StagingFilesTest {
+    @TempDir
+    Path saveDirectory;
+
+    @Test
+    void resolvesNamesInsideTheSaveDirectory() throws IOException {
+        File plain = StagingFiles.resolveTarget(saveDirectory.toString(), "file.bin");
+        assertEquals(saveDirectory.resolve("file.bin").toFile().getAbsoluteFile(), plain);
+
+        File nested = StagingFiles.resolveTarget(saveDirectory.toString(), "tree/sub/file.bin");
+        assertEquals(saveDirectory.resolve("tree/sub/file.bin").toFile().getAbsoluteFile(), nested);
+        assertTrue(Files.isDirectory(saveDirectory.resolve("tree/sub")));
+
+        File dotted = StagingFiles.resolveTarget(saveDirectory.toString(), "tree/../other.bin");
+        assertEquals(saveDirectory.resolve("other.bin").toFile().getAbsoluteFile(), dotted);
+    }
+
+    @Test
+    void refusesNamesOutsideTheSaveDirectory() {
+        String base = saveDirectory.toString();
+        assertThrows(IOException.class, () -> StagingFiles.resolveTarget(base, "../escaped.bin"));
+        assertThrows(IOException.class, () -> StagingFiles.resolveTarget(base, "../../.bashrc"));
+        assertThrows(IOException.class, () -> StagingFiles.resolveTarget(base, "tree/../../escaped.bin"));
+        assertThrows(IOException.class,
+            () -> StagingFiles.resolveTarget(base, saveDirectory.resolveSibling("escaped.bin").toString()));
+        assertThrows(IOException.class, () -> StagingFiles.resolveTarget(base, "."));
+        assertThrows(IOException.class, () -> StagingFiles.resolveTarget(base, ""));
+    }
+}